@@ -26,7 +26,6 @@ package mnj.lua;
 
 import java.io.PrintStream;
 import java.io.Reader;
-import java.util.Enumeration;
 
 /**
  * Contains Lua's base library.  The base library is generally
@@ -90,7 +89,8 @@ public final class BaseLib extends LuaJavaCallback
   private static final Object IPAIRS_AUX_FUN = new BaseLib(IPAIRS_AUX);
   /**
    * Lua value that represents the generator function for pairs.  In
-   * PUC-Rio this is implemented as an upvalue of pairs.
+   * PUC-Rio this is implemented as an upvalue of pairs (and is the
+   * same function as next).
    */
   private static final Object PAIRS_AUX_FUN = new BaseLib(PAIRS_AUX);
 
@@ -182,7 +182,7 @@ public final class BaseLib extends LuaJavaCallback
       case IPAIRS_AUX:
         return ipairsaux(L);
       case PAIRS_AUX:
-        return pairsaux(L);
+        return next(L);
 
       case CREATE:
         return create(L);
@@ -280,12 +280,13 @@ public final class BaseLib extends LuaJavaCallback
   private static final String[] CGOPTS = new String[]
   {
     "stop", "restart", "collect",
-    "count", "step", "setpause", "setstepmul"};
+    "count", "step", "setpause", "setstepmul", "compact"};
   /** Used by {@link #collectgarbage}. */
   private static final int[] CGOPTSNUM = new int[]
   {
     Lua.GCSTOP, Lua.GCRESTART, Lua.GCCOLLECT,
-    Lua.GCCOUNT, Lua.GCSTEP, Lua.GCSETPAUSE, Lua.GCSETSTEPMUL};
+    Lua.GCCOUNT, Lua.GCSTEP, Lua.GCSETPAUSE, Lua.GCSETSTEPMUL,
+    Lua.GCCOMPACT};
   /** Implements collectgarbage. */
   private static int collectgarbage(Lua L)
   {
@@ -490,49 +491,19 @@ public final class BaseLib extends LuaJavaCallback
     return 2;
   }
 
-  /** Implements pairs.  PUC-Rio uses "next" as the generator for pairs.
-   * Jill doesn't do that because it would be way too slow.  We use the
-   * {@link java.util.Enumeration} returned from
-   * {@link java.util.Hashtable#keys}.  The {@link #pairsaux} method
-   * implements the step-by-step iteration.
+  /** Implements pairs.  As in PUC-Rio the generator is the same as
+   * next, the state is the table, and the control variable is the
+   * previous key.
    */
   private static int pairs(Lua L)
   {
     L.checkType(1, Lua.TTABLE);
     L.push(PAIRS_AUX_FUN);                   // return generator,
-    LuaTable t = (LuaTable)L.value(1);
-    L.push(new Object[] { t, t.keys() });   // state,
+    L.pushValue(1);                             // state,
     L.push(Lua.NIL);                            // and initial value.
     return 3;
   }
 
-  /** Generator for pairs.  This expects a <var>state</var> and
-   * <var>var</var> as (Lua) arguments.
-   * The state is setup by {@link #pairs} and is a
-   * pair of {LuaTable, Enumeration} stored in a 2-element array.  The
-   * <var>var</var> is not used.  This is in contrast to the PUC-Rio
-   * implementation, where the state is the table, and the var is used
-   * to generated the next key in sequence.  The implementation, of
-   * pairs and pairsaux, has no control over <var>var</var>,  Lua's
-   * semantics of <code>for</code> force it to be the previous result
-   * returned by this function.  In Jill this value is not suitable to
-   * use for enumeration, which is why it isn't used.
-   */
-  private static int pairsaux(Lua L)
-  {
-    Object[] a = (Object[])L.value(1);
-    LuaTable t = (LuaTable)a[0];
-    Enumeration e = (Enumeration)a[1];
-    if (!e.hasMoreElements())
-    {
-      return 0;
-    }
-    Object key = e.nextElement();
-    L.push(key);
-    L.push(t.getlua(key));
-    return 2;
-  }
-
   /** Implements pcall. */
   private static int pcall(Lua L)
   {
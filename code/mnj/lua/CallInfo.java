@@ -33,23 +33,29 @@ final class CallInfo
   private int nresults;
   private int tailcalls;
 
-  /** Only used to create the first instance. */
+  /**
+   * Records are created empty and (re)initialised by {@link #init}
+   * each time they are used for a call, see Lua.inc_ci.
+   */
   CallInfo()
   {
   }
 
   /**
+   * Sets up the record for a new call.
    * @param func  stack index of function
    * @param base  stack base for this frame
    * @param top   top-of-stack for this frame
    * @param nresults  number of results expected by caller
    */
-  CallInfo(int func, int base, int top, int nresults)
+  void init(int func, int base, int top, int nresults)
   {
+    this.savedpc = 0;
     this.func = func;
     this.base = base;
     this.top = top;
     this.nresults = nresults;
+    this.tailcalls = 0;
   }
 
   /** Setter for savedpc. */
@@ -0,0 +1,208 @@
+/*  $Header$
+ * Copyright (c) 2006 Nokia Corporation and/or its subsidiary(-ies).
+ * All rights reserved.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject
+ * to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+ * ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF
+ * CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package mnj.lua;
+/**
+ * Superclass of the classes generated by the ahead of time compiler,
+ * <code>Luajc</code>.  Each generated class holds the function
+ * prototypes of one Lua chunk as Java constants, so that no parsing
+ * (or undumping) is needed to load it, and Java code for the bodies
+ * of the functions that it can compile.  An instance is a Lua Java
+ * function that behaves like the function that {@link Lua#load}
+ * returns for the original source: calling it runs the main chunk with
+ * the global table as its environment, passing on any arguments and
+ * returning its results.  {@link PackageLib}'s class loader finds
+ * generated classes for <code>require</code>, and {@link
+ * Lua#loadFile} finds them in place of source files.
+ *
+ * A compiled function is an ordinary {@link LuaFunction}; its
+ * {@link Proto} refers back to the generated class, which the VM calls
+ * instead of interpreting the prototype's code.  The generated code
+ * works on the same stack frame and calls back into <code>Lua</code>
+ * for anything other than numeric fast paths.  Only functions that do
+ * not call (or create) functions are compiled, so that a compiled body
+ * never has a Lua call, and so a coroutine yield, beneath it; the
+ * remaining functions, and all functions while a debug hook is set,
+ * are interpreted.
+ *
+ * Generated classes are in this package because they use its
+ * internals; they should only be created by the compiler.
+ */
+public abstract class CompiledChunk extends LuaJavaCallback
+{
+  /** Number of ints encoded in each string by the compiler. */
+  static final int CHUNK = 4096;
+
+  /** The main function prototype, built on first call. */
+  private Proto main;
+
+  /**
+   * Builds the prototype of the main function.  Implemented by the
+   * generated class.
+   */
+  abstract Proto build();
+
+  /**
+   * Runs the compiled function body <var>which</var>, in the frame
+   * that the VM has made for the call.  Implemented by the
+   * generated class.
+   * @param which  the body, as {@link Proto#compiledid}.
+   * @param L      the Lua state.
+   * @param f      the function being called.
+   * @param base   stack index of the function's first register.
+   * @return stack index of the first result, as for {@link
+   * Lua#aotReturn}.
+   */
+  abstract int execute(int which, Lua L, LuaFunction f, int base);
+
+  /**
+   * Name of the class that the compiler generates for a file.  The
+   * file name without any leading '/' and ".lua" suffix, with each '/'
+   * and '.' replaced by '_', appended to "mnj.lua.LuaChunk_".  This
+   * is the module name's class name, for modules found by the lua
+   * loader as "?.lua".
+   */
+  static String classname(String filename)
+  {
+    int from = filename.startsWith("/") ? 1 : 0;
+    int to = filename.endsWith(".lua") ?
+        filename.length() - 4 : filename.length();
+    return "mnj.lua.LuaChunk_" +
+        filename.substring(from, to).replace('/', '_').replace('.', '_');
+  }
+
+  /**
+   * Builds the main function prototype of a compiled chunk.  Returns
+   * <code>null</code> if there is no such class or it isn't one.
+   */
+  static Proto find(String classname)
+  {
+    try
+    {
+      Object o = Class.forName(classname).newInstance();
+      if (o instanceof CompiledChunk)
+        return ((CompiledChunk)o).build();
+    }
+    catch (ClassNotFoundException e_)
+    {
+    }
+    catch (IllegalAccessException e_)
+    {
+    }
+    catch (InstantiationException e_)
+    {
+    }
+    return null;
+  }
+
+  int luaFunction(Lua L)
+  {
+    if (main == null)
+    {
+      main = build();
+    }
+    L.insert(new LuaFunction(main, new UpVal[0], L.getGlobals()), 1);
+    L.call(L.getTop()-1, Lua.MULTRET);
+    return L.getTop();
+  }
+
+  /**
+   * Decodes an int array.  Each int is encoded as two chars, most
+   * significant half first; the string is split into pieces of at
+   * most {@link #CHUNK} ints to keep within the class file's limit on
+   * the size of string constants.
+   */
+  static int[] ints(String[] s)
+  {
+    int n = 0;
+    for (int i=0; i<s.length; ++i)
+    {
+      n += s[i].length() / 2;
+    }
+    int[] a = new int[n];
+    int j = 0;
+    for (int i=0; i<s.length; ++i)
+    {
+      String t = s[i];
+      for (int c=0; c<t.length(); c+=2)
+      {
+        a[j++] = (t.charAt(c) << 16) | t.charAt(c+1);
+      }
+    }
+    return a;
+  }
+
+  /** Numeric constant, from its IEEE 754 bits so that it is exact. */
+  static Object num(long bits)
+  {
+    return Lua.valueOfNumber(Double.longBitsToDouble(bits));
+  }
+
+  /**
+   * Makes a function prototype.  Arguments as for the {@link Proto}
+   * constructor, except that the constants are Lua values and the code
+   * is encoded as for {@link #ints}.
+   */
+  static Proto proto(Object[] k, String[] code, Proto[] p,
+      int nups, int numparams, boolean isVararg, int maxstacksize)
+  {
+    Slot[] constant = new Slot[k.length];
+    for (int i=0; i<k.length; ++i)
+    {
+      constant[i] = new Slot(k[i]);
+    }
+    return new Proto(constant, ints(code), p, nups, numparams,
+        isVararg, maxstacksize);
+  }
+
+  /**
+   * Adds debug information to a prototype.
+   * @param f          the prototype.
+   * @param source     the chunk name.
+   * @param linedefined      line on which the function starts.
+   * @param lastlinedefined  line on which the function ends.
+   * @param lineinfo   line for each instruction, encoded as for
+   *                   {@link #ints}.
+   * @param varname    names of the local variables.
+   * @param varpc      startpc and endpc of each local variable,
+   *                   alternately, encoded as for {@link #ints}.
+   * @param upvalue    names of the upvalues.
+   */
+  static void debug(Proto f, String source,
+      int linedefined, int lastlinedefined,
+      String[] lineinfo, String[] varname, String[] varpc,
+      String[] upvalue)
+  {
+    int[] pc = ints(varpc);
+    LocVar[] locvar = new LocVar[varname.length];
+    for (int i=0; i<varname.length; ++i)
+    {
+      locvar[i] = new LocVar(varname[i], pc[2*i], pc[2*i+1]);
+    }
+    f.debug(ints(lineinfo), locvar, upvalue);
+    f.setSource(source);
+    f.setLinedefined(linedefined);
+    f.setLastlinedefined(lastlinedefined);
+  }
+}
@@ -0,0 +1,145 @@
+/*  $Header$
+ * Copyright (c) 2006 Nokia Corporation and/or its subsidiary(-ies).
+ * All rights reserved.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject
+ * to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+ * ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF
+ * CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package mnj.lua;
+
+import java.util.Hashtable;
+
+/**
+ * Copies the objects of one Lua state for another, see {@link
+ * Lua#snapshot} and {@link Lua#fork}.  Tables are copied lazily: a
+ * copy is empty, refers to the table it is a copy of, and is only
+ * filled (by {@link LuaTable#copysource}) when it is first used, so a
+ * state that touches only a few tables copies only those.  Lua
+ * functions, their upvalues, and userdata are copied at once, but
+ * share the tables they refer to lazily in the same way.  Each object
+ * is copied at most once, so sharing (and cycles) between objects is
+ * preserved.
+ *
+ * What is not copied: strings, numbers and booleans, which are
+ * immutable; functions written in Java, which hold no state; frozen
+ * tables (see {@link Lua#freeze}), which can be shared; the {@link
+ * Proto}s of Lua functions, which are never modified by running them
+ * (other than their caches, which are safe to share because they
+ * identify tables by {@link LuaTable#cacheid} and so keep none
+ * alive); and the Java object wrapped by a userdata.
+ */
+final class Fork
+{
+  /** The state to raise errors in. */
+  private final Lua L;
+  /** Maps each object copied so far to its copy. */
+  private final Hashtable copy = new Hashtable();
+
+  Fork(Lua L)
+  {
+    this.L = L;
+  }
+
+  /**
+   * Returns the copy of <var>o</var>, making it if necessary.  Objects
+   * that need no copy, and <code>null</code>, are returned as they
+   * are.  A Lua thread cannot be copied, and raises an error.
+   */
+  Object map(Object o)
+  {
+    if (o instanceof LuaTable)
+    {
+      if (((LuaTable)o).isFrozen())
+      {
+        return o;
+      }
+    }
+    else if (o instanceof Lua)
+    {
+      L.gRunerror("cannot copy a thread");
+    }
+    else if (!(o instanceof LuaFunction || o instanceof LuaUserdata))
+    {
+      return o;
+    }
+    Object r = copy.get(o);
+    if (r != null)
+    {
+      return r;
+    }
+    if (o instanceof LuaTable)
+    {
+      r = new LuaTable((LuaTable)o, this);
+      copy.put(o, r);
+      return r;
+    }
+    if (o instanceof LuaUserdata)
+    {
+      LuaUserdata u = (LuaUserdata)o;
+      LuaUserdata c = new LuaUserdata(u.getUserdata());
+      copy.put(o, c);
+      c.setMetatable((LuaTable)map(u.getMetatable()));
+      c.setEnv((LuaTable)map(u.getEnv()));
+      return c;
+    }
+    LuaFunction f = (LuaFunction)o;
+    Proto p = f.proto();
+    UpVal[] up = new UpVal[p.nups()];
+    LuaFunction c = new LuaFunction(p, up, (LuaTable)map(f.getEnv()));
+    // Entered before the upvalues are copied, as they may refer back
+    // to the function (a recursive local function, for example).
+    copy.put(o, c);
+    for (int i=0; i<up.length; ++i)
+    {
+      up[i] = upval(f.upVal(i));
+    }
+    return c;
+  }
+
+  /**
+   * Returns a fresh array holding the copies of the elements of
+   * <var>a</var>.
+   */
+  Object[] map(Object[] a)
+  {
+    Object[] r = new Object[a.length];
+    for (int i=0; i<a.length; ++i)
+    {
+      r[i] = map(a[i]);
+    }
+    return r;
+  }
+
+  /**
+   * Returns the copy of an upvalue, which is always closed.  An open
+   * upvalue is copied with the current value of its variable.
+   */
+  private UpVal upval(UpVal u)
+  {
+    UpVal r = (UpVal)copy.get(u);
+    if (r == null)
+    {
+      r = new UpVal(Lua.NIL);
+      copy.put(u, r);
+      r.setValue(map(u.getValue()));
+    }
+    return r;
+  }
+}
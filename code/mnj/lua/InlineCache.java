@@ -0,0 +1,182 @@
+/*  $Header$
+ * Copyright (c) 2006 Nokia Corporation and/or its subsidiary(-ies).
+ * All rights reserved.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject
+ * to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+ * ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF
+ * CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package mnj.lua;
+/**
+ * An entry in the inline cache of a {@link Proto}.  There is (at most)
+ * one per instruction, and only for the table reading instructions
+ * (GETGLOBAL, GETTABLE and SELF) with a constant string key.  An entry
+ * records where the value for the key was found last time the
+ * instruction was executed, so that a repeat lookup in the same table
+ * can skip hashing.
+ *
+ * An entry is valid only while the {@link LuaTable#version} of each
+ * table it refers to is unchanged; the version changes whenever a key
+ * is added to (or moved within) a table's hash part.  Values are
+ * always read from the table, never from the cache, so assigning to an
+ * existing field does not invalidate any entry.  Removing a field
+ * leaves a nil value, which the lookup notices and treats as a miss.
+ *
+ * Entries do not refer to tables, only to their {@link
+ * LuaTable#cacheid}s, so a cache never keeps a table alive.  This
+ * matters because {@link Proto}s, and so their caches, are shared by
+ * the states made by {@link Lua#fork}: a state that is dropped (or
+ * reset by a {@link LuaStatePool}) must not be kept reachable by the
+ * entries it filled.
+ *
+ * Entries are immutable; the interpreter replaces an entry rather than
+ * updating it.
+ */
+final class InlineCache
+{
+  /** Last id handed out by {@link #id}. */
+  private static int lastid;    // = 0;
+
+  /** {@link LuaTable#cacheid} of the table that was indexed. */
+  final int table;
+  /** Version of {@link #table}. */
+  final int version;
+  /**
+   * When the key is in {@link #table} itself this is 0.  Otherwise the
+   * key was absent from table and found via its metatable's __index
+   * field; this is the id of that metatable.
+   */
+  final int meta;
+  /** Version of {@link #meta}. */
+  final int mversion;
+  /** Index into the hash part of {@link #meta} of its __index key. */
+  final int mindex;
+  /** Id of the table holding the key; either table or meta.__index. */
+  final int holder;
+  /** Version of {@link #holder}. */
+  final int hversion;
+  /** Index into the hash part of {@link #holder} of the key. */
+  final int index;
+
+  /** Entry for a key found directly in <var>table</var>. */
+  InlineCache(LuaTable table, int index)
+  {
+    this.table = id(table);
+    this.version = table.version;
+    this.meta = 0;
+    this.mversion = 0;
+    this.mindex = 0;
+    this.holder = this.table;
+    this.hversion = table.version;
+    this.index = index;
+  }
+
+  /**
+   * Entry for a key found in <var>holder</var>, which is the __index
+   * field of <var>table</var>'s metatable, <var>meta</var>.
+   */
+  InlineCache(LuaTable table, LuaTable meta, int mindex,
+      LuaTable holder, int index)
+  {
+    this.table = id(table);
+    this.version = table.version;
+    this.meta = id(meta);
+    this.mversion = meta.version;
+    this.mindex = mindex;
+    this.holder = id(holder);
+    this.hversion = holder.version;
+    this.index = index;
+  }
+
+  /**
+   * Returns the {@link LuaTable#cacheid} of <var>t</var>, giving it
+   * one if it has none.  Only called when an entry is filled, which is
+   * on a cache miss, so the lock is not on the fast path.  Ids are
+   * never reused; wrapping round would take 2<sup>32</sup> distinct
+   * cached tables.
+   */
+  static int id(LuaTable t)
+  {
+    if (t.cacheid == 0)
+    {
+      synchronized (InlineCache.class)
+      {
+        if (t.cacheid == 0)
+        {
+          if (++lastid == 0)
+          {
+            ++lastid;
+          }
+          t.cacheid = lastid;
+        }
+      }
+    }
+    return t.cacheid;
+  }
+
+  /**
+   * Returns the cached value for a lookup in <var>t</var>, or
+   * <code>null</code> if the entry does not apply (a cache miss).
+   */
+  Object get(LuaTable t)
+  {
+    if (t.cacheid != table || t.version != version)
+    {
+      return null;
+    }
+    if (meta == 0)
+    {
+      Object v = t.hvalue[index];
+      return v == Lua.NIL ? null : v;
+    }
+    return getInherited(t);
+  }
+
+  /**
+   * Returns the cached value for a lookup of a key that is known to be
+   * absent from <var>t</var>, or <code>null</code> if the entry does not
+   * apply.  <var>t</var> need not be the table that filled the entry,
+   * only have the same metatable, so this serves all the instances of
+   * a "class".
+   */
+  Object getInherited(LuaTable t)
+  {
+    if (meta == 0)
+    {
+      return null;
+    }
+    LuaTable mt = t.getMetatable();
+    if (mt == null || mt.cacheid != meta || mt.version != mversion)
+    {
+      return null;
+    }
+    Object o = mt.hvalue[mindex];
+    if (!(o instanceof LuaTable))
+    {
+      return null;
+    }
+    LuaTable h = (LuaTable)o;
+    if (h.cacheid != holder || h.version != hversion)
+    {
+      return null;
+    }
+    Object v = h.hvalue[index];
+    return v == Lua.NIL ? null : v;
+  }
+}
@@ -327,10 +327,10 @@ final class Loader
   private static final int HEADERSIZE = 12;
 
   /** A chunk header that is correct.  Except for the endian byte, at
-   * index 6, which is always overwritten with the one from the file,
-   * before comparison.  We cope with either endianness.
+   * index 6, which is skipped when comparing against the header from
+   * the file.  We cope with either endianness.
    * Default access so that {@link Lua#load} can read the first entry.
-   * On no account should anyone except {@link #header} modify
+   * Shared by all Lua states so on no account should anyone modify
    * this array.
    */
   static final byte[] HEADER = new byte[]
@@ -374,10 +374,9 @@ final class Loader
 
     block(buf);
 
-    // poke the HEADER's endianness byte and compare.
-    HEADER[6] = buf[6];
-
-    if (buf[6] < 0 || buf[6] > 1 || !arrayEquals(HEADER, buf))
+    // Compare everything except the endianness byte.  HEADER is
+    // shared between threads so must not be poked.
+    if (buf[6] < 0 || buf[6] > 1 || !arrayEquals(HEADER, buf, 6))
     {
       throw new IOException();
     }
@@ -509,10 +508,11 @@ final class Loader
   }
 
   /**
-   * CLDC 1.1 does not provide <code>java.util.Arrays</code> so we make
-   * do with this.
+   * Compares two byte arrays, ignoring the byte at index
+   * <var>skip</var>.  CLDC 1.1 does not provide
+   * <code>java.util.Arrays</code> so we make do with this.
    */
-  private static boolean arrayEquals(byte[] x, byte[] y)
+  private static boolean arrayEquals(byte[] x, byte[] y, int skip)
   {
     if (x.length != y.length)
     {
@@ -520,7 +520,7 @@ final class Loader
     }
     for (int i=0; i < x.length; ++i)
     {
-      if (x[i] != y[i])
+      if (i != skip && x[i] != y[i])
       {
         return false;
       }
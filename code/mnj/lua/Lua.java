@@ -30,7 +30,7 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.Reader;
 import java.util.Enumeration;
-import java.util.Stack;
+import java.util.Hashtable;
 import java.util.Vector;
 
 /**
@@ -89,9 +89,20 @@ public final class Lua
    */
   private Lua main;
 
-  /** VM data stack.
+  /**
+   * VM data stack, the register file.  It is held in two parallel
+   * arrays, {@link #ref} and {@link #num}, rather than as an array of
+   * {@link Slot}, so that copying a register is two array stores and
+   * there is no object per element.  Element <var>i</var> is the
+   * number <code>num[i]</code> if <code>ref[i]</code> is {@link
+   * #NUMBER}, and <code>ref[i]</code> otherwise.  The arrays always
+   * have the same length, and are reallocated when the stack grows
+   * (see {@link #stacksetsize}), so they must not be cached across
+   * anything that might grow the stack, such as a call.
    */
-  private Slot[] stack = new Slot[0];
+  private Object[] ref = new Object[0];
+  /** Numbers of the VM data stack, see {@link #ref}. */
+  private double[] num = new double[0];
   /**
    * One more than the highest stack slot that has been written to
    * (ever).
@@ -99,9 +110,17 @@ public final class Lua
    * need nilling when growing the stack.
    */
   int stackhighwater;   // = 0;
+  /**
+   * The largest stack size since the stack sizes were last checked
+   * (see {@link #checkstacksizes}).  Never more than
+   * <code>ref.length</code>.
+   */
+  private int stackrecent;      // = 0;
+  /** The largest stack size ever, see {@link #stackPeak}. */
+  private int stackpeak;        // = 0;
   /**
    * Number of active elemements in the VM stack.  Should always be
-   * <code><= stack.length</code>.
+   * <code><= ref.length</code>.
    */
   private int stackSize;        // = 0;
   /**
@@ -115,31 +134,76 @@ public final class Lua
   /** Instruction to resume execution at.  Index into code array. */
   private int savedpc;  // = 0;
   /**
-   * Vector of CallInfo records.  Actually it's a Stack which is a
-   * subclass of Vector, but it mostly the Vector methods that are used.
+   * CallInfo records, indexed by call depth.  The record for the
+   * currently active function is <code>civ[ici]</code>.  Records above
+   * that are kept to be reused by later calls (see {@link #inc_ci}), so
+   * that calling a function does not allocate.  The array is doubled
+   * in size when it is full.
    */
-  private Stack civ = new Stack();
+  private CallInfo[] civ = new CallInfo[BASIC_CI_SIZE];
   {
-    civ.addElement(new CallInfo());
+    civ[0] = new CallInfo();
   }
+  /** Index in {@link #civ} of the currently active CallInfo record. */
+  private int ici;      // = 0;
+  /**
+   * The largest value of {@link #ici} since the stack sizes were last
+   * checked, see {@link #checkstacksizes}.  Always less than
+   * <code>civ.length</code>.
+   */
+  private int cirecent; // = 0;
+  /** Initial size of {@link #civ}.  As in PUC-Rio. */
+  private static final int BASIC_CI_SIZE = 8;
   /** CallInfo record for currently active function. */
   private CallInfo ci()
   {
-    return (CallInfo)civ.lastElement();
+    return civ[ici];
   }
 
   /** Open Upvalues.  All UpVal objects that reference the VM stack.
-   * openupval is a java.util.Vector of UpVal stored in order of stack
-   * slot index: higher stack indexes are stored at higher Vector
-   * positions.
+   * openupval is the head of a list of UpVal, linked by {@link
+   * UpVal#next}, in decreasing order of stack slot index, as in
+   * PUC-Rio; <code>null</code> when there are none.  So closing the
+   * upvalues of a returning function only looks at the head of the
+   * list, and finding one looks only at those of the frames above it.
    */
-  private Vector openupval = new Vector();
+  private UpVal openupval;      // = null;
 
   int hookcount;
   int basehookcount;
   boolean allowhook = true;
   Hook hook;
-  int hookmask;
+  /**
+   * Hooks that are set.  Volatile because a host may set a hook from
+   * another thread, to preempt a script.  vmExecute only reads it at
+   * safe points, see {@link #setHook}.
+   */
+  volatile int hookmask;
+
+  /**
+   * Default for {@link #hotcount}.  Can be set with the system
+   * property <code>mnj.lua.hotcount</code>; setting it to 0 makes every
+   * function hot from the start, which is useful for testing.
+   */
+  static final int HOTCOUNT = propertyInt("mnj.lua.hotcount", 200);
+
+  /**
+   * Whether each Lua error is a fresh {@link LuaError} with its own
+   * Java stack trace.  Off by default, because errors raised by error
+   * and the VM are normal control flow for many scripts and filling in
+   * the trace dominates their cost.  Set the system property
+   * <code>mnj.lua.errortrace</code> to 1 to turn it on when debugging.
+   */
+  static final boolean ERRORTRACE =
+      propertyInt("mnj.lua.errortrace", 0) != 0;
+
+  /**
+   * Number of calls plus loop iterations after which a function
+   * (strictly, its {@link Proto}) is considered hot and is promoted
+   * to the optimised tier; see {@link Proto#tierUp}.  Shared by
+   * threads created from this one.
+   */
+  int hotcount = HOTCOUNT;
 
   /** Number of list items to accumulate before a SETLIST instruction. */
   static final int LFIELDS_PER_FLUSH = 50;
@@ -165,6 +229,29 @@ public final class Lua
   /** Metatable for primitive types.  Shared between all threads. */
   private LuaTable[] metatable;
 
+  /**
+   * Userdata that have a __gc metamethod, as a Vector of {@link
+   * Finalizer}.  Shared between all threads.
+   */
+  private Vector finalizers;
+  /**
+   * True if this state is a snapshot, made by {@link #snapshot}.
+   */
+  private boolean image;        // = false;
+  /**
+   * For a state made by {@link #fork}, the {@link Fork} that made its
+   * tables; used to tell which globals have changed, see {@link
+   * #changedGlobals}.
+   */
+  private Fork fork;
+  /**
+   * Size of {@link #finalizers} at which registering another userdata
+   * first runs any pending finalizers.
+   */
+  private int gcthreshold = MINFINALIZERS;
+  /** Initial value of {@link #gcthreshold}. */
+  private static final int MINFINALIZERS = 64;
+
   /**
    * Maximum number of local variables per function.  As per
    * LUAI_MAXVARS from "luaconf.h".  Default access so that {@link
@@ -176,14 +263,46 @@ public final class Lua
 
   /**
    * Stored in Slot.r to denote a numeric value (which is stored at 
-   * Slot.d).
+   * Slot.d).  Likewise in {@link #ref}, with the number in {@link #num}.
    */
   static final Object NUMBER = new Object();
 
+  /** Smallest integer in the {@link #SMALL} cache. */
+  private static final int SMALLMIN = -128;
+  /** One more than the largest integer in the {@link #SMALL} cache. */
+  private static final int SMALLMAX = 256;
+  /**
+   * Cache of Double instances for small integers, used by {@link
+   * #valueOfNumber} so that the commonest numbers are not allocated
+   * afresh every time they are boxed.  Double is immutable so these
+   * can be shared by all Lua states.
+   */
+  private static final Double[] SMALL = new Double[SMALLMAX - SMALLMIN];
+
+  static
+  {
+    for (int i=0; i<SMALL.length; ++i)
+    {
+      SMALL[i] = new Double(i + SMALLMIN);
+    }
+  }
+
+  /**
+   * Spare Slot used for a temporary.  Each Lua thread has its own so
+   * that independent Lua states can be run concurrently on separate
+   * Java threads.
+   */
+  private final Slot spare = new Slot();
+
   /**
-   * Spare Slot used for a temporary.
+   * Slots into which registers are copied when they are passed as
+   * operands to a method that takes a {@link Slot} (see {@link
+   * #RK}).  Such a method may call a metamethod, which reuses
+   * them, so it must have finished with its operands before it makes
+   * the call.  Per Lua thread for the same reason as {@link #spare}.
    */
-  private static final Slot SPARE_SLOT = new Slot();
+  private final Slot opb = new Slot();
+  private final Slot opc = new Slot();
 
   /**
    * Registry key for loaded modules.
@@ -203,7 +322,29 @@ public final class Lua
     this.global = L.global;
     this.registry = L.registry;
     this.metatable = L.metatable;
+    this.finalizers = L.finalizers;
     this.main = L;
+    this.hotcount = L.hotcount;
+  }
+
+  /**
+   * Reads an integer system property, returning <var>def</var> if the
+   * property is absent or malformed.
+   */
+  private static int propertyInt(String name, int def)
+  {
+    try
+    {
+      String s = System.getProperty(name);
+      if (s != null)
+      {
+        return Integer.parseInt(s);
+      }
+    }
+    catch (RuntimeException e_)
+    {
+    }
+    return def;
   }
 
   //////////////////////////////////////////////////////////////////////
@@ -217,6 +358,7 @@ public final class Lua
     this.global = new LuaTable();
     this.registry = new LuaTable();
     this.metatable = new LuaTable[NUM_TAGS];
+    this.finalizers = new Vector();
     this.main = this;
   }
 
@@ -269,6 +411,12 @@ public final class Lua
    */
   public static final int MINSTACK = 20;
 
+  /**
+   * The stack is not shrunk below twice this size, see {@link
+   * #checkstacksizes}.  As in PUC-Rio.
+   */
+  private static final int BASIC_STACK_SIZE = 2*MINSTACK;
+
   /** Status code, returned from pcall and friends, that indicates the
    * thread has yielded.
    */
@@ -321,6 +469,15 @@ public final class Lua
    * <var>step multiplier</var> of the collector.
    */
   public static final int GCSETSTEPMUL  = 7;
+  /**
+   * Action, passed to {@link #gc}, that shrinks every table reachable
+   * from this state to fit its contents, then requests a full
+   * collection.  Tables otherwise only shrink when a key is added to
+   * them.  Not part of PUC-Rio.  Like adding a key, compacting a table
+   * during a traversal of it (with next) is not allowed, so this
+   * should not be done from inside a <code>pairs</code> loop.
+   */
+  public static final int GCCOMPACT     = 8;
 
   // Some of the hooks, etc, aren't implemented, so remain private.
   private static final int HOOKCALL = 0;
@@ -455,6 +612,76 @@ public final class Lua
     return gErrormsg(message);
   }
 
+  /**
+   * Deeply freezes a table, making it, and every table reachable from
+   * it through its keys, values and metatables, read-only.  Any write
+   * to a frozen table, including setting its metatable, raises a Lua
+   * error; reads are exactly as fast as for an ordinary table.  Each
+   * table is compacted as it is frozen.  Since nothing changes a frozen
+   * table any more it can be shared, without locking, by any number of
+   * Lua states on any number of Java threads, provided it is handed
+   * over safely (for example before the other threads are started).
+   * Only data can be frozen: a Lua error is raised, and nothing is
+   * frozen, if a function, userdata, thread, or weak table is
+   * reachable from <var>t</var>.
+   * @param t  the table to freeze.
+   */
+  public void freeze(Object t)
+  {
+    apiCheck(t instanceof LuaTable);
+    Hashtable seen = new Hashtable();
+    Vector work = new Vector();
+    work.addElement(t);
+    seen.put(t, t);
+    for (int i=0; i<work.size(); ++i)
+    {
+      LuaTable h = (LuaTable)work.elementAt(i);
+      if (h.isFrozen())
+      {
+        continue;
+      }
+      if (h.isWeak())
+      {
+        gRunerror("cannot freeze a weak table");
+      }
+      Object mt = h.getMetatable();
+      freezable(seen, work, mt == null ? NIL : mt);
+      Enumeration e = h.keys();
+      while (e.hasMoreElements())
+      {
+        Object k = e.nextElement();
+        freezable(seen, work, k);
+        freezable(seen, work, h.getlua(k));
+      }
+    }
+    for (int i=0; i<work.size(); ++i)
+    {
+      ((LuaTable)work.elementAt(i)).freeze();
+    }
+  }
+
+  /**
+   * Used by {@link #freeze}.  Checks that <var>o</var> can be frozen
+   * and adds it to <var>work</var> if it is a table that has not been
+   * seen before.
+   */
+  private void freezable(Hashtable seen, Vector work, Object o)
+  {
+    if (o instanceof LuaTable)
+    {
+      if (!seen.containsKey(o))
+      {
+        seen.put(o, o);
+        work.addElement(o);
+      }
+    }
+    else if (o instanceof LuaFunction || o instanceof LuaJavaCallback ||
+        o instanceof LuaUserdata || o instanceof Lua)
+    {
+      gRunerror("cannot freeze a " + typeName(type(o)));
+    }
+  }
+
   /**
    * Control garbage collector.  Note that in Jill most of the options
    * to this function make no sense and they will not do anything.
@@ -470,10 +697,14 @@ public final class Lua
     {
       case GCSTOP:
         return 0;
+      case GCCOMPACT:
+        compact();
+        // FALLTHROUGH
       case GCRESTART:
       case GCCOLLECT:
       case GCSTEP:
         System.gc();
+        runFinalizers();
         return 0;
       case GCCOUNT:
         rt = Runtime.getRuntime();
@@ -488,6 +719,233 @@ public final class Lua
     return 0;
   }
 
+  /**
+   * Implements {@link #GCCOMPACT}.  Calls {@link LuaTable#compact} on
+   * each table reachable from this state, and shrinks the stack of
+   * this thread and of each reachable thread to fit.  Lazy copies
+   * made by {@link #fork} that have not been used yet are left alone.
+   */
+  private void compact()
+  {
+    Vector v = reachable(this, false);
+    for (int i=0; i<v.size(); ++i)
+    {
+      Object o = v.elementAt(i);
+      if (o instanceof LuaTable)
+      {
+        ((LuaTable)o).compact();
+      }
+      else if (o instanceof Lua)
+      {
+        ((Lua)o).checkstacksizes(true);
+      }
+    }
+    checkstacksizes(true);
+  }
+
+  /**
+   * Returns a Vector of the tables, functions, userdata and threads
+   * reachable from the globals, the registry and the type metatables
+   * of <var>L</var> and, if it is not a snapshot, from the stacks of
+   * it and its main thread.  Looking inside a table makes it if it
+   * is a lazy copy, see {@link Fork}, so lazy copies are only looked
+   * inside if <var>copy</var> is true.
+   */
+  private static Vector reachable(Lua L, boolean copy)
+  {
+    Hashtable seen = new Hashtable();
+    Vector work = new Vector();
+    reach(seen, work, L.global);
+    reach(seen, work, L.registry);
+    for (int i=0; i<L.metatable.length; ++i)
+    {
+      reach(seen, work, L.metatable[i]);
+    }
+    if (!L.image)
+    {
+      reach(seen, work, L.main);
+      reach(seen, work, L);
+    }
+    for (int j=0; j<work.size(); ++j)
+    {
+      Object o = work.elementAt(j);
+      if (o instanceof LuaTable)
+      {
+        LuaTable t = (LuaTable)o;
+        if (!copy && t.isLazyCopy())
+        {
+          continue;
+        }
+        reach(seen, work, t.getMetatable());
+        Enumeration e = t.keys();
+        while (e.hasMoreElements())
+        {
+          Object k = e.nextElement();
+          reach(seen, work, k);
+          reach(seen, work, t.getlua(k));
+        }
+      }
+      else if (o instanceof LuaFunction)
+      {
+        LuaFunction f = (LuaFunction)o;
+        reach(seen, work, f.getEnv());
+        for (int i=0; i<f.proto().nups(); ++i)
+        {
+          reach(seen, work, f.upVal(i).getValue());
+        }
+      }
+      else if (o instanceof LuaUserdata)
+      {
+        LuaUserdata u = (LuaUserdata)o;
+        reach(seen, work, u.getMetatable());
+        reach(seen, work, u.getEnv());
+      }
+      else if (o instanceof Lua)
+      {
+        Lua l = (Lua)o;
+        for (int i=0; i<l.stackSize; ++i)
+        {
+          reach(seen, work, l.objectAt(i));
+        }
+      }
+    }
+    return work;
+  }
+
+  /**
+   * Used by {@link #reachable}.  Adds <var>o</var> to <var>work</var>
+   * if it may refer to other objects and has not been seen before.
+   */
+  private static void reach(Hashtable seen, Vector work, Object o)
+  {
+    if ((o instanceof LuaTable || o instanceof LuaFunction ||
+        o instanceof LuaUserdata || o instanceof Lua) &&
+        !seen.containsKey(o))
+    {
+      seen.put(o, o);
+      work.addElement(o);
+    }
+  }
+
+  /**
+   * Takes a snapshot of this state, from which any number of new
+   * states can then be made quickly with {@link #fork}.  The snapshot
+   * is a deep copy of the globals, the registry and the metatables
+   * for the basic types, so it costs about as much as copying every
+   * table reachable from them; later changes to this state do not
+   * affect it.  The snapshot is itself a Lua state, but must not be
+   * used for anything but forking.  A Lua error is raised if a thread
+   * (coroutine) is reachable.
+   * @return the snapshot.
+   */
+  public Lua snapshot()
+  {
+    Lua s = new Lua();
+    s.image = true;
+    s.copy(this, new Fork(this));
+    reachable(s, true);         // fills all the lazy copies
+    return s;
+  }
+
+  /**
+   * Makes a new state with the same globals, registry and metatables
+   * for the basic types as this state.  If this state is a snapshot
+   * (see {@link #snapshot}) forking is cheap: the new state starts
+   * with lazy copies of the snapshot's tables, each of which is only
+   * copied when it is first used, so a state only pays for the tables
+   * it uses.  Otherwise a snapshot is taken first.  The new state
+   * shares nothing mutable with this one, except the Java objects
+   * wrapped by userdata; the __gc metamethod of a userdata is only
+   * called for the original.  Different forks of a snapshot may run
+   * on different Java threads.
+   * @return the new state.
+   */
+  public Lua fork()
+  {
+    Lua s = image ? this : snapshot();
+    Lua L = new Lua();
+    L.fork = new Fork(L);
+    L.copy(s, L.fork);
+    return L;
+  }
+
+  /**
+   * Returns this state, which must have been forked from
+   * <var>snapshot</var>, to how it was when it was forked: the stack
+   * is emptied, any hook is removed, and the globals, registry and
+   * type metatables are replaced with fresh (lazy) copies of the
+   * snapshot's.  The stack keeps its size.  Used by {@link
+   * LuaStatePool}.
+   */
+  void reset(Lua snapshot)
+  {
+    base = 0;
+    stacksetsize(0);
+    ici = 0;
+    civ[0].init(0, 0, 0, 0);
+    openupval = null;
+    nCcalls = 0;
+    savedpc = 0;
+    status = 0;
+    errfunc = null;
+    setHook(null, 0, 0);
+    allowhook = true;
+    fork = new Fork(this);
+    copy(snapshot, fork);
+  }
+
+  /**
+   * Returns the keys of the globals of this state that are not as they
+   * were when it was forked from <var>snapshot</var>: those that have
+   * been added, removed, or given a different value.  Changes inside
+   * global tables are not looked for.
+   * @return a Vector of the keys; empty if nothing has changed.
+   */
+  Vector changedGlobals(Lua snapshot)
+  {
+    Vector v = new Vector();
+    if (fork == null || global.isLazyCopy())
+    {
+      return v;
+    }
+    LuaTable was = snapshot.global;
+    Enumeration e = global.keys();
+    while (e.hasMoreElements())
+    {
+      Object k = e.nextElement();
+      Object w = was.getlua(k);
+      if (w == NIL || !fork.map(w).equals(global.getlua(k)))
+      {
+        v.addElement(k);
+      }
+    }
+    e = was.keys();
+    while (e.hasMoreElements())
+    {
+      Object k = e.nextElement();
+      if (global.getlua(k) == NIL)
+      {
+        v.addElement(k);
+      }
+    }
+    return v;
+  }
+
+  /**
+   * Used by {@link #snapshot} and {@link #fork}.  Sets this state's
+   * globals, registry and metatables to copies of <var>L</var>'s.
+   */
+  private void copy(Lua L, Fork f)
+  {
+    global = (LuaTable)f.map(L.global);
+    registry = (LuaTable)f.map(L.registry);
+    for (int i=0; i<metatable.length; ++i)
+    {
+      metatable[i] = (LuaTable)f.map(L.metatable[i]);
+    }
+    hotcount = L.hotcount;
+  }
+
   /**
    * Returns the environment table of the Lua value.
    * @param o  the Lua value.
@@ -595,9 +1053,11 @@ public final class Lua
   public Object getTable(Object t, Object k)
   {
     Slot s = new Slot(k);
-    Slot v = new Slot();
-    vmGettable(t, s, v);
-    return v.asObject();
+    push(NIL);          // for the result
+    vmGettable(t, s, stackSize-1);
+    Object v = objectAt(stackSize-1);
+    pop(1);
+    return v;
   }
 
   /**
@@ -682,8 +1142,16 @@ public final class Lua
    */
   public static boolean isNumber(Object o)
   {
-    SPARE_SLOT.setObject(o);
-    return tonumber(SPARE_SLOT, NUMOP);
+    if (o instanceof Double)
+    {
+      return true;
+    }
+    if (!(o instanceof String))
+    {
+      return false;
+    }
+    // Static, so cannot use the per-thread numop array.
+    return oStr2d((String)o, new double[1]);
   }
 
   /**
@@ -707,6 +1175,17 @@ public final class Lua
     return o instanceof LuaTable;
   }
 
+  /**
+   * Tests that an object is a frozen Lua table, see {@link #freeze}.
+   * @param o  the Object to test.
+   * @return <code>true</code> if and only if the object is a frozen
+   * table.
+   */
+  public static boolean isFrozen(Object o)
+  {
+    return o instanceof LuaTable && ((LuaTable)o).isFrozen();
+  }
+
   /**
    * Tests that an object is a Lua thread.
    * @param o  the Object to test.
@@ -825,52 +1304,36 @@ public final class Lua
   }
 
   /**
-   * Slowly get the next key from a table.  Unlike most other functions
-   * in the API this one uses the stack.  The top-of-stack is popped and
-   * used to find the next key in the table at the position specified by
-   * index.  If there is a next key then the key and its value are
-   * pushed onto the stack and <code>true</code> is returned.
+   * Get the next key from a table.  Equivalent to lua_next.  Unlike
+   * most other functions in the API this one uses the stack.  The
+   * top-of-stack is popped and used to find the next key in the table
+   * at the position specified by index.  If there is a next key then
+   * the key and its value are pushed onto the stack and
+   * <code>true</code> is returned.
    * Otherwise (the end of the table has been reached)
-   * <code>false</code> is returned.
+   * <code>false</code> is returned.  A complete traversal takes time
+   * proportional to the size of the table.  The same rules as PUC-Rio
+   * apply to modifying the table during a traversal: existing fields
+   * may be assigned (including being cleared) but new fields must not
+   * be added.
    * @param idx  stack index of table.
    * @return  true if and only if there are more keys in the table.
-   * @deprecated Use {@link #tableKeys} enumeration protocol instead.
    */
   public boolean next(int idx)
   {
     Object o = value(idx);
     // :todo: api check
     LuaTable t = (LuaTable)o;
-    Object key = value(-1);
-    pop(1);
-    Enumeration e = t.keys();
-    if (key == NIL)
-    {
-      if (e.hasMoreElements())
-      {
-        key = e.nextElement();
-        push(key);
-        push(t.getlua(key));
-        return true;
-      }
-      return false;
-    }
-    while (e.hasMoreElements())
+    // The key, on the top of the stack, is replaced in place by the
+    // next key.
+    Slot key = slotAt(stackSize-1, opb);
+    if (t.next(this, key, spare))
     {
-      Object k = e.nextElement();
-      if (k.equals(key))
-      {
-        if (e.hasMoreElements())
-        {
-          key = e.nextElement();
-          push(key);
-          push(t.getlua(key));
-          return true;
-        }
-        return false;
-      }
+      setSlotAt(key, stackSize-1);
+      push(spare);
+      return true;
     }
-    // protocol error which we could potentially diagnose.
+    pop(1);
     return false;
   }
 
@@ -956,7 +1419,7 @@ public final class Lua
     apiChecknelems(nargs+1);
     int restoreStack = stackSize - (nargs + 1);
     // Most of this code comes from luaD_pcall
-    int restoreCi = civ.size();
+    int restoreCi = ici;
     int oldnCcalls = nCcalls;
     Object old_errfunc = errfunc;
     errfunc = ef;
@@ -968,27 +1431,22 @@ public final class Lua
     }
     catch (LuaError e)
     {
-      fClose(restoreStack);   // close eventual pending closures
-      dSeterrorobj(e.errorStatus, restoreStack);
-      nCcalls = oldnCcalls;
-      civ.setSize(restoreCi);
-      CallInfo ci = ci();
-      base = ci.base();
-      savedpc = ci.savedpc();
-      allowhook = old_allowhook;
       errorStatus = e.errorStatus;
     }
     catch (OutOfMemoryError e)
     {
-      fClose(restoreStack);     // close eventual pending closures
-      dSeterrorobj(ERRMEM, restoreStack);
+      errorStatus = ERRMEM;
+    }
+    if (errorStatus != 0)
+    {
+      fClose(restoreStack);   // close eventual pending closures
+      dSeterrorobj(errorStatus, restoreStack);
       nCcalls = oldnCcalls;
-      civ.setSize(restoreCi);
+      ici = restoreCi;
       CallInfo ci = ci();
       base = ci.base();
       savedpc = ci.savedpc();
       allowhook = old_allowhook;
-      errorStatus = ERRMEM;
     }
     errfunc = old_errfunc;
     return errorStatus;
@@ -1051,8 +1509,10 @@ public final class Lua
    */
   public void pushNumber(double d)
   {
-    // :todo: optimise to avoid creating Double instance
-    push(new Double(d));
+    int i = stackSize;
+    stacksetsize(i+1);
+    ref[i] = NUMBER;
+    num[i] = d;
   }
 
   /**
@@ -1071,8 +1531,13 @@ public final class Lua
    */
   public void pushValue(int idx)
   {
-    // :todo: optimised to avoid creating Double instance
-    push(value(idx));
+    idx = absIndex(idx);
+    if (idx < 0)
+    {
+      push(NIL);
+      return;
+    }
+    pushAt(idx);
   }
 
   /**
@@ -1132,6 +1597,10 @@ public final class Lua
   {
     apiCheck(t instanceof LuaTable);
     LuaTable h = (LuaTable)t;
+    if (h.isFrozen())
+    {
+      gRunerror(LuaTable.FROZEN);
+    }
     h.putnum(i, v);
   }
 
@@ -1160,7 +1629,7 @@ public final class Lua
     {
       if (status != 0)
         return resume_error("cannot resume dead coroutine");
-      else if (civ.size() != 1)
+      else if (ici != 0)
         return resume_error("cannot resume non-suspended coroutine");
     }
     // assert errfunc == 0 && nCcalls == 0;
@@ -1172,7 +1641,7 @@ protect:
       int firstArg = stackSize - narg;
       if (status == 0)  // start coroutine?
       {
-        // assert civ.size() == 1 && firstArg > base);
+        // assert ici == 0 && firstArg > base);
         if (vmPrecall(firstArg - 1, MULTRET) != PCRLUA)
           break protect;
       }
@@ -1190,7 +1659,7 @@ protect:
         else    // yielded inside a hook: just continue its execution
           base = ci().base();
       }
-      vmExecute(civ.size() - 1);
+      vmExecute(ici);
     }
     catch (LuaError e)
     {
@@ -1198,6 +1667,7 @@ protect:
       dSeterrorobj(e.errorStatus, stackSize);
       ci().setTop(stackSize);
     }
+    checkstacksizes(true);
     return status;
   }
 
@@ -1273,12 +1743,21 @@ protect:
     if (o instanceof LuaTable)
     {
       LuaTable t = (LuaTable)o;
+      if (t.isFrozen())
+      {
+        gRunerror(LuaTable.FROZEN);
+      }
       t.setMetatable(mtt);
     }
     else if (o instanceof LuaUserdata)
     {
       LuaUserdata u = (LuaUserdata)o;
       u.setMetatable(mtt);
+      if (!u.finalizable() && mtt != null &&
+          mtt.getlua("__gc") != NIL)
+      {
+        registerFinalizer(u);
+      }
     }
     else
     {
@@ -1286,6 +1765,72 @@ protect:
     }
   }
 
+  /**
+   * Arranges for the __gc metamethod of <var>u</var> to be called
+   * once it has been collected.  Java cannot resurrect <var>u</var>
+   * itself so __gc is passed a fresh userdata wrapping the same
+   * object, with the same metatable and environment; see {@link
+   * Finalizer}.  As in PUC-Rio the metatable must have __gc when it is
+   * set for this to happen.
+   */
+  private void registerFinalizer(LuaUserdata u)
+  {
+    if (finalizers.size() >= gcthreshold)
+    {
+      runFinalizers();
+      gcthreshold = Math.max(MINFINALIZERS, 2*finalizers.size());
+    }
+    finalizers.addElement(new Finalizer(u));
+  }
+
+  /**
+   * Calls the __gc metamethod for every registered userdata that has
+   * been collected.  CLDC has no ReferenceQueue so this polls the
+   * registry; it is called after a collection is requested with
+   * {@link #gc} and when registering a userdata finds the registry
+   * has doubled in size.  Errors in __gc are ignored.
+   */
+  private void runFinalizers()
+  {
+    Vector dead = null;
+    int j = 0;
+    for (int i=0; i<finalizers.size(); ++i)
+    {
+      Finalizer f = (Finalizer)finalizers.elementAt(i);
+      if (f.get() == null)
+      {
+        if (dead == null)
+        {
+          dead = new Vector();
+        }
+        dead.addElement(f);
+      }
+      else
+      {
+        finalizers.setElementAt(f, j++);
+      }
+    }
+    finalizers.setSize(j);
+    if (dead == null)
+    {
+      return;
+    }
+    int top = getTop();
+    for (int i=0; i<dead.size(); ++i)
+    {
+      Finalizer f = (Finalizer)dead.elementAt(i);
+      Object gc = f.metatable.getlua("__gc");
+      if (gc == NIL)
+      {
+        continue;
+      }
+      push(gc);
+      push(f.resurrect());
+      pcall(1, 0, null);
+      setTop(top);
+    }
+  }
+
   /**
    * Set a global variable.
    * @param name   name of the global variable to set.
@@ -1375,21 +1920,47 @@ protect:
    */
   public double toNumber(Object o)
   {
-    SPARE_SLOT.setObject(o);
-    if (tonumber(SPARE_SLOT, NUMOP))
+    spare.setObject(o);
+    if (tonumber(spare, numop))
     {
-      return NUMOP[0];
+      return numop[0];
     }
     return 0;
   }
 
   /**
-   * Convert to string and return it.  If value cannot be converted then
-   * <code>null</code> is returned.  Note that unlike
-   * <code>lua_tostring</code> this
-   * does not modify the Lua value.
-   * @param o  Lua value to convert.
-   * @return  The resulting string.
+   * Convert the value at a stack index to number and return it.
+   * Returns 0 if cannot be converted.  Equivalent to
+   * <code>L.toNumber(L.value(idx))</code> but does not create a
+   * {@link Double} instance.
+   * @param idx  stack index of value to convert.
+   * @return  The resulting number.
+   */
+  public double toNumber(int idx)
+  {
+    idx = absIndex(idx);
+    if (idx < 0)
+    {
+      return 0;
+    }
+    if (ref[idx] == NUMBER)
+    {
+      return num[idx];
+    }
+    if (tonumber(ref[idx], numop))
+    {
+      return numop[0];
+    }
+    return 0;
+  }
+
+  /**
+   * Convert to string and return it.  If value cannot be converted then
+   * <code>null</code> is returned.  Note that unlike
+   * <code>lua_tostring</code> this
+   * does not modify the Lua value.
+   * @param o  Lua value to convert.
+   * @return  The resulting string.
    */
   public String toString(Object o)
   {
@@ -1438,7 +2009,11 @@ protect:
     {
       return TNONE;
     }
-    return type(stack[idx]);
+    if (ref[idx] == NUMBER)
+    {
+      return TNUMBER;
+    }
+    return type(ref[idx]);
   }
 
   private int type(Slot s)
@@ -1520,7 +2095,7 @@ protect:
     {
       return NIL;
     }
-    return stack[idx].asObject();
+    return objectAt(idx);
   }
 
   /**
@@ -1552,7 +2127,15 @@ protect:
    */
   public static Object valueOfNumber(double d)
   {
-    // :todo: consider interning "common" numbers, like 0, 1, -1, etc.
+    if (d >= SMALLMIN && d < SMALLMAX)
+    {
+      int i = (int)d;
+      // 1/d distinguishes -0.0, which must not be interned as 0.
+      if (i == d && (i != 0 || 1/d > 0))
+      {
+        return SMALL[i - SMALLMIN];
+      }
+    }
     return new Double(d);
   }
 
@@ -1746,13 +2329,21 @@ protect:
    */
   public double checkNumber(int narg)
   {
-    Object o = value(narg);
-    double d = toNumber(o);
-    if (d == 0 && !isNumber(o))
+    int idx = absIndex(narg);
+    if (idx >= 0)
     {
-      tagError(narg, TNUMBER);
+      if (ref[idx] == NUMBER)
+      {
+        return num[idx];
+      }
+      if (tonumber(ref[idx], numop))
+      {
+        return numop[0];
+      }
     }
-    return d;
+    tagError(narg, TNUMBER);
+    // NOTREACHED
+    return 0;
   }
 
   /**
@@ -1902,8 +2493,10 @@ protect:
    * used in a call to {@link Class#getResourceAsStream} where
    * <code>this</code> is the {@link Lua} instance, thus relative
    * pathnames will be relative to the location of the
-   * <code>Lua.class</code> file.  Pushes compiled chunk, or error
-   * message, onto stack.
+   * <code>Lua.class</code> file.  If the application includes a class
+   * compiled ahead of time from the file (see {@link CompiledChunk}),
+   * the chunk is loaded from that instead, without parsing.  Pushes
+   * compiled chunk, or error message, onto stack.
    * @param filename  location of file.
    * @return status code, as per {@link #load}.
    */
@@ -1913,6 +2506,12 @@ protect:
     {
       throw new NullPointerException();
     }
+    Proto p = CompiledChunk.find(CompiledChunk.classname(filename));
+    if (p != null)
+    {
+      push(new LuaFunction(p, new UpVal[0], getGlobals()));
+      return 0;
+    }
     InputStream in = getClass().getResourceAsStream(filename);
     if (in == null)
     {
@@ -2093,8 +2692,8 @@ protect:
     // :todo: complete me
     if (ar.ici() > 0)   // no tail call?
     {
-      callinfo = (CallInfo)civ.elementAt(ar.ici());
-      f = stack[callinfo.function()].r;
+      callinfo = civ[ar.ici()];
+      f = ref[callinfo.function()];
       //# assert isFunction(f)
     }
     boolean status = auxgetinfo(what, ar, f, callinfo);
@@ -2124,9 +2723,9 @@ protect:
   {
     int ici;    // Index of CallInfo
 
-    for (ici=civ.size()-1; level > 0 && ici > 0; --ici)
+    for (ici=this.ici; level > 0 && ici > 0; --ici)
     {
-      CallInfo ci = (CallInfo)civ.elementAt(ici);
+      CallInfo ci = civ[ici];
       --level;
       if (isLua(ci))                    // Lua function?
       {
@@ -2145,7 +2744,10 @@ protect:
   }
 
   /**
-   * Sets the debug hook.
+   * Sets the debug hook.  May be called from another thread, for
+   * example to preempt a running script with a count hook.  A running
+   * Lua function notices the change at its next safe point: a call, a
+   * return, or a jump back to the start of a loop.
    */
   public void setHook(Hook func, int mask, int count)
   {
@@ -2200,7 +2802,7 @@ protect:
     }
     else
     {
-      Object faso = stack[ci.function()].r;
+      Object faso = ref[ci.function()];
       LuaFunction f = (LuaFunction)faso;
       return f.proto().getline(pc);
     }
@@ -2241,7 +2843,7 @@ protect:
   /** Equivalent to macro isLua _and_ f_isLua from lstate.h. */
   private boolean isLua(CallInfo callinfo)
   {
-    Object f = stack[callinfo.function()].r;
+    Object f = ref[callinfo.function()];
     return f instanceof LuaFunction;
   }
 
@@ -2266,7 +2868,7 @@ protect:
     {
       int top = stackSize;
       int ci_top = ci().top();
-      int ici = civ.size() - 1;
+      int ici = this.ici;
       if (event == HOOKTAILRET) // not supported yet
       {
         ici = 0;
@@ -2300,11 +2902,11 @@ protect:
     switch (errcode)
     {
       case ERRMEM:
-        stack[oldtop].r = MEMERRMSG;
+        ref[oldtop] = MEMERRMSG;
         break;
 
       case ERRERR:
-        stack[oldtop].r = "error in error handling";
+        ref[oldtop] = "error in error handling";
         break;
 
       case ERRFILE:
@@ -2318,7 +2920,7 @@ protect:
 
   void dThrow(int status)
   {
-    throw new LuaError(status);
+    throw LuaError.make(status);
   }
 
 
@@ -2333,43 +2935,44 @@ protect:
    */
   private void fClose(int level)
   {
-    int i = openupval.size();
-    while (--i >= 0)
+    UpVal uv;
+    while ((uv = openupval) != null && uv.offset() >= level)
     {
-      UpVal uv = (UpVal)openupval.elementAt(i);
-      if (uv.offset() < level)
-      {
-        break;
-      }
+      openupval = uv.next;      // remove from 'open' list
+      uv.next = null;
       uv.close();
     }
-    openupval.setSize(i+1);
-    return;
   }
 
+  /** Equivalent of luaF_findupval. */
   private UpVal fFindupval(int idx)
   {
     /*
-     * We search from the end of the Vector towards the beginning,
-     * looking for an UpVal for the required stack-slot.
+     * We search from the head of the list (the highest stack-slot)
+     * downwards, looking for an UpVal for the required stack-slot.
      */
-    int i = openupval.size();
-    while (--i >= 0)
+    UpVal prev = null;
+    UpVal p = openupval;
+    while (p != null && p.offset() >= idx)
     {
-      UpVal uv = (UpVal)openupval.elementAt(i);
-      if (uv.offset() == idx)
-      {
-        return uv;
-      }
-      if (uv.offset() < idx)
+      if (p.offset() == idx)
       {
-        break;
+        return p;
       }
+      prev = p;
+      p = p.next;
+    }
+    // Not found: create a new one and link it in between prev and p.
+    UpVal uv = new UpVal(this, idx);
+    uv.next = p;
+    if (prev == null)
+    {
+      openupval = uv;
+    }
+    else
+    {
+      prev.next = uv;
     }
-    // i points to be position _after_ which we want to insert a new
-    // UpVal (it's -1 when we want to insert at the beginning).
-    UpVal uv = new UpVal(idx, stack[idx]);
-    openupval.insertElementAt(uv, i+1);
     return uv;
   }
 
@@ -2380,7 +2983,7 @@ protect:
   // Methods equivalent to the file ldebug.c.  Prefixed with g.
 
   /** <var>p1</var> and <var>p2</var> are operands to a numeric opcode.
-   * Corrupts <code>NUMOP[0]</code>.
+   * Corrupts <code>numop[0]</code>.
    * There is the possibility of using <var>p1</var> and <var>p2</var> to
    * identify (for example) for local variable being used in the
    * computation (consider the error message for code like <code>local
@@ -2390,7 +2993,7 @@ protect:
    */
   private void gAritherror(Slot p1, Slot p2)
   {
-    if (!tonumber(p1, NUMOP))
+    if (!tonumber(p1, numop))
     {
       p2 = p1;  // first operand is wrong
     }
@@ -2400,12 +3003,12 @@ protect:
   /** <var>p1</var> and <var>p2</var> are absolute stack indexes. */
   private void gConcaterror(int p1, int p2)
   {
-    if (stack[p1].r instanceof String)
+    if (ref[p1] instanceof String)
     {
       p1 = p2;
     }
     // assert !(p1 instanceof String);
-    gTypeerror(stack[p1], "concatenate");
+    gTypeerror(objectAt(p1), "concatenate");
   }
 
   boolean gCheckcode(Proto p)
@@ -2554,44 +3157,102 @@ protect:
     return a.equals(b);
   }
 
-  /** Equivalent to luaO_str2d. */
+  /**
+   * Equivalent to luaO_str2d.  The syntax is checked before calling
+   * Double.parseDouble so that strings which are not numbers, common
+   * in scripts using tonumber for validation, are rejected without
+   * throwing.  Leading and trailing whitespace is allowed; the
+   * hexadecimal form is an optional sign, 0x, and hex digits.
+   */
   private static boolean oStr2d(String s, double[] out)
   {
-    // :todo: using try/catch may be too slow.  In which case we'll have
-    // to recognise the valid formats first.
-    try
+    int n = s.length();
+    int i = 0;
+    while (i < n && Syntax.isspace(s.charAt(i)))
     {
-      out[0] = Double.parseDouble(s);
-      return true;
+      ++i;
     }
-    catch (NumberFormatException e0_)
+    int start = i;
+    if (i < n && (s.charAt(i) == '-' || s.charAt(i) == '+'))
     {
-      try
+      ++i;
+    }
+    double d;
+    if (i+1 < n && s.charAt(i) == '0' &&
+        (s.charAt(i+1) == 'x' || s.charAt(i+1) == 'X'))
+    {
+      i += 2;
+      int digits = i;
+      d = 0;
+      while (i < n)
       {
-        // Attempt hexadecimal conversion.
-        // :todo: using String.trim is not strictly accurate, because it
-        // trims other ASCII control characters as well as whitespace.
-        s = s.trim().toUpperCase();
-        if (s.startsWith("0X"))
-        {
-          s = s.substring(2);
-        }
-        else if (s.startsWith("-0X"))
+        int h = Character.digit(s.charAt(i), 16);
+        if (h < 0)
         {
-          s = "-" + s.substring(3);
+          break;
         }
-        else
+        d = d*16 + h;
+        ++i;
+      }
+      if (i == digits)
+      {
+        return false;
+      }
+      if (s.charAt(start) == '-')
+      {
+        d = -d;
+      }
+    }
+    else
+    {
+      int digits = 0;
+      while (i < n && Syntax.isdigit(s.charAt(i)))
+      {
+        ++i;
+        ++digits;
+      }
+      if (i < n && s.charAt(i) == '.')
+      {
+        ++i;
+        while (i < n && Syntax.isdigit(s.charAt(i)))
         {
-          return false;
+          ++i;
+          ++digits;
         }
-        out[0] = Integer.parseInt(s, 16);
-        return true;
       }
-      catch (NumberFormatException e1_)
+      if (digits == 0)
       {
         return false;
       }
+      if (i < n && (s.charAt(i) == 'e' || s.charAt(i) == 'E'))
+      {
+        ++i;
+        if (i < n && (s.charAt(i) == '-' || s.charAt(i) == '+'))
+        {
+          ++i;
+        }
+        int expdigits = i;
+        while (i < n && Syntax.isdigit(s.charAt(i)))
+        {
+          ++i;
+        }
+        if (i == expdigits)
+        {
+          return false;
+        }
+      }
+      d = Double.parseDouble(s.substring(start, i));
+    }
+    while (i < n && Syntax.isspace(s.charAt(i)))
+    {
+      ++i;
+    }
+    if (i != n)
+    {
+      return false;
     }
+    out[0] = d;
+    return true;
   }
 
 
@@ -2734,15 +3395,16 @@ protect:
    * Near equivalent of macros RKB and RKC.  Note: non-static as it
    * requires stack and base instance members.  Stands for "Register or
    * Konstant" by the way, it gets value from either the register file
-   * (stack) or the constant array (k).
+   * (stack) or the constant array (k).  A register is copied into
+   * <var>s</var>, which is returned.
    */
-  private Slot RK(Slot[] k, int field)
+  private Slot RK(Slot[] k, int field, Slot s)
   {
     if (ISK(field))
     {
       return k[field & 0xff];
     }
-    return stack[base + field];
+    return slotAt(base + field, s);
   }
 
   /**
@@ -2750,11 +3412,11 @@ protect:
    * recommend for routine use, but is used by some error handling code
    * to avoid having a constant array passed around too much.
    */
-  private Slot RK(int field)
+  private Slot RK(int field, Slot s)
   {
-    LuaFunction function = (LuaFunction)stack[ci().function()].r;
+    LuaFunction function = (LuaFunction)ref[ci().function()];
     Slot[] k = function.proto().constant();
-    return RK(k, field);
+    return RK(k, field, s);
   }
 
   // CREATE functions are required by FuncState, so default access.
@@ -2821,6 +3483,34 @@ protect:
   static final int OP_CLOSURE = 36;
   static final int OP_VARARG = 37;
 
+  // Quickened opcodes, see quicken.  The suffix gives the operand
+  // kinds: N for a register holding a number, K for a numeric
+  // constant.  They are never seen outside vmExecute.
+  static final int OP_ADD_NN = 38;
+  static final int OP_ADD_NK = 39;
+  static final int OP_SUB_NN = 40;
+  static final int OP_SUB_NK = 41;
+  static final int OP_MUL_NN = 42;
+  static final int OP_MUL_NK = 43;
+  static final int OP_DIV_NN = 44;
+  static final int OP_DIV_NK = 45;
+  static final int OP_LT_NN = 46;
+  static final int OP_LT_NK = 47;
+  static final int OP_LT_KN = 48;
+  static final int OP_LE_NN = 49;
+  static final int OP_LE_NK = 50;
+  static final int OP_LE_KN = 51;
+
+  // Superinstructions, see Proto.fuse.  Named after the pair of
+  // instructions that each executes.  Also never seen outside
+  // vmExecute.
+  static final int OP_MOVE_MOVE = 52;
+  static final int OP_LOADK_LOADK = 53;
+  static final int OP_GETGLOBAL_GETTABLE = 54;
+  static final int OP_MOVE_CALL = 55;
+  static final int OP_LOADK_CALL = 56;
+  static final int OP_GETTABLE_CALL = 57;
+
   // end of instruction decomposition
 
   static final int SIZE_C = 9;
@@ -2873,18 +3563,18 @@ protect:
       int n = 2;  // number of elements handled in this pass (at least 2)
       if (!tostring(top-2)|| !tostring(top-1))
       {
-        if (!call_binTM(stack[top-2], stack[top-1],
-            stack[top-2], "__concat"))
+        if (!call_binTM(slotAt(top-2, opb), slotAt(top-1, opc),
+            top-2, "__concat"))
         {
           gConcaterror(top-2, top-1);
         }
       }
-      else if (((String)stack[top-1].r).length() > 0)
+      else if (((String)ref[top-1]).length() > 0)
       {
-        int tl = ((String)stack[top-1].r).length();
+        int tl = ((String)ref[top-1]).length();
         for (n = 1; n < total && tostring(top-n-1); ++n)
         {
-          tl += ((String)stack[top-n-1].r).length();
+          tl += ((String)ref[top-n-1]).length();
           if (tl < 0)
           {
             gRunerror("string length overflow");
@@ -2893,9 +3583,9 @@ protect:
         StringBuffer buffer = new StringBuffer(tl);
         for (int i=n; i>0; i--)         // concat all strings
         {
-          buffer.append(stack[top-i].r);
+          buffer.append(ref[top-i]);
         }
-        stack[top-n].r = buffer.toString();
+        ref[top-n] = buffer.toString();
       }
       total -= n-1;     // got n strings to create 1 new
       last -= n-1;
@@ -2958,8 +3648,9 @@ protect:
   /**
    * Array of numeric operands.  Used when converting strings to numbers
    * by an arithmetic opcode (ADD, SUB, MUL, DIV, MOD, POW, UNM).
+   * Per Lua thread for the same reason as {@link #spare}.
    */
-  private static final double[] NUMOP = new double[2];
+  private final double[] numop = new double[2];
 
   /** The core VM execution engine. */
   private void vmExecute(int nexeccalls)
@@ -2971,12 +3662,18 @@ protect:
 reentry:
     while (true)
     {
-      // assert stack[ci.function()].r instanceof LuaFunction;
-      LuaFunction function = (LuaFunction)stack[ci().function()].r;
+      // assert ref[ci.function()] instanceof LuaFunction;
+      LuaFunction function = (LuaFunction)ref[ci().function()];
       Proto proto = function.proto();
-      int[] code = proto.code();
+      Tier tier = proto.tier;           // one snapshot, see Proto.tier
+      int[] code = tier != null ? tier.exec : proto.code;
       Slot[] k = proto.constant();
+      InlineCache[] ic = tier != null ? tier.ic : null;
       int pc = savedpc;
+      // Copy of hookmask != 0, refreshed at safe points (calls,
+      // returns, and loop back edges) so that when no hook is set each
+      // instruction only tests a local.
+      boolean hooked = hookmask != 0;
 
       while (true)        // main loop of interpreter
       {
@@ -2990,7 +3687,7 @@ reentry:
 
         int i = code[pc++];       // VM instruction.
         // :todo: line hook
-        if ((hookmask & MASKCOUNT) != 0 && --hookcount == 0)
+        if (hooked && (hookmask & MASKCOUNT) != 0 && --hookcount == 0)
         {
           traceexec(pc);
           if (status == YIELD)  // did hook yield?
@@ -3007,16 +3704,47 @@ reentry:
 
         switch (OPCODE(i))
         {
+          // Superinstructions.  These only occur in Tier.exec; see
+          // Proto.fuse.  Each executes its own instruction and then,
+          // unless a hook is set, the following one, saving a
+          // dispatch.  The following instruction is unchanged at the
+          // next pc, so jumps to it and its line info are unaffected.
+          // Where the following instruction is not trivial the
+          // superinstruction falls through into its case.
+          case OP_MOVE_MOVE:
+            ref[base+a] = ref[base+ARGB(i)];
+            num[base+a] = num[base+ARGB(i)];
+            if (hooked)
+            {
+              continue;
+            }
+            i = code[pc++];
+            a = ARGA(i);
+            ref[base+a] = ref[base+ARGB(i)];
+            num[base+a] = num[base+ARGB(i)];
+            continue;
+          case OP_LOADK_LOADK:
+            ref[base+a] = k[ARGBx(i)].r;
+            num[base+a] = k[ARGBx(i)].d;
+            if (hooked)
+            {
+              continue;
+            }
+            i = code[pc++];
+            a = ARGA(i);
+            ref[base+a] = k[ARGBx(i)].r;
+            num[base+a] = k[ARGBx(i)].d;
+            continue;
           case OP_MOVE:
-            stack[base+a].r = stack[base+ARGB(i)].r;
-            stack[base+a].d = stack[base+ARGB(i)].d;
+            ref[base+a] = ref[base+ARGB(i)];
+            num[base+a] = num[base+ARGB(i)];
             continue;
           case OP_LOADK:
-            stack[base+a].r = k[ARGBx(i)].r;
-            stack[base+a].d = k[ARGBx(i)].d;
+            ref[base+a] = k[ARGBx(i)].r;
+            num[base+a] = k[ARGBx(i)].d;
             continue;
           case OP_LOADBOOL:
-            stack[base+a].r = valueOfBoolean(ARGB(i) != 0);
+            ref[base+a] = valueOfBoolean(ARGB(i) != 0);
             if (ARGC(i) != 0)
             {
               ++pc;
@@ -3027,7 +3755,7 @@ reentry:
             int b = base + ARGB(i);
             do
             {
-              stack[b--].r = NIL;
+              ref[b--] = NIL;
             } while (b >= base + a);
             continue;
           }
@@ -3042,13 +3770,46 @@ reentry:
             rb = k[ARGBx(i)];
             // assert rb instance of String;
             savedpc = pc; // Protect
-            vmGettable(function.getEnv(), rb, stack[base+a]);
+            if (ic != null)
+            {
+              vmGettableK(function.getEnv(), rb, base+a, ic, pc-1);
+            }
+            else
+            {
+              vmGettable(function.getEnv(), rb, base+a);
+            }
             continue;
+          case OP_GETGLOBAL_GETTABLE:
+            rb = k[ARGBx(i)];
+            savedpc = pc; // Protect
+            if (ic != null)
+            {
+              vmGettableK(function.getEnv(), rb, base+a, ic, pc-1);
+            }
+            else
+            {
+              vmGettable(function.getEnv(), rb, base+a);
+            }
+            if (hooked)
+            {
+              continue;
+            }
+            i = code[pc++];
+            a = ARGA(i);
+            // FALLTHROUGH
           case OP_GETTABLE:
           {
             savedpc = pc; // Protect
-            Object h = stack[base+ARGB(i)].asObject();
-            vmGettable(h, RK(k, ARGC(i)), stack[base+a]);
+            Object h = objectAt(base+ARGB(i));
+            int c = ARGC(i);
+            if (ic != null && ISK(c) && k[c-BITRK].r instanceof String)
+            {
+              vmGettableK(h, k[c-BITRK], base+a, ic, pc-1);
+            }
+            else
+            {
+              vmGettable(h, RK(k, c, opc), base+a);
+            }
             continue;
           }
           case OP_SETUPVAL:
@@ -3066,160 +3827,189 @@ reentry:
           case OP_SETTABLE:
           {
             savedpc = pc; // Protect
-            Object t = stack[base+a].asObject();
-            vmSettable(t, RK(k, ARGB(i)), RK(k, ARGC(i)).asObject());
+            Object t = objectAt(base+a);
+            rb = RK(k, ARGB(i), opb);
+            rc = RK(k, ARGC(i), opc);
+            if (!(t instanceof LuaTable) || !((LuaTable)t).putarray(rb, rc))
+            {
+              vmSettable(t, rb, rc.asObject());
+            }
             continue;
           }
           case OP_NEWTABLE:
           {
             int b = ARGB(i);
             int c = ARGC(i);
-            stack[base+a].r = new LuaTable(oFb2int(b), oFb2int(c));
+            ref[base+a] = new LuaTable(oFb2int(b), oFb2int(c));
             continue;
           }
           case OP_SELF:
           {
             int b = ARGB(i);
-            rb = stack[base+b];
-            stack[base+a+1].r = rb.r;
-            stack[base+a+1].d = rb.d;
+            rb = slotAt(base+b, opb);
+            ref[base+a+1] = rb.r;
+            num[base+a+1] = rb.d;
             savedpc = pc; // Protect
-            vmGettable(rb.asObject(), RK(k, ARGC(i)), stack[base+a]);
+            int c = ARGC(i);
+            if (ic != null && ISK(c) && k[c-BITRK].r instanceof String)
+            {
+              vmGettableK(rb.asObject(), k[c-BITRK], base+a, ic, pc-1);
+            }
+            else
+            {
+              vmGettable(rb.asObject(), RK(k, c, opc), base+a);
+            }
             continue;
           }
           case OP_ADD:
-            rb = RK(k, ARGB(i));
-            rc = RK(k, ARGC(i));
+            rb = RK(k, ARGB(i), opb);
+            rc = RK(k, ARGC(i), opc);
             if (rb.r == NUMBER && rc.r == NUMBER)
             {
               double sum = rb.d + rc.d;
-              stack[base+a].d = sum;
-              stack[base+a].r = NUMBER;
+              num[base+a] = sum;
+              ref[base+a] = NUMBER;
+              if (code != proto.code)
+              {
+                quicken(code, pc-1, OP_ADD_NN, OP_ADD_NK, -1);
+              }
             }
-            else if (toNumberPair(rb, rc, NUMOP))
+            else if (toNumberPair(rb, rc, numop))
             {
-              double sum = NUMOP[0] + NUMOP[1];
-              stack[base+a].d = sum;
-              stack[base+a].r = NUMBER;
+              double sum = numop[0] + numop[1];
+              num[base+a] = sum;
+              ref[base+a] = NUMBER;
             }
-            else if (!call_binTM(rb, rc, stack[base+a], "__add"))
+            else if (!call_binTM(rb, rc, base+a, "__add"))
             {
               gAritherror(rb, rc);
             }
             continue;
           case OP_SUB:
-            rb = RK(k, ARGB(i));
-            rc = RK(k, ARGC(i));
+            rb = RK(k, ARGB(i), opb);
+            rc = RK(k, ARGC(i), opc);
             if (rb.r == NUMBER && rc.r == NUMBER)
             {
               double difference = rb.d - rc.d;
-              stack[base+a].d = difference;
-              stack[base+a].r = NUMBER;
+              num[base+a] = difference;
+              ref[base+a] = NUMBER;
+              if (code != proto.code)
+              {
+                quicken(code, pc-1, OP_SUB_NN, OP_SUB_NK, -1);
+              }
             }
-            else if (toNumberPair(rb, rc, NUMOP))
+            else if (toNumberPair(rb, rc, numop))
             {
-              double difference = NUMOP[0] - NUMOP[1];
-              stack[base+a].d = difference;
-              stack[base+a].r = NUMBER;
+              double difference = numop[0] - numop[1];
+              num[base+a] = difference;
+              ref[base+a] = NUMBER;
             }
-            else if (!call_binTM(rb, rc, stack[base+a], "__sub"))
+            else if (!call_binTM(rb, rc, base+a, "__sub"))
             {
               gAritherror(rb, rc);
             }
             continue;
           case OP_MUL:
-            rb = RK(k, ARGB(i));
-            rc = RK(k, ARGC(i));
+            rb = RK(k, ARGB(i), opb);
+            rc = RK(k, ARGC(i), opc);
             if (rb.r == NUMBER && rc.r == NUMBER)
             {
               double product = rb.d * rc.d;
-              stack[base+a].d = product;
-              stack[base+a].r = NUMBER;
+              num[base+a] = product;
+              ref[base+a] = NUMBER;
+              if (code != proto.code)
+              {
+                quicken(code, pc-1, OP_MUL_NN, OP_MUL_NK, -1);
+              }
             }
-            else if (toNumberPair(rb, rc, NUMOP))
+            else if (toNumberPair(rb, rc, numop))
             {
-              double product = NUMOP[0] * NUMOP[1];
-              stack[base+a].d = product;
-              stack[base+a].r = NUMBER;
+              double product = numop[0] * numop[1];
+              num[base+a] = product;
+              ref[base+a] = NUMBER;
             }
-            else if (!call_binTM(rb, rc, stack[base+a], "__mul"))
+            else if (!call_binTM(rb, rc, base+a, "__mul"))
             {
               gAritherror(rb, rc);
             }
             continue;
           case OP_DIV:
-            rb = RK(k, ARGB(i));
-            rc = RK(k, ARGC(i));
+            rb = RK(k, ARGB(i), opb);
+            rc = RK(k, ARGC(i), opc);
             if (rb.r == NUMBER && rc.r == NUMBER)
             {
               double quotient = rb.d / rc.d;
-              stack[base+a].d = quotient;
-              stack[base+a].r = NUMBER;
+              num[base+a] = quotient;
+              ref[base+a] = NUMBER;
+              if (code != proto.code)
+              {
+                quicken(code, pc-1, OP_DIV_NN, OP_DIV_NK, -1);
+              }
             }
-            else if (toNumberPair(rb, rc, NUMOP))
+            else if (toNumberPair(rb, rc, numop))
             {
-              double quotient = NUMOP[0] / NUMOP[1];
-              stack[base+a].d = quotient;
-              stack[base+a].r = NUMBER;
+              double quotient = numop[0] / numop[1];
+              num[base+a] = quotient;
+              ref[base+a] = NUMBER;
             }
-            else if (!call_binTM(rb, rc, stack[base+a], "__div"))
+            else if (!call_binTM(rb, rc, base+a, "__div"))
             {
               gAritherror(rb, rc);
             }
             continue;
           case OP_MOD:
-            rb = RK(k, ARGB(i));
-            rc = RK(k, ARGC(i));
+            rb = RK(k, ARGB(i), opb);
+            rc = RK(k, ARGC(i), opc);
             if (rb.r == NUMBER && rc.r == NUMBER)
             {
               double modulus = modulus(rb.d, rc.d);
-              stack[base+a].d = modulus;
-              stack[base+a].r = NUMBER;
+              num[base+a] = modulus;
+              ref[base+a] = NUMBER;
             }
-            else if (toNumberPair(rb, rc, NUMOP))
+            else if (toNumberPair(rb, rc, numop))
             {
-              double modulus = modulus(NUMOP[0], NUMOP[1]);
-              stack[base+a].d = modulus;
-              stack[base+a].r = NUMBER;
+              double modulus = modulus(numop[0], numop[1]);
+              num[base+a] = modulus;
+              ref[base+a] = NUMBER;
             }
-            else if (!call_binTM(rb, rc, stack[base+a], "__mod"))
+            else if (!call_binTM(rb, rc, base+a, "__mod"))
             {
               gAritherror(rb, rc);
             }
             continue;
           case OP_POW:
-            rb = RK(k, ARGB(i));
-            rc = RK(k, ARGC(i));
+            rb = RK(k, ARGB(i), opb);
+            rc = RK(k, ARGC(i), opc);
             if (rb.r == NUMBER && rc.r == NUMBER)
             {
               double result = iNumpow(rb.d, rc.d);
-              stack[base+a].d = result;
-              stack[base+a].r = NUMBER;
+              num[base+a] = result;
+              ref[base+a] = NUMBER;
             }
-            else if (toNumberPair(rb, rc, NUMOP))
+            else if (toNumberPair(rb, rc, numop))
             {
-              double result = iNumpow(NUMOP[0], NUMOP[1]);
-              stack[base+a].d = result;
-              stack[base+a].r = NUMBER;
+              double result = iNumpow(numop[0], numop[1]);
+              num[base+a] = result;
+              ref[base+a] = NUMBER;
             }
-            else if (!call_binTM(rb, rc, stack[base+a], "__pow"))
+            else if (!call_binTM(rb, rc, base+a, "__pow"))
             {
               gAritherror(rb, rc);
             }
             continue;
           case OP_UNM:
-            rb = stack[base+ARGB(i)];
+            rb = slotAt(base+ARGB(i), opb);
             if (rb.r == NUMBER)
             {
-              stack[base+a].d = -rb.d;
-              stack[base+a].r = NUMBER;
+              num[base+a] = -rb.d;
+              ref[base+a] = NUMBER;
             }
-            else if (tonumber(rb, NUMOP))
+            else if (tonumber(rb, numop))
             {
-              stack[base+a].d = -NUMOP[0];
-              stack[base+a].r = NUMBER;
+              num[base+a] = -numop[0];
+              ref[base+a] = NUMBER;
             }
-            else if (!call_binTM(rb, rb, stack[base+a], "__unm"))
+            else if (!call_binTM(rb, rb, base+a, "__unm"))
             {
               gAritherror(rb, rb);
             }
@@ -3228,28 +4018,28 @@ reentry:
           {
             // All numbers are treated as true, so no need to examine
             // the .d field.
-            Object ra = stack[base+ARGB(i)].r;
-            stack[base+a].r = valueOfBoolean(isFalse(ra));
+            Object ra = ref[base+ARGB(i)];
+            ref[base+a] = valueOfBoolean(isFalse(ra));
             continue;
           }
           case OP_LEN:
-            rb = stack[base+ARGB(i)];
+            rb = slotAt(base+ARGB(i), opb);
             if (rb.r instanceof LuaTable)
             {
               LuaTable t = (LuaTable)rb.r;
-              stack[base+a].d = t.getn();
-              stack[base+a].r = NUMBER;
+              num[base+a] = t.getn();
+              ref[base+a] = NUMBER;
               continue;
             }
             else if (rb.r instanceof String)
             {
               String s = (String)rb.r;
-              stack[base+a].d = s.length();
-              stack[base+a].r = NUMBER;
+              num[base+a] = s.length();
+              ref[base+a] = NUMBER;
               continue;
             }
             savedpc = pc; // Protect
-            if (!call_binTM(rb, rb, stack[base+a], "__len"))
+            if (!call_binTM(rb, rb, base+a, "__len"))
             {
               gTypeerror(rb, "get length of");
             }
@@ -3265,17 +4055,30 @@ reentry:
             // converting each stack slot, but simply using
             // StringBuffer.append on whatever is there).
             vmConcat(c - b + 1, c);
-            stack[base+a].r = stack[base+b].r;
-            stack[base+a].d = stack[base+b].d;
+            ref[base+a] = ref[base+b];
+            num[base+a] = num[base+b];
             continue;
           }
           case OP_JMP:
+          {
+            int sbx = ARGsBx(i);
             // dojump
-            pc += ARGsBx(i);
+            pc += sbx;
+            if (sbx < 0)
+            {
+              hooked = hookmask != 0;
+              if (ic == null && ++proto.hotness >= hotcount)
+              {
+                tier = proto.tierUp();
+                ic = tier.ic;
+                code = tier.exec;
+              }
+            }
             continue;
+          }
           case OP_EQ:
-            rb = RK(k, ARGB(i));
-            rc = RK(k, ARGC(i));
+            rb = RK(k, ARGB(i), opb);
+            rc = RK(k, ARGC(i), opc);
             if (vmEqual(rb, rc) == (a != 0))
             {
               // dojump
@@ -3284,8 +4087,12 @@ reentry:
             ++pc;
             continue;
           case OP_LT:
-            rb = RK(k, ARGB(i));
-            rc = RK(k, ARGC(i));
+            rb = RK(k, ARGB(i), opb);
+            rc = RK(k, ARGC(i), opc);
+            if (rb.r == NUMBER && rc.r == NUMBER && code != proto.code)
+            {
+              quicken(code, pc-1, OP_LT_NN, OP_LT_NK, OP_LT_KN);
+            }
             savedpc = pc; // Protect
             if (vmLessthan(rb, rc) == (a != 0))
             {
@@ -3295,8 +4102,12 @@ reentry:
             ++pc;
             continue;
           case OP_LE:
-            rb = RK(k, ARGB(i));
-            rc = RK(k, ARGC(i));
+            rb = RK(k, ARGB(i), opb);
+            rc = RK(k, ARGC(i), opc);
+            if (rb.r == NUMBER && rc.r == NUMBER && code != proto.code)
+            {
+              quicken(code, pc-1, OP_LE_NN, OP_LE_NK, OP_LE_KN);
+            }
             savedpc = pc; // Protect
             if (vmLessequal(rb, rc) == (a != 0))
             {
@@ -3305,135 +4116,439 @@ reentry:
             }
             ++pc;
             continue;
-          case OP_TEST:
-            if (isFalse(stack[base+a].r) != (ARGC(i) != 0))
+          // Quickened opcodes.  These only occur in Tier.exec; see
+          // quicken.  Each guards that its register operands are
+          // numbers; when the guard fails the instruction is restored
+          // to its generic form (deoptimised) and this execution takes
+          // the generic opcode's slow path.
+          case OP_ADD_NN:
+          {
+            int b = base+ARGB(i);
+            int c = base+ARGC(i);
+            if (ref[b] == NUMBER && ref[c] == NUMBER)
             {
-              // dojump
-              pc += ARGsBx(code[pc]);
+              num[base+a] = num[b] + num[c];
+              ref[base+a] = NUMBER;
+              continue;
             }
-            ++pc;
+            code[pc-1] = proto.code[pc-1];      // deoptimise
+            vmArith(OP_ADD, slotAt(b, opb), slotAt(c, opc), base+a);
             continue;
-          case OP_TESTSET:
-            rb = stack[base+ARGB(i)];
-            if (isFalse(rb.r) != (ARGC(i) != 0))
+          }
+          case OP_ADD_NK:
+          {
+            int b = base+ARGB(i);
+            rc = k[ARGC(i) & 0xff];
+            if (ref[b] == NUMBER)
             {
-              stack[base+a].r = rb.r;
-              stack[base+a].d = rb.d;
-              // dojump
-              pc += ARGsBx(code[pc]);
+              num[base+a] = num[b] + rc.d;
+              ref[base+a] = NUMBER;
+              continue;
             }
-            ++pc;
+            code[pc-1] = proto.code[pc-1];      // deoptimise
+            vmArith(OP_ADD, slotAt(b, opb), rc, base+a);
             continue;
-          case OP_CALL:
+          }
+          case OP_SUB_NN:
           {
-            int b = ARGB(i);
-            int nresults = ARGC(i) - 1;
-            if (b != 0)
-            {
-              stacksetsize(base+a+b);
-            }
-            savedpc = pc;
-            switch (vmPrecall(base+a, nresults))
+            int b = base+ARGB(i);
+            int c = base+ARGC(i);
+            if (ref[b] == NUMBER && ref[c] == NUMBER)
             {
-              case PCRLUA:
-                nexeccalls++;
-                continue reentry;
-              case PCRJ:
-                // Was Java function called by precall, adjust result
-                if (nresults >= 0)
-                {
-                  stacksetsize(ci().top());
-                }
-                continue;
-              default:
-                return; // yield
+              num[base+a] = num[b] - num[c];
+              ref[base+a] = NUMBER;
+              continue;
             }
+            code[pc-1] = proto.code[pc-1];      // deoptimise
+            vmArith(OP_SUB, slotAt(b, opb), slotAt(c, opc), base+a);
+            continue;
           }
-          case OP_TAILCALL:
+          case OP_SUB_NK:
           {
-            int b = ARGB(i);
-            if (b != 0)
+            int b = base+ARGB(i);
+            rc = k[ARGC(i) & 0xff];
+            if (ref[b] == NUMBER)
             {
-              stacksetsize(base+a+b);
+              num[base+a] = num[b] - rc.d;
+              ref[base+a] = NUMBER;
+              continue;
             }
-            savedpc = pc;
-            // assert ARGC(i) - 1 == MULTRET
-            switch (vmPrecall(base+a, MULTRET))
+            code[pc-1] = proto.code[pc-1];      // deoptimise
+            vmArith(OP_SUB, slotAt(b, opb), rc, base+a);
+            continue;
+          }
+          case OP_MUL_NN:
+          {
+            int b = base+ARGB(i);
+            int c = base+ARGC(i);
+            if (ref[b] == NUMBER && ref[c] == NUMBER)
             {
-              case PCRLUA:
-              {
-                // tail call: put new frame in place of previous one.
-                CallInfo ci = (CallInfo)civ.elementAt(civ.size()-2);
-                int func = ci.function();
-                CallInfo fci = ci();    // Fresh CallInfo
-                int pfunc = fci.function();
-                fClose(ci.base());
-                base = func + (fci.base() - pfunc);
-                int aux;        // loop index is used after loop ends
-                for (aux=0; pfunc+aux < stackSize; ++aux)
-                {
-                  // move frame down
-                  stack[func+aux].r = stack[pfunc+aux].r;
-                  stack[func+aux].d = stack[pfunc+aux].d;
-                }
-                stacksetsize(func+aux);        // correct top
-                // assert stackSize == base + ((LuaFunction)stack[func]).proto().maxstacksize();
-                ci.tailcall(base, stackSize);
-                dec_ci();       // remove new frame.
-                continue reentry;
-              }
-              case PCRJ:        // It was a Java function
-              {
-                continue;
-              }
-              default:
-              {
-                return; // yield
-              }
+              num[base+a] = num[b] * num[c];
+              ref[base+a] = NUMBER;
+              continue;
             }
+            code[pc-1] = proto.code[pc-1];      // deoptimise
+            vmArith(OP_MUL, slotAt(b, opb), slotAt(c, opc), base+a);
+            continue;
           }
-          case OP_RETURN:
+          case OP_MUL_NK:
           {
-            fClose(base);
-            int b = ARGB(i);
-            if (b != 0)
+            int b = base+ARGB(i);
+            rc = k[ARGC(i) & 0xff];
+            if (ref[b] == NUMBER)
             {
-              int top = a + b - 1;
-              stacksetsize(base + top);
+              num[base+a] = num[b] * rc.d;
+              ref[base+a] = NUMBER;
+              continue;
             }
-            savedpc = pc;
-            // 'adjust' replaces aliased 'b' in PUC-Rio code.
-            boolean adjust = vmPoscall(base+a);
-            if (--nexeccalls == 0)
+            code[pc-1] = proto.code[pc-1];      // deoptimise
+            vmArith(OP_MUL, slotAt(b, opb), rc, base+a);
+            continue;
+          }
+          case OP_DIV_NN:
+          {
+            int b = base+ARGB(i);
+            int c = base+ARGC(i);
+            if (ref[b] == NUMBER && ref[c] == NUMBER)
             {
-              return;
+              num[base+a] = num[b] / num[c];
+              ref[base+a] = NUMBER;
+              continue;
             }
-            if (adjust)
+            code[pc-1] = proto.code[pc-1];      // deoptimise
+            vmArith(OP_DIV, slotAt(b, opb), slotAt(c, opc), base+a);
+            continue;
+          }
+          case OP_DIV_NK:
+          {
+            int b = base+ARGB(i);
+            rc = k[ARGC(i) & 0xff];
+            if (ref[b] == NUMBER)
             {
-              stacksetsize(ci().top());
+              num[base+a] = num[b] / rc.d;
+              ref[base+a] = NUMBER;
+              continue;
             }
-            continue reentry;
+            code[pc-1] = proto.code[pc-1];      // deoptimise
+            vmArith(OP_DIV, slotAt(b, opb), rc, base+a);
+            continue;
           }
-          case OP_FORLOOP:
+          case OP_LT_NN:
           {
-            double step = stack[base+a+2].d;
-            double idx = stack[base+a].d + step;
-            double limit = stack[base+a+1].d;
-            if ((0 < step && idx <= limit) ||
-                (step <= 0 && limit <= idx))
+            int b = base+ARGB(i);
+            int c = base+ARGC(i);
+            if (ref[b] == NUMBER && ref[c] == NUMBER)
+            {
+              if ((num[b] < num[c]) == (a != 0))
+              {
+                // dojump
+                pc += ARGsBx(code[pc]);
+              }
+              ++pc;
+              continue;
+            }
+            code[pc-1] = proto.code[pc-1];      // deoptimise
+            savedpc = pc; // Protect
+            if (vmLessthan(slotAt(b, opb), slotAt(c, opc)) == (a != 0))
             {
               // dojump
-              pc += ARGsBx(i);
-              stack[base+a].d = idx;    // internal index
-              stack[base+a].r = NUMBER;
-              stack[base+a+3].d = idx;  // external index
-              stack[base+a+3].r = NUMBER;
+              pc += ARGsBx(code[pc]);
             }
+            ++pc;
             continue;
           }
-          case OP_FORPREP:
+          case OP_LT_NK:
           {
-            int init = base+a;
+            int b = base+ARGB(i);
+            rc = k[ARGC(i) & 0xff];
+            if (ref[b] == NUMBER)
+            {
+              if ((num[b] < rc.d) == (a != 0))
+              {
+                // dojump
+                pc += ARGsBx(code[pc]);
+              }
+              ++pc;
+              continue;
+            }
+            code[pc-1] = proto.code[pc-1];      // deoptimise
+            savedpc = pc; // Protect
+            if (vmLessthan(slotAt(b, opb), rc) == (a != 0))
+            {
+              // dojump
+              pc += ARGsBx(code[pc]);
+            }
+            ++pc;
+            continue;
+          }
+          case OP_LT_KN:
+          {
+            rb = k[ARGB(i) & 0xff];
+            int c = base+ARGC(i);
+            if (ref[c] == NUMBER)
+            {
+              if ((rb.d < num[c]) == (a != 0))
+              {
+                // dojump
+                pc += ARGsBx(code[pc]);
+              }
+              ++pc;
+              continue;
+            }
+            code[pc-1] = proto.code[pc-1];      // deoptimise
+            savedpc = pc; // Protect
+            if (vmLessthan(rb, slotAt(c, opc)) == (a != 0))
+            {
+              // dojump
+              pc += ARGsBx(code[pc]);
+            }
+            ++pc;
+            continue;
+          }
+          case OP_LE_NN:
+          {
+            int b = base+ARGB(i);
+            int c = base+ARGC(i);
+            if (ref[b] == NUMBER && ref[c] == NUMBER)
+            {
+              if ((num[b] <= num[c]) == (a != 0))
+              {
+                // dojump
+                pc += ARGsBx(code[pc]);
+              }
+              ++pc;
+              continue;
+            }
+            code[pc-1] = proto.code[pc-1];      // deoptimise
+            savedpc = pc; // Protect
+            if (vmLessequal(slotAt(b, opb), slotAt(c, opc)) == (a != 0))
+            {
+              // dojump
+              pc += ARGsBx(code[pc]);
+            }
+            ++pc;
+            continue;
+          }
+          case OP_LE_NK:
+          {
+            int b = base+ARGB(i);
+            rc = k[ARGC(i) & 0xff];
+            if (ref[b] == NUMBER)
+            {
+              if ((num[b] <= rc.d) == (a != 0))
+              {
+                // dojump
+                pc += ARGsBx(code[pc]);
+              }
+              ++pc;
+              continue;
+            }
+            code[pc-1] = proto.code[pc-1];      // deoptimise
+            savedpc = pc; // Protect
+            if (vmLessequal(slotAt(b, opb), rc) == (a != 0))
+            {
+              // dojump
+              pc += ARGsBx(code[pc]);
+            }
+            ++pc;
+            continue;
+          }
+          case OP_LE_KN:
+          {
+            rb = k[ARGB(i) & 0xff];
+            int c = base+ARGC(i);
+            if (ref[c] == NUMBER)
+            {
+              if ((rb.d <= num[c]) == (a != 0))
+              {
+                // dojump
+                pc += ARGsBx(code[pc]);
+              }
+              ++pc;
+              continue;
+            }
+            code[pc-1] = proto.code[pc-1];      // deoptimise
+            savedpc = pc; // Protect
+            if (vmLessequal(rb, slotAt(c, opc)) == (a != 0))
+            {
+              // dojump
+              pc += ARGsBx(code[pc]);
+            }
+            ++pc;
+            continue;
+          }
+          case OP_TEST:
+            if (isFalse(ref[base+a]) != (ARGC(i) != 0))
+            {
+              // dojump
+              pc += ARGsBx(code[pc]);
+            }
+            ++pc;
+            continue;
+          case OP_TESTSET:
+            rb = slotAt(base+ARGB(i), opb);
+            if (isFalse(rb.r) != (ARGC(i) != 0))
+            {
+              ref[base+a] = rb.r;
+              num[base+a] = rb.d;
+              // dojump
+              pc += ARGsBx(code[pc]);
+            }
+            ++pc;
+            continue;
+          case OP_MOVE_CALL:
+          case OP_LOADK_CALL:
+          case OP_GETTABLE_CALL:
+            if (OPCODE(i) == OP_MOVE_CALL)
+            {
+              ref[base+a] = ref[base+ARGB(i)];
+              num[base+a] = num[base+ARGB(i)];
+            }
+            else if (OPCODE(i) == OP_LOADK_CALL)
+            {
+              ref[base+a] = k[ARGBx(i)].r;
+              num[base+a] = k[ARGBx(i)].d;
+            }
+            else
+            {
+              savedpc = pc; // Protect
+              Object h = objectAt(base+ARGB(i));
+              int c = ARGC(i);
+              if (ic != null && ISK(c) && k[c-BITRK].r instanceof String)
+              {
+                vmGettableK(h, k[c-BITRK], base+a, ic, pc-1);
+              }
+              else
+              {
+                vmGettable(h, RK(k, c, opc), base+a);
+              }
+              }
+            if (hooked)
+            {
+              continue;
+            }
+            i = code[pc++];
+            a = ARGA(i);
+            // FALLTHROUGH
+          case OP_CALL:
+          {
+            int b = ARGB(i);
+            int nresults = ARGC(i) - 1;
+            if (b != 0)
+            {
+              stacksetsize(base+a+b);
+            }
+            savedpc = pc;
+            switch (vmPrecall(base+a, nresults))
+            {
+              case PCRLUA:
+                nexeccalls++;
+                continue reentry;
+              case PCRJ:
+                // Was Java function called by precall, adjust result
+                if (nresults >= 0)
+                {
+                  stacksetsize(ci().top());
+                }
+                hooked = hookmask != 0;
+                continue;
+              default:
+                return; // yield
+            }
+          }
+          case OP_TAILCALL:
+          {
+            int b = ARGB(i);
+            if (b != 0)
+            {
+              stacksetsize(base+a+b);
+            }
+            savedpc = pc;
+            // assert ARGC(i) - 1 == MULTRET
+            switch (vmPrecall(base+a, MULTRET))
+            {
+              case PCRLUA:
+              {
+                // tail call: put new frame in place of previous one.
+                CallInfo ci = civ[ici-1];
+                int func = ci.function();
+                CallInfo fci = ci();    // Fresh CallInfo
+                int pfunc = fci.function();
+                fClose(ci.base());
+                base = func + (fci.base() - pfunc);
+                int aux;        // loop index is used after loop ends
+                for (aux=0; pfunc+aux < stackSize; ++aux)
+                {
+                  // move frame down
+                  ref[func+aux] = ref[pfunc+aux];
+                  num[func+aux] = num[pfunc+aux];
+                }
+                stacksetsize(func+aux);        // correct top
+                // assert stackSize == base + ((LuaFunction)ref[func]).proto().maxstacksize();
+                ci.tailcall(base, stackSize);
+                dec_ci();       // remove new frame.
+                continue reentry;
+              }
+              case PCRJ:        // It was a Java function
+              {
+                hooked = hookmask != 0;
+                continue;
+              }
+              default:
+              {
+                return; // yield
+              }
+            }
+          }
+          case OP_RETURN:
+          {
+            fClose(base);
+            int b = ARGB(i);
+            if (b != 0)
+            {
+              int top = a + b - 1;
+              stacksetsize(base + top);
+            }
+            savedpc = pc;
+            // 'adjust' replaces aliased 'b' in PUC-Rio code.
+            boolean adjust = vmPoscall(base+a);
+            if (--nexeccalls == 0)
+            {
+              return;
+            }
+            if (adjust)
+            {
+              stacksetsize(ci().top());
+            }
+            continue reentry;
+          }
+          case OP_FORLOOP:
+          {
+            double step = num[base+a+2];
+            double idx = num[base+a] + step;
+            double limit = num[base+a+1];
+            if ((0 < step && idx <= limit) ||
+                (step <= 0 && limit <= idx))
+            {
+              // dojump
+              pc += ARGsBx(i);
+              num[base+a] = idx;    // internal index
+              ref[base+a] = NUMBER;
+              num[base+a+3] = idx;  // external index
+              ref[base+a+3] = NUMBER;
+              hooked = hookmask != 0;
+              if (ic == null && ++proto.hotness >= hotcount)
+              {
+                tier = proto.tierUp();
+                ic = tier.ic;
+                code = tier.exec;
+              }
+            }
+            continue;
+          }
+          case OP_FORPREP:
+          {
+            int init = base+a;
             int plimit = base+a+1;
             int pstep = base+a+2;
             savedpc = pc;       // next steps may throw errors
@@ -3449,10 +4564,10 @@ reentry:
             {
               gRunerror("'for' step must be a number");
             }
-            double step = stack[pstep].d;
-            double idx = stack[init].d - step;
-            stack[init].d = idx;
-            stack[init].r = NUMBER;
+            double step = num[pstep];
+            double idx = num[init] - step;
+            num[init] = idx;
+            ref[init] = NUMBER;
             // dojump
             pc += ARGsBx(i);
             continue;
@@ -3460,22 +4575,29 @@ reentry:
           case OP_TFORLOOP:
           {
             int cb = base+a+3;  // call base
-            stack[cb+2].r = stack[base+a+2].r;
-            stack[cb+2].d = stack[base+a+2].d;
-            stack[cb+1].r = stack[base+a+1].r;
-            stack[cb+1].d = stack[base+a+1].d;
-            stack[cb].r = stack[base+a].r;
-            stack[cb].d = stack[base+a].d;
+            ref[cb+2] = ref[base+a+2];
+            num[cb+2] = num[base+a+2];
+            ref[cb+1] = ref[base+a+1];
+            num[cb+1] = num[base+a+1];
+            ref[cb] = ref[base+a];
+            num[cb] = num[base+a];
             stacksetsize(cb+3);
             savedpc = pc; // Protect
             vmCall(cb, ARGC(i));
             stacksetsize(ci().top());
-            if (NIL != stack[cb].r)     // continue loop
+            if (NIL != ref[cb])     // continue loop
             {
-              stack[cb-1].r = stack[cb].r;
-              stack[cb-1].d = stack[cb].d;
+              ref[cb-1] = ref[cb];
+              num[cb-1] = num[cb];
               // dojump
               pc += ARGsBx(code[pc]);
+              hooked = hookmask != 0;
+              if (ic == null && ++proto.hotness >= hotcount)
+              {
+                tier = proto.tierUp();
+                ic = tier.ic;
+                code = tier.exec;
+              }
             }
             ++pc;
             continue;
@@ -3494,13 +4616,15 @@ reentry:
             {
               c = code[pc++];
             }
-            LuaTable t = (LuaTable)stack[base+a].r;
+            LuaTable t = (LuaTable)ref[base+a];
             int last = ((c-1)*LFIELDS_PER_FLUSH) + n;
-            // :todo: consider expanding space in table
+            if (last > t.sizeArray)     // needs more space?
+            {
+              t.resizearray(last);      // pre-alloc it at once
+            }
             for (; n > 0; n--)
             {
-              Object val = objectAt(base+a+n);
-              t.putnum(last--, val);
+              t.putnum(last--, slotAt(base+a+n, opb));
             }
             if (setstack)
             {
@@ -3530,7 +4654,7 @@ reentry:
               }
             }
             LuaFunction nf = new LuaFunction(p, up, function.getEnv());
-            stack[base+a].r = nf;
+            ref[base+a] = nf;
             continue;
           }
           case OP_VARARG:
@@ -3549,13 +4673,12 @@ reentry:
             {
               if (j < n)
               {
-                Slot src = stack[base - n + j];
-                stack[base+a+j].r = src.r;
-                stack[base+a+j].d = src.d;
+                ref[base+a+j] = ref[base - n + j];
+                num[base+a+j] = num[base - n + j];
               }
               else
               {
-                stack[base+a+j].r = NIL;
+                ref[base+a+j] = NIL;
               }
             }
             continue;
@@ -3606,8 +4729,11 @@ reentry:
     return invert ?  1.0 / result : result ;
   }
 
-  /** Equivalent of luaV_gettable. */
-  private void vmGettable(Object t, Slot key, Slot val)
+  /**
+   * Equivalent of luaV_gettable.  The result is stored in the stack
+   * element at absolute index <var>val</var>.
+   */
+  private void vmGettable(Object t, Slot key, int val)
   {
     Object tm;
     for (int loop = 0; loop < MAXTAGLOOP; ++loop)
@@ -3615,18 +4741,17 @@ reentry:
       if (t instanceof LuaTable)        // 't' is a table?
       {
         LuaTable h = (LuaTable)t;
-        h.getlua(key, SPARE_SLOT);
+        h.getlua(key, spare);
 
-        if (SPARE_SLOT.r != NIL)
+        if (spare.r != NIL)
         {
-          val.r = SPARE_SLOT.r;
-          val.d = SPARE_SLOT.d;
+          setSlotAt(spare, val);
           return;
         }
         tm = tagmethod(h, "__index");
         if (tm == NIL)
         {
-          val.r = NIL;
+          ref[val] = NIL;
           return;
         }
         // else will try the tag method
@@ -3639,8 +4764,8 @@ reentry:
       }
       if (isFunction(tm))
       {
-        SPARE_SLOT.setObject(t);
-        callTMres(val, tm, SPARE_SLOT, key);
+        spare.setObject(t);
+        callTMres(val, tm, spare, key);
         return;
       }
       t = tm;     // else repeat with 'tm'
@@ -3648,6 +4773,133 @@ reentry:
     gRunerror("loop in gettable");
   }
 
+  /**
+   * Like {@link #vmGettable} but for a constant string
+   * <var>key</var>, and using the inline cache entry for the
+   * instruction at <var>pc</var>.  Only used once the function is
+   * hot.  On a hit no hashing is done.  On a miss the cache entry is
+   * refilled when the key is found either in <var>t</var> itself or in
+   * the __index table of <var>t</var>'s metatable; anything more
+   * complicated goes through vmGettable.
+   */
+  private void vmGettableK(Object t, Slot key, int val,
+      InlineCache[] ic, int pc)
+  {
+    if (t instanceof LuaTable)
+    {
+      LuaTable h = (LuaTable)t;
+      InlineCache c = ic[pc];
+      Object v;
+      if (c != null && (v = c.get(h)) != null)
+      {
+        setObjectAt(v, val);
+        return;
+      }
+      Object k = key.r;
+      int j = h.hslot(k);
+      if (j >= 0)
+      {
+        // Only replace an entry for another table if it is for
+        // inherited keys; this avoids thrashing when the instruction
+        // sees many different tables (new objects, for example).
+        if (c == null || c.table == h.cacheid || c.meta != 0)
+        {
+          ic[pc] = new InlineCache(h, j);
+        }
+        setObjectAt(h.hvalue[j], val);
+        return;
+      }
+      if (c != null && (v = c.getInherited(h)) != null)
+      {
+        setObjectAt(v, val);
+        return;
+      }
+      LuaTable mt = h.getMetatable();
+      if (mt != null)
+      {
+        int mj = mt.hslot("__index");
+        if (mj >= 0 && mt.hvalue[mj] instanceof LuaTable)
+        {
+          LuaTable holder = (LuaTable)mt.hvalue[mj];
+          j = holder.hslot(k);
+          if (j >= 0)
+          {
+            ic[pc] = new InlineCache(h, mt, mj, holder, j);
+            setObjectAt(holder.hvalue[j], val);
+            return;
+          }
+        }
+      }
+    }
+    vmGettable(t, key, val);
+  }
+
+  /**
+   * Quickens the instruction at <var>pc</var> in <var>code</var> (an
+   * arithmetic or comparison instruction whose operands have just
+   * been observed to be numbers).  <var>nn</var>, <var>nk</var> and
+   * <var>kn</var> are the quickened opcodes for register/register,
+   * register/constant and constant/register operands; -1 where there
+   * is none.
+   */
+  private static void quicken(int[] code, int pc, int nn, int nk, int kn)
+  {
+    int i = code[pc];
+    int op;
+    if (ISK(ARGB(i)))
+    {
+      op = ISK(ARGC(i)) ? -1 : kn;
+    }
+    else
+    {
+      op = ISK(ARGC(i)) ? nk : nn;
+    }
+    if (op >= 0)
+    {
+      code[pc] = SET_OPCODE(i, op);
+    }
+  }
+
+  /**
+   * Arithmetic (OP_ADD, OP_SUB, OP_MUL, OP_DIV, OP_MOD, or OP_POW) on
+   * operands that are not both numbers: strings are coerced, otherwise
+   * the metamethod is called.  The slow path of the quickened
+   * arithmetic opcodes and of compiled code.
+   */
+  private void vmArith(int op, Slot rb, Slot rc, int ra)
+  {
+    if (toNumberPair(rb, rc, numop))
+    {
+      double r;
+      switch (op)
+      {
+        case OP_ADD: r = numop[0] + numop[1]; break;
+        case OP_SUB: r = numop[0] - numop[1]; break;
+        case OP_MUL: r = numop[0] * numop[1]; break;
+        case OP_DIV: r = numop[0] / numop[1]; break;
+        case OP_MOD: r = modulus(numop[0], numop[1]); break;
+        default:     r = iNumpow(numop[0], numop[1]); break;
+      }
+      num[ra] = r;
+      ref[ra] = NUMBER;
+      return;
+    }
+    String event;
+    switch (op)
+    {
+      case OP_ADD: event = "__add"; break;
+      case OP_SUB: event = "__sub"; break;
+      case OP_MUL: event = "__mul"; break;
+      case OP_DIV: event = "__div"; break;
+      case OP_MOD: event = "__mod"; break;
+      default:     event = "__pow"; break;
+    }
+    if (!call_binTM(rb, rc, ra, event))
+    {
+      gAritherror(rb, rc);
+    }
+  }
+
   /** Equivalent of luaV_lessthan. */
   private boolean vmLessthan(Slot l, Slot r)
   {
@@ -3726,8 +4978,8 @@ reentry:
     // result first is always correct.
     while (i != 0 && firstResult < top)
     {
-      stack[res].r = stack[firstResult].r;
-      stack[res].d = stack[firstResult].d;
+      ref[res] = ref[firstResult];
+      num[res] = num[firstResult];
       ++res;
       ++firstResult;
       i--;
@@ -3740,9 +4992,13 @@ reentry:
     // remaining required results.
     while (i-- > 0)
     {
-      stack[res++].r = NIL;
+      ref[res++] = NIL;
     }
     stacksetsize(res);
+    if (ici == 0)
+    {
+      checkstacksizes(false);
+    }
     return wanted != MULTRET;
   }
 
@@ -3755,7 +5011,7 @@ reentry:
   private int vmPrecall(int func, int r)
   {
     Object faso;        // Function AS Object
-    faso = stack[func].r;
+    faso = ref[func];
     if (!isFunction(faso))
     {
       faso = tryfuncTM(func);
@@ -3765,6 +5021,10 @@ reentry:
     {
       LuaFunction f = (LuaFunction)faso;
       Proto p = f.proto();
+      if (p.compiled == null && p.tier == null && ++p.hotness >= hotcount)
+      {
+        p.tierUp();
+      }
       // :todo: ensure enough stack
 
       if (!p.isVararg())
@@ -3789,6 +5049,12 @@ reentry:
       // expand stack to the function's max stack size.
       stacksetsize(top);
       // :todo: implement call hook.
+      if (p.compiled != null && hookmask == 0)
+      {
+        // Compiled ahead of time; hooks need the interpreter.
+        vmPoscall(p.compiled.execute(p.compiledid, this, f, base));
+        return PCRJ;
+      }
       return PCRLUA;
     }
     else if (faso instanceof LuaJavaCallback)
@@ -3826,6 +5092,200 @@ reentry:
     throw new IllegalArgumentException();
   }
 
+  // Support for function bodies compiled ahead of time, see
+  // CompiledChunk.  Compiled code executes the common cases inline, on
+  // the stack arrays, and calls these methods for everything else.
+  // Each takes the instruction being executed and the pc of the one
+  // after it, so that errors are reported at the right line.  Any of
+  // them may call a metamethod, which may reallocate the stack, so
+  // compiled code fetches the stack arrays again after each call.
+
+  /** The stack's reference array, for compiled code. */
+  Object[] aotRef()
+  {
+    return ref;
+  }
+
+  /** The stack's number array, for compiled code. */
+  double[] aotNum()
+  {
+    return num;
+  }
+
+  /**
+   * Executes instruction <var>i</var> of a compiled function in the
+   * general case.  Only instructions that neither jump nor call are
+   * handled (the coercion and errors of OP_FORPREP are, its jump is
+   * not).
+   */
+  void aotStep(int pc, int i)
+  {
+    savedpc = pc;
+    LuaFunction function = (LuaFunction)ref[ci().function()];
+    Slot[] k = function.proto().constant();
+    int a = ARGA(i);
+    switch (OPCODE(i))
+    {
+      case OP_GETGLOBAL:
+        vmGettable(function.getEnv(), k[ARGBx(i)], base+a);
+        return;
+      case OP_GETTABLE:
+        vmGettable(objectAt(base+ARGB(i)), RK(k, ARGC(i), opc), base+a);
+        return;
+      case OP_SETGLOBAL:
+        vmSettable(function.getEnv(), k[ARGBx(i)], objectAt(base+a));
+        return;
+      case OP_SETTABLE:
+      {
+        Object t = objectAt(base+a);
+        Slot rb = RK(k, ARGB(i), opb);
+        Slot rc = RK(k, ARGC(i), opc);
+        if (!(t instanceof LuaTable) || !((LuaTable)t).putarray(rb, rc))
+        {
+          vmSettable(t, rb, rc.asObject());
+        }
+        return;
+      }
+      case OP_NEWTABLE:
+        ref[base+a] = new LuaTable(oFb2int(ARGB(i)), oFb2int(ARGC(i)));
+        return;
+      case OP_SELF:
+      {
+        Slot rb = slotAt(base+ARGB(i), opb);
+        ref[base+a+1] = rb.r;
+        num[base+a+1] = rb.d;
+        vmGettable(rb.asObject(), RK(k, ARGC(i), opc), base+a);
+        return;
+      }
+      case OP_ADD:
+      case OP_SUB:
+      case OP_MUL:
+      case OP_DIV:
+      case OP_MOD:
+      case OP_POW:
+        vmArith(OPCODE(i), RK(k, ARGB(i), opb), RK(k, ARGC(i), opc),
+            base+a);
+        return;
+      case OP_UNM:
+      {
+        Slot rb = slotAt(base+ARGB(i), opb);
+        if (tonumber(rb, numop))
+        {
+          num[base+a] = -numop[0];
+          ref[base+a] = NUMBER;
+        }
+        else if (!call_binTM(rb, rb, base+a, "__unm"))
+        {
+          gAritherror(rb, rb);
+        }
+        return;
+      }
+      case OP_LEN:
+      {
+        Slot rb = slotAt(base+ARGB(i), opb);
+        if (rb.r instanceof LuaTable)
+        {
+          num[base+a] = ((LuaTable)rb.r).getn();
+          ref[base+a] = NUMBER;
+        }
+        else if (rb.r instanceof String)
+        {
+          num[base+a] = ((String)rb.r).length();
+          ref[base+a] = NUMBER;
+        }
+        else if (!call_binTM(rb, rb, base+a, "__len"))
+        {
+          gTypeerror(rb, "get length of");
+        }
+        return;
+      }
+      case OP_CONCAT:
+      {
+        int b = ARGB(i);
+        int c = ARGC(i);
+        vmConcat(c - b + 1, c);
+        ref[base+a] = ref[base+b];
+        num[base+a] = num[base+b];
+        return;
+      }
+      case OP_FORPREP:
+        if (!tonumber(base+a))
+        {
+          gRunerror("'for' initial value must be a number");
+        }
+        else if (!tonumber(base+a+1))
+        {
+          gRunerror("'for' limit must be a number");
+        }
+        else if (!tonumber(base+a+2))
+        {
+          gRunerror("'for' step must be a number");
+        }
+        num[base+a] -= num[base+a+2];
+        ref[base+a] = NUMBER;
+        return;
+      case OP_SETLIST:
+      {
+        // The compiler only emits this for B and C not 0.
+        int n = ARGB(i);
+        LuaTable t = (LuaTable)ref[base+a];
+        int last = ((ARGC(i)-1)*LFIELDS_PER_FLUSH) + n;
+        if (last > t.sizeArray)
+        {
+          t.resizearray(last);
+        }
+        for (; n > 0; n--)
+        {
+          t.putnum(last--, slotAt(base+a+n, opb));
+        }
+        return;
+      }
+      case OP_CLOSE:
+        fClose(base+a);
+        return;
+    }
+    throw new IllegalArgumentException();
+  }
+
+  /**
+   * Result of the comparison (OP_EQ, OP_LT, or OP_LE) <var>i</var> of
+   * a compiled function, in the general case.  The instruction's jump
+   * is left to the caller.
+   */
+  boolean aotTest(int pc, int i)
+  {
+    savedpc = pc;
+    LuaFunction function = (LuaFunction)ref[ci().function()];
+    Slot[] k = function.proto().constant();
+    Slot rb = RK(k, ARGB(i), opb);
+    Slot rc = RK(k, ARGC(i), opc);
+    switch (OPCODE(i))
+    {
+      case OP_EQ:
+        return vmEqual(rb, rc);
+      case OP_LT:
+        return vmLessthan(rb, rc);
+    }
+    return vmLessequal(rb, rc);
+  }
+
+  /**
+   * Executes OP_RETURN <var>i</var> of a compiled function, up to the
+   * call of {@link #vmPoscall}.  Returns the stack index of the first
+   * result, for vmPoscall.
+   */
+  int aotReturn(int pc, int i)
+  {
+    fClose(base);
+    int b = ARGB(i);
+    if (b != 0)
+    {
+      stacksetsize(base + ARGA(i) + b - 1);
+    }
+    savedpc = pc;
+    return base + ARGA(i);
+  }
+
   /** Equivalent of luaV_settable. */
   private void vmSettable(Object t, Slot key, Object val)
   {
@@ -3835,8 +5295,8 @@ reentry:
       if (t instanceof LuaTable) // 't' is a table
       {
         LuaTable h = (LuaTable)t;
-        h.getlua(key, SPARE_SLOT);
-        if (SPARE_SLOT.r != NIL)   // result is not nil?
+        h.getlua(key, spare);
+        if (spare.r != NIL)   // result is not nil?
         {
           h.putlua(this, key, val);
           return;
@@ -3917,8 +5377,8 @@ reentry:
     for (int i=0; i<nfixargs; ++i)
     {
       // :todo: arraycopy?
-      push(stack[fixed+i]);
-      stack[fixed+i].r = NIL;
+      pushAt(fixed+i);
+      ref[fixed+i] = NIL;
     }
     return newbase;
   }
@@ -3930,7 +5390,7 @@ reentry:
    * @param res absolute stack index of result.
    * @return false if no tagmethod, true otherwise
    */
-  private boolean call_binTM(Slot p1, Slot p2, Slot res, String event)
+  private boolean call_binTM(Slot p1, Slot p2, int res, String event)
   {
     Object tm = tagmethod(p1.asObject(), event);        // try first operand
     if (isNil(tm))
@@ -3980,8 +5440,23 @@ reentry:
     push(p1);
     push(p2);
     vmCall(stackSize-3, 1);
-    res.r = stack[stackSize-1].r;
-    res.d = stack[stackSize-1].d;
+    slotAt(stackSize-1, res);
+    pop(1);
+  }
+
+  /**
+   * Overloaded version of callTMres used by {@link #call_binTM}, where
+   * <var>res</var> is an absolute stack index.  It is only written
+   * after the call, so is correct even if the call grows the stack.
+   */
+  private void callTMres(int res, Object f, Slot p1, Slot p2)
+  {
+    push(f);
+    push(p1);
+    push(p2);
+    vmCall(stackSize-3, 1);
+    ref[res] = ref[stackSize-1];
+    num[res] = num[stackSize-1];
     pop(1);
   }
 
@@ -3996,8 +5471,7 @@ reentry:
     push(p1);
     push(p2);
     vmCall(stackSize-3, 1);
-    res.r = stack[stackSize-1].r;
-    res.d = stack[stackSize-1].d;
+    slotAt(stackSize-1, res);
     pop(1);
   }
 
@@ -4051,7 +5525,7 @@ reentry:
    * Computes the result of Lua's modules operator (%).  Note that this
    * modulus operator does not match Java's %.
    */
-  private static double modulus(double x, double y)
+  static double modulus(double x, double y)
   {
     return x - Math.floor(x/y)*y;
   }
@@ -4065,19 +5539,17 @@ reentry:
     // It is absolutely critical that when the stack changes sizes those
     // elements that are common to both old and new stack are unchanged.
 
-    // First implementation of this simply ensures that the stack array
-    // has at least the required size number of elements.
-    // :todo: consider policies where the stack may also shrink.
+    // This simply ensures that the stack array has at least the
+    // required size number of elements.  The stack is shrunk
+    // separately, at safe points, see checkstacksizes.
     int old = stackSize;
-    if (n > stack.length)
+    if (n > stackrecent)
     {
-      int newLength = Math.max(n, 2 * stack.length);
-      Slot[] newStack = new Slot[newLength];
-      // Currently the stack only ever grows, so the number of items to
-      // copy is the length of the old stack.
-      int toCopy = stack.length;
-      System.arraycopy(stack, 0, newStack, 0, toCopy);
-      stack = newStack;
+      stackrecent = n;
+      if (n > ref.length)
+      {
+        reallocstack(Math.max(n, 2 * ref.length));
+      }
     }
     stackSize = n;
     // Nilling out.  The VM requires that fresh stack slots allocated
@@ -4098,7 +5570,7 @@ reentry:
       // when shrinking
       for(int i=n; i<old; ++i)
       {
-        stack[i].r = NIL;
+        ref[i] = NIL;
       }
     }
     if (n > stackhighwater)
@@ -4106,13 +5578,107 @@ reentry:
       // when growing above stackhighwater for the first time
       for (int i=stackhighwater; i<n; ++i)
       {
-        stack[i] = new Slot();
-        stack[i].r = NIL;
+        ref[i] = NIL;
       }
       stackhighwater = n;
+      if (n > stackpeak)
+      {
+        stackpeak = n;
+      }
+    }
+  }
+
+  /**
+   * Equivalent to luaD_reallocstack.  Reallocates the stack arrays to
+   * be <var>newLength</var> long, which must be at least
+   * <code>stackSize</code>.
+   */
+  private void reallocstack(int newLength)
+  {
+    int toCopy = Math.min(ref.length, newLength);
+    Object[] newRef = new Object[newLength];
+    System.arraycopy(ref, 0, newRef, 0, toCopy);
+    ref = newRef;
+    double[] newNum = new double[newLength];
+    System.arraycopy(num, 0, newNum, 0, toCopy);
+    num = newNum;
+    if (stackhighwater > newLength)
+    {
+      stackhighwater = newLength;
     }
   }
 
+  /**
+   * Equivalent to checkstacksizes from lgc.c.  Gives back the memory
+   * of a VM stack and CallInfo array that have been grown by a deep
+   * recursion (or a large <code>unpack</code>, say), halving each while
+   * less than a quarter of it is in use.  Unless <var>force</var> is
+   * true, what is in use includes the most used since the previous
+   * check, so that a thread that keeps making the same deep call does
+   * not reallocate its stack each time.  Called at safe points: by
+   * {@link #vmPoscall} on return to the base frame, at the end of
+   * {@link #resume}, and for every thread by {@link #GCCOMPACT}.
+   * Only the live part of the stack is kept, so it is safe wherever
+   * no copy of {@link #ref}, {@link #num} or {@link #civ} is held.
+   */
+  private void checkstacksizes(boolean force)
+  {
+    int ci_used = ici + 1;
+    int s_used = stackSize;
+    for (int i=0; i<=ici; ++i)
+    {
+      s_used = Math.max(s_used, civ[i].top());
+    }
+    int ci_want = force ? ci_used : Math.max(ci_used, cirecent + 1);
+    int s_want = force ? s_used : Math.max(s_used, stackrecent);
+
+    int n = civ.length;
+    while (4*ci_want < n && 2*BASIC_CI_SIZE < n)
+    {
+      n /= 2;
+    }
+    if (n < civ.length)
+    {
+      CallInfo[] newciv = new CallInfo[n];
+      System.arraycopy(civ, 0, newciv, 0, n);
+      civ = newciv;
+    }
+    n = ref.length;
+    while (4*s_want < n && 2*BASIC_STACK_SIZE < n)
+    {
+      n /= 2;
+    }
+    if (n < ref.length)
+    {
+      reallocstack(n);
+    }
+    cirecent = ici;
+    // A frame's top may be beyond the end of the stack.
+    stackrecent = Math.min(s_used, ref.length);
+  }
+
+  /**
+   * Gets the largest number of elements there have ever been in this
+   * thread's stack.  With {@link #stackCapacity} this shows how much
+   * stack a thread needs and how much it is holding on to; a thread's
+   * stack grows as needed and is shrunk when it is no longer used.
+   * @return the stack's high-water mark.
+   */
+  public int stackPeak()
+  {
+    return stackpeak;
+  }
+
+  /**
+   * Gets the number of elements this thread's stack has room for,
+   * without reallocating it.  See {@link #stackPeak}.
+   * @return the capacity of the stack.
+   */
+  public int stackCapacity()
+  {
+    return ref.length;
+  }
+
   /**
    * Pushes a Lua value onto the stack.
    */
@@ -4120,7 +5686,7 @@ reentry:
   {
     int i = stackSize;
     stacksetsize(i+1);
-    stack[i].setObject(o);
+    setObjectAt(o, i);
   }
 
   /**
@@ -4130,23 +5696,30 @@ reentry:
   {
     int i = stackSize;
     stacksetsize(i+1);
-    stack[i].r = p.r;
-    stack[i].d = p.d;
+    ref[i] = p.r;
+    num[i] = p.d;
+  }
+
+  /**
+   * Copies the stack element at absolute index <var>idx</var> onto the
+   * top of the stack.
+   */
+  private void pushAt(int idx)
+  {
+    int i = stackSize;
+    stacksetsize(i+1);
+    ref[i] = ref[idx];
+    num[i] = num[idx];
   }
 
   private void stackInsertAt(Object o, int i)
   {
     int n = stackSize - i;
     stacksetsize(stackSize+1);
-    // Copy each slot N into its neighbour N+1.  Loop proceeds from high
-    // index slots to lower index slots.
-    // A loop from n to 1 copies n slots.
-    for (int j=n; j>=1; --j)
-    {
-      stack[i+j].r = stack[i+j-1].r;
-      stack[i+j].d = stack[i+j-1].d;
-    }
-    stack[i].setObject(o);
+    // Copy each slot N into its neighbour N+1.
+    System.arraycopy(ref, i, ref, i+1, n);
+    System.arraycopy(num, i, num, i+1, n);
+    setObjectAt(o, i);
   }
 
   /**
@@ -4190,11 +5763,25 @@ reentry:
       out[0] = o.d;
       return true;
     }
-    if (!(o.r instanceof String))
+    return tonumber(o.r, out);
+  }
+
+  /**
+   * Convert a Lua value, which is not {@link #NUMBER}, to number.
+   * Overloaded, see {@link #tonumber(Slot, double[])}.
+   */
+  private static boolean tonumber(Object o, double[] out)
+  {
+    if (o instanceof Double)
+    {
+      out[0] = ((Double)o).doubleValue();
+      return true;
+    }
+    if (!(o instanceof String))
     {
       return false;
     }
-    if (oStr2d((String)o.r, out))
+    if (oStr2d((String)o, out))
     {
       return true;
     }
@@ -4206,15 +5793,19 @@ reentry:
    * the specified stack slot was converted to a number.  False
    * otherwise.  Note that this actually modifies the element stored at
    * <var>idx</var> in the stack (in faithful emulation of the PUC-Rio
-   * code).  Corrupts <code>NUMOP[0]</code>.  Overloaded.
+   * code).  Corrupts <code>numop[0]</code>.  Overloaded.
    * @param idx  absolute stack slot.
    */
   private boolean tonumber(int idx)
   {
-    if (tonumber(stack[idx], NUMOP))
+    if (ref[idx] == NUMBER)
+    {
+      return true;
+    }
+    if (tonumber(ref[idx], numop))
     {
-      stack[idx].d = NUMOP[0];
-      stack[idx].r = NUMBER;
+      num[idx] = numop[0];
+      ref[idx] = NUMBER;
       return true;
     }
     return false;
@@ -4243,7 +5834,7 @@ reentry:
    * (the number will have been converted to a string), false otherwise.
    * Note this actually modifies the element stored at <var>idx</var> in
    * the stack (in faithful emulation of the PUC-Rio code), and when it
-   * returns <code>true</code>, <code>stack[idx].r instanceof String</code>
+   * returns <code>true</code>, <code>ref[idx] instanceof String</code>
    * is true.
    */
   private boolean tostring(int idx)
@@ -4255,7 +5846,7 @@ reentry:
     {
       return false;
     }
-    stack[idx].r = s;
+    ref[idx] = s;
     return true;
   }
 
@@ -4265,10 +5856,10 @@ reentry:
    */
   private Object tryfuncTM(int func)
   {
-    Object tm = tagmethod(stack[func].asObject(), "__call");
+    Object tm = tagmethod(objectAt(func), "__call");
     if (!isFunction(tm))
     {
-      gTypeerror(stack[func], "call");
+      gTypeerror(objectAt(func), "call");
     }
     stackInsertAt(tm, func);
     return tm;
@@ -4286,19 +5877,40 @@ reentry:
     throw new IllegalArgumentException("isFalse called");
   }
 
-  /** Make new CallInfo record. */
+  /**
+   * Make new CallInfo record, reusing the one left at that depth by an
+   * earlier call if there is one.  Equivalent to inc_ci and growCI
+   * from ldo.c.
+   */
   private CallInfo inc_ci(int func, int baseArg, int top, int nresults)
   {
-    CallInfo ci = new CallInfo(func, baseArg, top, nresults);
-    civ.addElement(ci);
+    if (++ici > cirecent)
+    {
+      cirecent = ici;
+      if (ici == civ.length)
+      {
+        CallInfo[] newciv = new CallInfo[2*civ.length];
+        System.arraycopy(civ, 0, newciv, 0, civ.length);
+        civ = newciv;
+      }
+    }
+    CallInfo ci = civ[ici];
+    if (ci == null)
+    {
+      ci = new CallInfo();
+      civ[ici] = ci;
+    }
+    ci.init(func, baseArg, top, nresults);
     return ci;
   }
 
-  /** Pop topmost CallInfo record and return it. */
+  /**
+   * Pop topmost CallInfo record and return it.  The record stays valid
+   * until the next call to {@link #inc_ci}.
+   */
   private CallInfo dec_ci()
   {
-    CallInfo ci = (CallInfo)civ.pop();
-    return ci;
+    return civ[ici--];
   }
 
   /** Equivalent to resume_error from ldo.c */
@@ -4313,31 +5925,51 @@ reentry:
    * Return the stack element as an Object.  Converts double values into
    * Double objects.
    * @param idx  absolute index into stack (0 <= idx < stackSize).
+   * Default access for {@link UpVal}.
    */
-  private Object objectAt(int idx)
+  Object objectAt(int idx)
   {
-    Object r = stack[idx].r;
+    Object r = ref[idx];
     if (r != NUMBER)
     {
       return r;
     }
-    return new Double(stack[idx].d);
+    return valueOfNumber(num[idx]);
+  }
+
+  /**
+   * Copies the stack element at absolute index <var>idx</var> into
+   * <var>s</var>, and returns <var>s</var>.
+   */
+  private Slot slotAt(int idx, Slot s)
+  {
+    s.r = ref[idx];
+    s.d = num[idx];
+    return s;
+  }
+
+  /** Copies <var>s</var> into the stack element at <var>idx</var>. */
+  private void setSlotAt(Slot s, int idx)
+  {
+    ref[idx] = s.r;
+    num[idx] = s.d;
   }
 
   /**
    * Sets the stack element.  Double instances are converted to double.
    * @param o  Object to store.
    * @param idx  absolute index into stack (0 <= idx < stackSize).
+   * Default access for {@link UpVal}.
    */
-  private void setObjectAt(Object o, int idx)
+  void setObjectAt(Object o, int idx)
   {
     if (o instanceof Double)
     {
-      stack[idx].r = NUMBER;
-      stack[idx].d = ((Double)o).doubleValue();
+      ref[idx] = NUMBER;
+      num[idx] = ((Double)o).doubleValue();
       return;
     }
-    stack[idx].r = o;
+    ref[idx] = o;
   }
 
   /**
@@ -4374,11 +6006,14 @@ final class DumpState
   {
     /*
      * In order to make the code more compact the dumper re-uses the
-     * header defined in Loader.java.  It has to fix the endianness byte
-     * first.
+     * header defined in Loader.java.  The endianness byte at index 6
+     * is written as 0 (big-endian, which is what DataOutputStream
+     * writes) between the bytes either side of it, so the shared
+     * header is never modified.
      */
-    Loader.HEADER[6] = 0;
-    writer.write(Loader.HEADER) ;
+    writer.write(Loader.HEADER, 0, 6);
+    writer.write(0);
+    writer.write(Loader.HEADER, 7, Loader.HEADER.length - 7);
   }
 
   private void DumpInt(int i) throws IOException
@@ -4534,7 +6169,7 @@ final class Slot
   {
     if (r == Lua.NUMBER)
     {
-      return new Double(d);
+      return Lua.valueOfNumber(d);
     }
     return r;
   }
@@ -25,15 +25,44 @@
 package mnj.lua;
 
 /**
- * Represent a Lua error
+ * Represent a Lua error.  The error object itself is left on the Lua
+ * stack; the exception only carries the status code out to the
+ * nearest {@link Lua#pcall} or {@link Lua#resume}.  Unless {@link
+ * Lua#ERRORTRACE} is set instances are shared (see {@link #make}), so
+ * the cost of recording a Java stack trace is paid once per status;
+ * the trace of a shared instance says nothing about where it was
+ * thrown.
  */
 final class LuaError extends RuntimeException
 {
-  int errorStatus;
+  /** Shared instances, indexed by status, used when not tracing. */
+  private static final LuaError[] shared = new LuaError[Lua.ERRFILE+1];
+
+  final int errorStatus;
 
   LuaError(int errorStatus)
   {
     super("Lua error");
     this.errorStatus = errorStatus;
   }
+
+  /**
+   * Returns an error with the given status.  A fresh instance (with
+   * its own stack trace) when tracing, a shared one otherwise.
+   */
+  static LuaError make(int errorStatus)
+  {
+    if (Lua.ERRORTRACE || errorStatus < 0 || errorStatus >= shared.length)
+    {
+      return new LuaError(errorStatus);
+    }
+    // Races here are benign: at worst a second instance is created.
+    LuaError e = shared[errorStatus];
+    if (e == null)
+    {
+      e = new LuaError(errorStatus);
+      shared[errorStatus] = e;
+    }
+    return e;
+  }
 }
@@ -0,0 +1,200 @@
+/*  $Header$
+ * Copyright (c) 2006 Nokia Corporation and/or its subsidiary(-ies).
+ * All rights reserved.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject
+ * to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+ * ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF
+ * CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package mnj.lua;
+
+import java.util.Hashtable;
+import java.util.Vector;
+
+/**
+ * A pool of ready to use Lua states, for running many short scripts
+ * without paying each time for opening libraries and loading modules.
+ * The states are forked (see {@link Lua#fork}) from a snapshot of a
+ * template state, which the caller has initialised.  A typical use:
+ * <pre>
+ * Lua L = pool.checkout();
+ * try
+ * {
+ *   L.loadString(script, "=request");
+ *   L.pcall(0, 0, null);
+ * }
+ * finally
+ * {
+ *   pool.checkin(L);
+ * }
+ * </pre>
+ * Checking in a state resets it to the state of the snapshot, so no
+ * script sees what an earlier one did.  Checking in also reports
+ * which globals the script changed, so that scripts that should not
+ * have any side effects can be found.  The pool is thread safe;
+ * each state must only be used by one thread at a time.
+ */
+public final class LuaStatePool
+{
+  /** Snapshot that the states are forked from. */
+  private final Lua snapshot;
+  /** Most states kept when they are not checked out. */
+  private final int size;
+  /** States not checked out. */
+  private final Vector spare = new Vector();
+  /** States checked out, each mapped to itself. */
+  private final Hashtable out = new Hashtable();
+
+  // Metrics
+  private int created;  // = 0;
+  private int checkouts;        // = 0;
+  private int leaks;    // = 0;
+  private int inUse;    // = 0;
+  private int peak;     // = 0;
+
+  /**
+   * Makes a pool of <var>size</var> states from a snapshot of
+   * <var>template</var>.  Later changes to <var>template</var> do not
+   * affect the pool.
+   * @param template  the state to copy, with its libraries open and
+   *                  modules loaded.
+   * @param size      the number of states to make in advance, and the
+   *                  most that are kept when not in use.
+   */
+  public LuaStatePool(Lua template, int size)
+  {
+    if (size < 0)
+    {
+      throw new IllegalArgumentException();
+    }
+    this.snapshot = template.snapshot();
+    this.size = size;
+    for (int i=0; i<size; ++i)
+    {
+      spare.addElement(newState());
+    }
+  }
+
+  private Lua newState()
+  {
+    ++created;
+    return snapshot.fork();
+  }
+
+  /**
+   * Takes a state from the pool, making a new one if none is idle.
+   * @return a state, as it was when the pool was made.
+   */
+  public synchronized Lua checkout()
+  {
+    Lua L;
+    int n = spare.size();
+    if (n == 0)
+    {
+      L = newState();
+    }
+    else
+    {
+      L = (Lua)spare.elementAt(n-1);
+      spare.removeElementAt(n-1);
+    }
+    out.put(L, L);
+    ++checkouts;
+    ++inUse;
+    if (inUse > peak)
+    {
+      peak = inUse;
+    }
+    return L;
+  }
+
+  /**
+   * Returns a state, taken with {@link #checkout}, to the pool.  The
+   * state is reset (see {@link Lua#reset}) and must not be used by the
+   * caller afterwards.
+   * @param L  the state.
+   * @return the keys of the globals that were changed while the state
+   * was checked out; empty if none were.
+   * @throws IllegalArgumentException if <var>L</var> is not checked
+   * out from this pool (for example, if it has already been checked
+   * in).
+   */
+  public Vector checkin(Lua L)
+  {
+    synchronized (this)
+    {
+      if (L == null || out.remove(L) == null)
+      {
+        throw new IllegalArgumentException();
+      }
+    }
+    // Outside the lock: only this thread has L.
+    Vector changed = L.changedGlobals(snapshot);
+    L.reset(snapshot);
+    synchronized (this)
+    {
+      --inUse;
+      if (changed.size() > 0)
+      {
+        ++leaks;
+      }
+      if (spare.size() < size)
+      {
+        spare.addElement(L);
+      }
+    }
+    return changed;
+  }
+
+  /** Number of states made, including those made in advance. */
+  public synchronized int created()
+  {
+    return created;
+  }
+
+  /** Number of calls to {@link #checkout}. */
+  public synchronized int checkouts()
+  {
+    return checkouts;
+  }
+
+  /** Number of states checked in with changed globals. */
+  public synchronized int leaks()
+  {
+    return leaks;
+  }
+
+  /** Number of states checked out now. */
+  public synchronized int inUse()
+  {
+    return inUse;
+  }
+
+  /** Largest number of states checked out at once. */
+  public synchronized int peak()
+  {
+    return peak;
+  }
+
+  /** Number of idle states in the pool. */
+  public synchronized int idle()
+  {
+    return spare.size();
+  }
+}
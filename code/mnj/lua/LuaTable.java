@@ -24,22 +24,44 @@
 
 package mnj.lua;
 
+import java.lang.ref.WeakReference;
 import java.util.Enumeration;
 
 /**
  * Class that models Lua's tables.  Each Lua table is an instance of
- * this class.  Whilst you can clearly see that this class extends
- * {@link java.util.Hashtable} you should in no way rely upon that.
- * Calling any methods that are not defined in this class (but are
- * defined in a super class) is extremely deprecated.
+ * this class.  A table has an array part, for integer keys from 1 to
+ * <var>sizeArray</var>, a numeric hash part for all other number keys,
+ * and a hash part for all other keys.  Both hash parts are purpose
+ * built open addressing hash tables, using linear probing over
+ * parallel key and value arrays; they are not synchronized.  The
+ * numeric hash part keeps its keys in a <code>double[]</code>, so
+ * number keys are never boxed.
  */
-public final class LuaTable extends java.util.Hashtable
+public final class LuaTable
 {
   private static final int MAXBITS = 26;
   private static final int MAXASIZE = 1 << MAXBITS;
 
+  /**
+   * Multiplier used to scatter hash codes over the hash part.
+   * 2<sup>32</sup> divided by the golden ratio.
+   */
+  private static final int GOLDEN = 0x9e3779b9;
+
+  /** Smallest (non-empty) capacity of the hash part. */
+  private static final int MINHSIZE = 4;
+
+  /** Smallest size the array part is grown to by appending. */
+  private static final int MINASIZE = 4;
+  /**
+   * Smallest total capacity (of all parts) at which a table is
+   * shrunk, see {@link #shrink}.
+   */
+  private static final int MINSHRINK = 32;
+
   private LuaTable metatable;   // = null;
   private static final Object[] ZERO = new Object[0];
+  private static final double[] DZERO = new double[0];
   /**
    * Array used so that tables accessed like arrays are more efficient.
    * All elements stored at an integer index, <var>i</var>, in the
@@ -47,24 +69,119 @@ public final class LuaTable extends java.util.Hashtable
    * This speed and space usage for array-like access.
    * When the table is rehashed the array's size is chosen to be the
    * largest power of 2 such that at least half the entries are
-   * occupied.  Default access granted for {@link Enum} class, do not
-   * abuse.
+   * occupied.  Only used once the array part has stopped being
+   * numeric, see {@link #darray}.
    */
-  Object[] array = ZERO;
+  private Object[] array = ZERO;
   /**
-   * Equal to <code>array.length</code>.  Default access granted for
-   * {@link Enum} class, do not abuse.
+   * The array part while every value in it is a number, unboxed; nil
+   * is represented by NaN.  Storing any other value (including NaN
+   * itself) in the array part converts it to {@link #array} for good
+   * (see {@link #toobject}), and this becomes <code>null</code>.  A
+   * numeric array takes a quarter to a third of the memory of an
+   * array of Double.
+   */
+  private double[] darray = DZERO;
+  /**
+   * Size of the array part, the length of either {@link #darray} or
+   * {@link #array}.  Default access granted for {@link Enum} class, do
+   * not abuse.
    */
   int sizeArray;        // = 0;
   /**
-   * <code>true</code> whenever we are in the {@link #rehash}
-   * method.  Avoids infinite rehash loops.
+   * Keys of the hash part.  Its length is either 0 or a power of 2.
+   * <code>null</code> marks a free slot.  A key whose value in
+   * {@link #hvalue} is {@link Lua#NIL} is dead: the entry has been
+   * removed but the key is kept so that probe sequences are not
+   * broken.  Dead entries are reused by later insertions and discarded
+   * when the table is rehashed.  Default access granted for
+   * {@link Enum} class, do not abuse.
+   */
+  Object[] hkey = ZERO;
+  /**
+   * Values of the hash part, parallel to {@link #hkey}.  Default
+   * access granted for {@link Enum} class, do not abuse.
+   */
+  Object[] hvalue = ZERO;
+  /** Number of non-<code>null</code> keys, live or dead. */
+  private int hused;    // = 0;
+  /** Largest {@link #hused} allowed before rehashing. */
+  private int hlimit;   // = 0;
+  /** Shift applied to a scrambled hash code to give a slot index. */
+  private int hshift;   // = 0;
+  /**
+   * Keys of the numeric hash part: the number keys that are not in the
+   * array part.  Organised like {@link #hkey} except that NaN, which is
+   * never a valid key, marks a free slot.  Default access granted for
+   * {@link Enum} class, do not abuse.
+   */
+  double[] nkey = DZERO;
+  /**
+   * Values of the numeric hash part, parallel to {@link #nkey}.
+   * Default access granted for {@link Enum} class, do not abuse.
+   */
+  Object[] nvalue = ZERO;
+  /** Like {@link #hused} for the numeric hash part. */
+  private int nused;    // = 0;
+  /** Like {@link #hlimit} for the numeric hash part. */
+  private int nlimit;   // = 0;
+  /** Like {@link #hshift} for the numeric hash part. */
+  private int nshift;   // = 0;
+  /**
+   * Weak keys, from a metatable with a __mode containing 'k'.  Keys
+   * that can be collected are held through a {@link WeakRef}.
+   */
+  private boolean weakk;        // = false;
+  /**
+   * Weak values, from a metatable with a __mode containing 'v'.
+   * Values that can be collected are held through a {@link WeakRef}.
+   */
+  private boolean weakv;        // = false;
+  /**
+   * Number of stores of nil since the table was last resized.  An
+   * overestimate of the number of dead entries; see {@link #shrink}.
+   */
+  private int ndeleted;         // = 0;
+  /** True once the table is read-only, see {@link Lua#freeze}. */
+  private boolean frozen;       // = false;
+  /**
+   * For a lazy copy made by {@link Fork}, the table it is a copy of.
+   * The copy is empty until it is first used, when {@link #copysource}
+   * fills it and sets this to <code>null</code>.  Every method that
+   * looks at the parts of the table, other than the private ones,
+   * must check this first.
+   */
+  private LuaTable source;      // = null;
+  /** For a lazy copy, the fork it belongs to. */
+  private Fork fork;            // = null;
+  /** Error message for a write to a frozen table. */
+  static final String FROZEN = "attempt to modify a frozen table";
+  /**
+   * Changes whenever the set of live keys in the hash part, or their
+   * positions, changes: that is when a key is added (or revived) and
+   * when the hash part is rebuilt.  Used to validate
+   * {@link InlineCache} entries.
+   */
+  int version;          // = 0;
+  /**
+   * Identifies the table to {@link InlineCache} entries, which do not
+   * refer to tables directly.  0 until the table is first cached, see
+   * {@link InlineCache#id}.
    */
-  private boolean inrehash;     // = false;
+  int cacheid;          // = 0;
 
   LuaTable()
   {
-    super(1);
+  }
+
+  /**
+   * Lazy copy of <var>source</var> for <var>fork</var>, see {@link
+   * Fork#map}.
+   */
+  LuaTable(LuaTable source, Fork fork)
+  {
+    this.source = source;
+    this.fork = fork;
   }
 
   /**
@@ -74,43 +191,117 @@ public final class LuaTable extends java.util.Hashtable
    */
   LuaTable(int narray, int nhash)
   {
-    // :todo: super(nhash) isn't clearly correct as adding nhash hash
-    // table entries will causes a rehash with the usual implementation
-    // (which rehashes when ratio of entries to capacity exceeds the
-    // load factor of 0.75).  Perhaps ideally we would size the hash
-    // tables such that adding nhash entries will not cause a rehash.
-    super(nhash);
-    array = new Object[narray];
+    darray = new double[narray];
     for (int i=0; i<narray; ++i)
     {
-      array[i] = Lua.NIL;
+      darray[i] = Double.NaN;
     }
     sizeArray = narray;
+    sethash(nhash);
   }
 
   /**
-   * Implements discriminating equality.  <code>o1.equals(o2) == (o1 ==
-   * o2) </code>.  This method is not necessary in CLDC, it's only
-   * necessary in J2SE because java.util.Hashtable overrides equals.
-   * @param o  the reference to compare with.
-   * @return true when equal.
+   * Converts a numeric array part ({@link #darray}) to an
+   * <code>Object[]</code> ({@link #array}).
    */
-  public boolean equals(Object o)
+  private void toobject()
+  {
+    double[] d = darray;
+    Object[] a = new Object[sizeArray];
+    for (int i=0; i<sizeArray; ++i)
+    {
+      a[i] = d[i] != d[i] ? Lua.NIL : Lua.valueOfNumber(d[i]);
+    }
+    array = a;
+    darray = null;
+  }
+
+  /** Value at index <var>i</var> (from 0) of the array part. */
+  private Object aget(int i)
   {
-    return this == o;
+    double[] d = darray;
+    if (d != null)
+    {
+      double x = d[i];
+      return x != x ? Lua.NIL : Lua.valueOfNumber(x);
+    }
+    return weakv ? strong(array[i]) : array[i];
   }
 
   /**
-   * Provided to avoid Checkstyle warning.  This method is not necessary
-   * for correctness (in neither JME nor JSE), it's only provided to
-   * remove a Checkstyle warning.
-   * Since {@link #equals} implements the most discriminating
-   * equality possible, this method can have any implementation.
-   * @return an int.
+   * Like {@link #aget(int)} but the result is written into
+   * <var>v</var>; a number is not boxed.
    */
-  public int hashCode()
+  private void aget(int i, Slot v)
+  {
+    double[] d = darray;
+    if (d != null)
+    {
+      double x = d[i];
+      if (x != x)
+      {
+        v.r = Lua.NIL;
+      }
+      else
+      {
+        v.r = Lua.NUMBER;
+        v.d = x;
+      }
+      return;
+    }
+    v.setObject(weakv ? strong(array[i]) : array[i]);
+  }
+
+  /**
+   * True if index <var>i</var> (from 0) of the array part is nil.
+   * Default access granted for {@link Enum} class, do not abuse.
+   */
+  boolean anil(int i)
+  {
+    double[] d = darray;
+    if (d != null)
+    {
+      return d[i] != d[i];
+    }
+    return weakv ? dead(array[i]) : array[i] == Lua.NIL;
+  }
+
+  /** Sets index <var>i</var> (from 0) of the array part. */
+  private void aset(int i, Object v)
+  {
+    if (darray != null)
+    {
+      if (v instanceof Double)
+      {
+        double x = ((Double)v).doubleValue();
+        if (x == x)
+        {
+          darray[i] = x;
+          return;
+        }
+      }
+      else if (v == Lua.NIL)
+      {
+        darray[i] = Double.NaN;
+        return;
+      }
+      toobject();
+    }
+    array[i] = weakv ? weak(v) : v;
+  }
+
+  /**
+   * Like {@link #aset(int, Object)} but takes the value from a
+   * {@link Slot}; a number is not boxed.
+   */
+  private void aset(int i, Slot v)
   {
-    return System.identityHashCode(this);
+    if (darray != null && v.r == Lua.NUMBER && v.d == v.d)
+    {
+      darray[i] = v.d;
+      return;
+    }
+    aset(i, v.asObject());
   }
 
   private static int arrayindex(Object key)
@@ -167,6 +358,17 @@ public final class LuaTable extends java.util.Hashtable
     return 0;
   }
 
+  private static int countint(double key, int[] nums)
+  {
+    int k = (int)key;
+    if (k == key && 0 < k && k <= MAXASIZE)
+    {
+      ++nums[ceillog2(k)];
+      return 1;
+    }
+    return 0;
+  }
+
   private int numusearray(int[] nums)
   {
     int ause = 0;       // summation of 'nums'
@@ -187,7 +389,7 @@ public final class LuaTable extends java.util.Hashtable
       // count elements in range (2^(lg-1), 2^lg]
       for (; i <= lim; ++i)
       {
-        if (array[i-1] != Lua.NIL)
+        if (!anil(i-1))
         {
           ++lc;
         }
@@ -199,337 +401,1059 @@ public final class LuaTable extends java.util.Hashtable
     return ause;
   }
 
-  private int numusehash(int[] nums, int[] pnasize)
+  /** Number of live entries in the hash part. */
+  private int numusehash()
   {
-    int totaluse = 0;   // total number of elements
-    int ause = 0;       // summation of nums
-    Enumeration e;
-    e = super.keys();
-    while (e.hasMoreElements())
+    int totaluse = 0;
+    for (int i=0; i<hkey.length; ++i)
     {
-      Object o =e. nextElement();
-      ause += countint(o, nums);
-      ++totaluse;
+      if (hlive(i))
+      {
+        ++totaluse;
+      }
     }
-    pnasize[0] += ause;
     return totaluse;
   }
 
   /**
-   * @param nasize  (new) size of array part
+   * Counts the live entries in the numeric hash part; those that
+   * could go in the array part are counted in <var>nums</var> and
+   * added to <var>pnasize</var>.
    */
-  private void resize(int nasize)
+  private int numusenum(int[] nums, int[] pnasize)
   {
-    if (nasize == sizeArray)
-    {
-      return;
-    }
-    Object[] newarray = new Object[nasize];
-    if (nasize > sizeArray)     // array part must grow?
-    {
-      // The new array slots, from sizeArray to nasize-1, must
-      // be filled with their values from the hash part.
-      // There are two strategies:
-      // Iterate over the new array slots, and look up each index in the
-      // hash part to see if it has a value; or,
-      // Iterate over the hash part and see if each key belongs in the
-      // array part.
-      // For now we choose the first algorithm.
-      // :todo: consider using second algorithm, possibly dynamically.
-      System.arraycopy(array, 0, newarray, 0, array.length);
-      for (int i=array.length; i<nasize; ++i)
-      {
-        Object key = new Double(i+1);
-        Object v = super.remove(key);
-        if (v == null)
-        {
-          v = Lua.NIL;
-        }
-        newarray[i] = v;
-      }
-    }
-    if (nasize < sizeArray)     // array part must shrink?
+    int totaluse = 0;   // total number of elements
+    int ause = 0;       // summation of nums
+    for (int i=0; i<nkey.length; ++i)
     {
-      // move elements from array slots nasize to sizeArray-1 to the
-      // hash part.
-      for (int i=nasize; i<sizeArray; ++i)
+      if (nkey[i] == nkey[i] && !dead(nvalue[i]))
       {
-        if (array[i] != Lua.NIL)
-        {
-          Object key = new Double(i+1);
-          super.put(key, array[i]);
-        }
+        ause += countint(nkey[i], nums);
+        ++totaluse;
       }
-      System.arraycopy(array, 0, newarray, 0, newarray.length);
     }
-    array = newarray;
-    sizeArray = array.length;
+    pnasize[0] += ause;
+    return totaluse;
   }
 
-  protected void rehash()
+  /**
+   * Log<sub>2</sub> of the capacity needed for a hash part to hold
+   * <var>n</var> entries (at a load of at most 3/4).
+   */
+  private static int lgsize(int n)
   {
-    boolean oldinrehash = inrehash;
-    inrehash = true;
-    if (!oldinrehash)
+    int lg = ceillog2(MINHSIZE);
+    while (((1 << lg) >> 2) * 3 < n)
     {
-      int[] nasize = new int[1];
-      int[] nums = new int[MAXBITS+1];
-      nasize[0] = numusearray(nums);      // count keys in array part
-      int totaluse = nasize[0];
-      totaluse += numusehash(nums, nasize);
-      int na = computesizes(nums, nasize);
-
-      resize(nasize[0]);
+      ++lg;
     }
-    super.rehash();
-    inrehash = oldinrehash;
+    return lg;
   }
 
   /**
-   * Getter for metatable member.
-   * @return  The metatable.
+   * Replaces the hash part with a fresh empty one large enough to
+   * hold <var>n</var> entries without rehashing.
    */
-  LuaTable getMetatable()
+  private void sethash(int n)
   {
-    return metatable;
+    ++version;
+    hused = 0;
+    if (n <= 0)
+    {
+      hkey = ZERO;
+      hvalue = ZERO;
+      hlimit = 0;
+      return;
+    }
+    int lg = lgsize(n);
+    int size = 1 << lg;
+    hkey = new Object[size];
+    hvalue = new Object[size];
+    hlimit = (size >> 2) * 3;
+    hshift = 32 - lg;
   }
-  /**
-   * Setter for metatable member.
-   * @param metatable  The metatable.
-   */
-  // :todo: Support metatable's __gc and __mode keys appropriately.
-  //        This involves detecting when those keys are present in the
-  //        metatable, and changing all the entries in the Hashtable
-  //        to be instance of java.lang.Ref as appropriate.
-  void setMetatable(LuaTable metatable)
+
+  /** Like {@link #sethash} for the numeric hash part. */
+  private void setnum(int n)
   {
-    this.metatable = metatable;
-    return;
+    nused = 0;
+    if (n <= 0)
+    {
+      nkey = DZERO;
+      nvalue = ZERO;
+      nlimit = 0;
+      return;
+    }
+    int lg = lgsize(n);
+    int size = 1 << lg;
+    nkey = new double[size];
+    for (int i=0; i<size; ++i)
+    {
+      nkey[i] = Double.NaN;
+    }
+    nvalue = new Object[size];
+    nlimit = (size >> 2) * 3;
+    nshift = 32 - lg;
   }
 
   /**
-   * Supports Lua's length (#) operator.  More or less equivalent to
-   * luaH_getn and unbound_search in ltable.c.
+   * Equivalent to luaH_resize.
+   * @param nasize  (new) size of array part
+   * @param nhsize  number of entries the (new) hash part must hold
+   * @param nnsize  number of entries the (new) numeric hash part must
+   *                hold
    */
-  int getn()
+  private void resize(int nasize, int nhsize, int nnsize)
   {
-    int j = sizeArray;
-    if (j > 0 && array[j-1] == Lua.NIL)
+    int oldasize = sizeArray;
+    Object[] oldarray = array;
+    double[] olddarray = darray;
+    Object[] oldkey = hkey;
+    Object[] oldvalue = hvalue;
+    double[] oldnkey = nkey;
+    Object[] oldnvalue = nvalue;
+    if (nasize != oldasize)
     {
-      // there is a boundary in the array part: (binary) search for it
-      int i = 0;
-      while (j - i > 1)
+      setarray(nasize);
+    }
+    sethash(nhsize);
+    setnum(nnsize);
+    ndeleted = 0;
+    // Re-insert live elements of old hash part.
+    for (int i=0; i<oldkey.length; ++i)
+    {
+      if (oldkey[i] != null && !dead(oldkey[i]) && !dead(oldvalue[i]))
       {
-        int m = (i+j)/2;
-        if (array[m-1] == Lua.NIL)
-        {
-          j = m;
-        }
-        else
-        {
-          i = m;
-        }
+        hset(oldkey[i], oldvalue[i]);
       }
-      return i;
     }
-
-    // unbound_search
-
-    int i = 0;
-    j = 1;
-    // Find 'i' and 'j' such that i is present and j is not.
-    while (this.getnum(j) != Lua.NIL)
+    // Re-insert vanishing slice of array part.
+    for (int i=nasize; i<oldasize; ++i)
     {
-      i = j;
-      j *= 2;
-      if (j < 0)        // overflow
+      if (olddarray != null)
       {
-        // Pathological case.  Linear search.
-        i = 1;
-        while (this.getnum(i) != Lua.NIL)
+        if (olddarray[i] == olddarray[i])
         {
-          ++i;
+          rawsetnum(i+1, Lua.valueOfNumber(olddarray[i]));
         }
-        return i-1;
       }
-    }
-    // binary search between i and j
-    while (j - i > 1)
-    {
-      int m = (i+j)/2;
-      if (this.getnum(m) == Lua.NIL)
+      else if (!dead(oldarray[i]))
       {
-        j = m;
+        rawsetnum(i+1, oldarray[i]);
       }
-      else
+    }
+    // Re-insert live elements of old numeric hash part.
+    for (int i=0; i<oldnkey.length; ++i)
+    {
+      if (oldnkey[i] == oldnkey[i] && !dead(oldnvalue[i]))
       {
-        i = m;
+        rawsetnum(oldnkey[i], oldnvalue[i]);
       }
     }
-    return i;
   }
 
   /**
-   * Like {@link java.util.Hashtable#get}.  Ensures that indexes
-   * with no value return {@link Lua#NIL}.  In order to get the correct
-   * behaviour for <code>t[nil]</code>, this code assumes that Lua.NIL
-   * is non-<code>null</code>.
+   * Reallocates the array part with size <var>nasize</var>, keeping
+   * its representation.  Elements beyond <var>nasize</var> are
+   * dropped; the caller must re-insert them.
    */
-  Object getlua(Object key)
+  private void setarray(int nasize)
   {
-    if (key instanceof Double)
+    int n = Math.min(sizeArray, nasize);
+    if (darray != null)
     {
-      double d = ((Double)key).doubleValue();
-      if (d <= sizeArray && d >=1)
+      double[] newarray = new double[nasize];
+      System.arraycopy(darray, 0, newarray, 0, n);
+      for (int i=n; i<nasize; ++i)
       {
-        int i = (int)d;
-        if (i == d)
-        {
-          return array[i-1];
-        }
+        newarray[i] = Double.NaN;
       }
+      darray = newarray;
     }
-    Object r = super.get(key);
-    if (r == null)
+    else
     {
-      r = Lua.NIL;
+      Object[] newarray = new Object[nasize];
+      System.arraycopy(array, 0, newarray, 0, n);
+      for (int i=n; i<nasize; ++i)
+      {
+        newarray[i] = Lua.NIL;
+      }
+      array = newarray;
     }
-    return r;
+    sizeArray = nasize;
   }
 
   /**
-   * Like {@link #getlua(Object)} but the result is written into
-   * the <var>value</var> {@link Slot}.
+   * Grows the array part geometrically when <var>k</var> is the index
+   * just past its end.  Building a list by appending
+   * (<code>t[#t+1] = v</code>, <code>table.insert</code>) then costs
+   * O(1) amortised, and the new keys never go through the hash part.
+   * @return true if <var>k</var> is now in the array part.
    */
-  void getlua(Slot key, Slot value)
+  private boolean append(int k)
   {
-    if (key.r == Lua.NUMBER)
+    int oldasize = sizeArray;
+    if (k != oldasize+1 || oldasize >= MAXASIZE)
     {
-      double d = key.d;
-      if (d <= sizeArray && d >= 1)
+      return false;
+    }
+    if (shrink())
+    {
+      rehash(Lua.valueOfNumber(k));
+      return k <= sizeArray;
+    }
+    int nasize = oldasize < MINASIZE ? MINASIZE : oldasize*2;
+    setarray(nasize);
+    // Keys now covered by the array part, including k itself, may be
+    // in the numeric hash part.
+    if (nused > 0)
+    {
+      for (int i=k; i<=nasize; ++i)
       {
-        int i = (int)d;
-        if (i == d)
+        int j = nfind(i);
+        if (j >= 0 && !dead(nvalue[j]))
         {
-          value.setObject(array[i-1]);
-          return;
+          aset(i-1, nvalue[j]);
+          nvalue[j] = Lua.NIL;
         }
       }
     }
-    Object r = super.get(key.asObject());
-    if (r == null)
-    {
-      r = Lua.NIL;
-    }
-    value.setObject(r);
+    return true;
   }
 
-  /** Like get for numeric (integer) keys. */
-  Object getnum(int k)
+  /**
+   * Equivalent to rehash in ltable.c.  Resizes both parts of the
+   * table so that <var>ek</var> can be added.
+   * @param ek  the extra key, about to be added, or null for none.
+   */
+  private void rehash(Object ek)
   {
-    if (k <= sizeArray && k >= 1)
+    int[] nasize = new int[1];
+    int[] nums = new int[MAXBITS+1];
+    nasize[0] = numusearray(nums);      // count keys in array part
+    int numuse = nasize[0];     // all those keys are integer keys
+    numuse += numusenum(nums, nasize);  // count keys in numeric part
+    int hashuse = numusehash();         // count keys in hash part
+    // count extra key
+    if (ek instanceof Double)
     {
-      return array[k-1];
+      nasize[0] += countint(ek, nums);
+      ++numuse;
     }
-    Object r = super.get(new Double(k));
-    if (r == null)
+    else if (ek != null)
     {
-      return Lua.NIL;
+      ++hashuse;
     }
-    return r;
+    // compute new size for array part
+    int na = computesizes(nums, nasize);
+    // resize the table to new computed sizes
+    resize(nasize[0], hashuse, numuse - na);
   }
 
   /**
-   * Like {@link java.util.Hashtable#put} but enables Lua's semantics
-   * for <code>nil</code>;
-   * In particular that <code>x = nil</nil>
-   * deletes <code>x</code>.
-   * And also that <code>t[nil]</code> raises an error.
-   * Generally, users of Jill should be using
-   * {@link Lua#setTable} instead of this.
-   * @param key key.
-   * @param value value.
+   * Equivalent to luaH_resizearray.  Resizes the array part to
+   * <var>nasize</var>, keeping the capacity of the hash parts.
    */
-  void putlua(Lua L, Object key, Object value)
+  void resizearray(int nasize)
   {
-    double d = 0.0;
-    int i = Integer.MAX_VALUE;
-
-    if (key == Lua.NIL)
+    if (source != null)
     {
-      L.gRunerror("table index is nil");
+      copysource();
     }
-    if (key instanceof Double)
+    resize(nasize, hused, nused);
+  }
+
+  /**
+   * True if so many entries have been deleted since the table was last
+   * resized that, rather than let it grow, adding a key should resize
+   * it to fit its live contents.  As in PUC-Rio deleting an entry never
+   * resizes a table itself, so that entries can be cleared during a
+   * traversal; the table shrinks on the next insertion of a new key
+   * (which is not allowed during a traversal), or when compacted.
+   */
+  private boolean shrink()
+  {
+    int capacity = capacity();
+    return capacity >= MINSHRINK && ndeleted > capacity/2;
+  }
+
+  /** Total number of slots in all parts of the table. */
+  int capacity()
+  {
+    if (source != null)
     {
-      d = ((Double)key).doubleValue();
-      int j = (int)d;
+      copysource();
+    }
+    return sizeArray + hkey.length + nkey.length;
+  }
 
-      if (j == d && j >= 1)
-      {
-        i = j; // will cause additional check for array part later if
-               // the array part check fails now.
-        if (i <= sizeArray)
-        {
-          array[i-1] = value;
-          return;
-        }
-      }
-      if (Double.isNaN(d))
-      {
-        L.gRunerror("table index is NaN");
-      }
+  /**
+   * Resizes the table to fit its live contents, if there have been any
+   * deletions since it was last resized (or its entries are weak, so
+   * may have been collected).  Like adding a new key, this must not be
+   * done during a traversal of the table.  See {@link Lua#GCCOMPACT}.
+   */
+  void compact()
+  {
+    if (source != null)
+    {
+      copysource();
     }
-    // :todo: Consider checking key for NaN (PUC-Rio does)
-    if (value == Lua.NIL)
+    if (!frozen && (ndeleted > 0 || weakk || weakv))
     {
-      remove(key);
-      return;
+      rehash(null);
     }
-    super.put(key, value);
-    // This check is necessary because sometimes the call to super.put
-    // can rehash and the new (k,v) pair should be in the array part
-    // after the rehash, but is still in the hash part.
-    if (i <= sizeArray)
+  }
+
+  /**
+   * Compacts the table and makes it read-only.  The caller, {@link
+   * Lua#freeze}, checks that it is not weak.
+   */
+  void freeze()
+  {
+    if (source != null)
     {
-      remove(key);
-      array[i-1] = value;
+      copysource();
     }
+    rehash(null);
+    frozen = true;
   }
 
-  void putlua(Lua L, Slot key, Object value)
+  /** True if the table is a lazy copy that has not been used yet. */
+  boolean isLazyCopy()
   {
-    int i = Integer.MAX_VALUE;
+    return source != null;
+  }
 
-    if (key.r == Lua.NUMBER)
-    {
-      int j = (int)key.d;
-      if (j == key.d && j >= 1)
+  /**
+   * Fills a lazy copy from its source, copying every key and value
+   * through {@link Fork#map}.  When the keys are unchanged by copying
+   * (they are strings, numbers, booleans, functions written in Java
+   * or frozen tables), and the table is not weak, the parts are
+   * copied slot for slot, without rehashing.
+   */
+  private void copysource()
+  {
+    LuaTable s = source;
+    Fork f = fork;
+    source = null;
+    fork = null;
+    if (s.source != null)
+    {
+      s.copysource();
+    }
+    metatable = (LuaTable)f.map(s.metatable);
+    ++version;
+    boolean same = !s.weakk && !s.weakv;
+    for (int i=0; same && i<s.hkey.length; ++i)
+    {
+      Object k = s.hkey[i];
+      same = k == null || f.map(k) == k;
+    }
+    if (!same)
+    {
+      Enumeration e = s.keys();
+      while (e.hasMoreElements())
+      {
+        Object k = e.nextElement();
+        rawset(f.map(k), f.map(s.getlua(k)));
+      }
+      setweak(s.weakk, s.weakv);
+      return;
+    }
+    sizeArray = s.sizeArray;
+    if (s.darray != null)
+    {
+      darray = new double[s.darray.length];
+      System.arraycopy(s.darray, 0, darray, 0, darray.length);
+    }
+    else
+    {
+      darray = null;
+      array = f.map(s.array);
+    }
+    hkey = new Object[s.hkey.length];
+    System.arraycopy(s.hkey, 0, hkey, 0, hkey.length);
+    hvalue = f.map(s.hvalue);
+    hused = s.hused;
+    hlimit = s.hlimit;
+    hshift = s.hshift;
+    nkey = new double[s.nkey.length];
+    System.arraycopy(s.nkey, 0, nkey, 0, nkey.length);
+    nvalue = f.map(s.nvalue);
+    nused = s.nused;
+    nlimit = s.nlimit;
+    nshift = s.nshift;
+  }
+
+  /** True if the table is frozen. */
+  boolean isFrozen()
+  {
+    return frozen;
+  }
+
+  /** True if the table has weak keys or values. */
+  boolean isWeak()
+  {
+    if (source != null)
+    {
+      copysource();
+    }
+    return weakk || weakv;
+  }
+
+  /**
+   * Getter for metatable member.
+   * @return  The metatable.
+   */
+  LuaTable getMetatable()
+  {
+    if (source != null)
+    {
+      copysource();
+    }
+    return metatable;
+  }
+  /**
+   * Setter for metatable member.
+   * @param metatable  The metatable.
+   */
+  void setMetatable(LuaTable metatable)
+  {
+    if (source != null)
+    {
+      copysource();
+    }
+    this.metatable = metatable;
+    boolean k = false;
+    boolean v = false;
+    if (metatable != null)
+    {
+      Object mode = metatable.getlua("__mode");
+      if (mode instanceof String)
+      {
+        k = ((String)mode).indexOf('k') >= 0;
+        v = ((String)mode).indexOf('v') >= 0;
+      }
+    }
+    if (k != weakk || v != weakv)
+    {
+      setweak(k, v);
+    }
+  }
+
+  /**
+   * Makes the table's keys (<var>k</var>) and values (<var>v</var>)
+   * weak or strong, rewrapping the existing entries in place.  The
+   * __mode of a metatable is only examined when it is set with
+   * setmetatable; changing __mode afterwards has no effect.
+   *
+   * A weak entry disappears once its key or value has been
+   * collected.  Without a ReferenceQueue (CLDC has none) this is
+   * noticed lazily: such entries read as nil, are skipped by next,
+   * have their slots reused by insertions, and are dropped when the
+   * table is rehashed.  As in Lua 5.1, a weak key table is not an
+   * ephemeron table: a value that refers to its own key keeps the
+   * entry alive.  Java has no ephemerons, and holding the value
+   * through its key instead would keep it alive for as long as the
+   * key, after the table itself has been dropped.
+   */
+  private void setweak(boolean k, boolean v)
+  {
+    weakk = k;
+    weakv = v;
+    ++version;          // weak tables are not inline cached, see hslot
+    if (darray == null)
+    {
+      for (int i=0; i<sizeArray; ++i)
+      {
+        Object x = strong(array[i]);
+        array[i] = v ? weak(x) : x;
+      }
+    }
+    for (int i=0; i<hkey.length; ++i)
+    {
+      if (hkey[i] != null)
+      {
+        Object kk = strong(hkey[i]);
+        Object vv = strong(hvalue[i]);
+        if (kk == Lua.NIL)
+        {
+          hvalue[i] = Lua.NIL;  // key collected, entry is dead
+          continue;
+        }
+        // The key stays in the same slot, as a WeakRef hashes like
+        // its referent.
+        hkey[i] = k ? weak(kk) : kk;
+        hvalue[i] = v ? weak(vv) : vv;
+      }
+    }
+    for (int i=0; i<nkey.length; ++i)
+    {
+      Object vv = strong(nvalue[i]);
+      nvalue[i] = v ? weak(vv) : vv;
+    }
+  }
+
+  /**
+   * Returns <var>o</var> wrapped in a {@link WeakRef} if it is a value
+   * that can be collected (a table, function, userdata, or thread);
+   * otherwise <var>o</var> itself.
+   */
+  private static Object weak(Object o)
+  {
+    if (o instanceof LuaTable || o instanceof LuaFunction ||
+        o instanceof LuaUserdata || o instanceof LuaJavaCallback ||
+        o instanceof Lua)
+    {
+      return new WeakRef(o);
+    }
+    return o;
+  }
+
+  /**
+   * Returns the referent of <var>o</var> if it is a {@link WeakRef},
+   * nil if that has been collected; otherwise <var>o</var> itself.
+   */
+  private static Object strong(Object o)
+  {
+    if (o instanceof WeakRef)
+    {
+      Object r = ((WeakRef)o).get();
+      return r == null ? Lua.NIL : r;
+    }
+    return o;
+  }
+
+  /** True if <var>o</var> is nil or a collected {@link WeakRef}. */
+  private static boolean dead(Object o)
+  {
+    return o == Lua.NIL ||
+        (o instanceof WeakRef && ((WeakRef)o).get() == null);
+  }
+
+  /**
+   * True if slot <var>i</var> of the hash part holds a live entry.
+   * Default access granted for {@link Enum} class, do not abuse.
+   */
+  boolean hlive(int i)
+  {
+    Object k = hkey[i];
+    return k != null && !dead(hvalue[i]) && !dead(k);
+  }
+
+  /**
+   * True if slot <var>i</var> of the numeric hash part holds a live
+   * entry.  Default access granted for {@link Enum} class, do not
+   * abuse.
+   */
+  boolean nlive(int i)
+  {
+    return nkey[i] == nkey[i] && !dead(nvalue[i]);
+  }
+
+  /**
+   * Supports Lua's length (#) operator.  More or less equivalent to
+   * luaH_getn and unbound_search in ltable.c.
+   */
+  int getn()
+  {
+    if (source != null)
+    {
+      copysource();
+    }
+    int j = sizeArray;
+    if (j > 0 && anil(j-1))
+    {
+      // there is a boundary in the array part: (binary) search for it
+      int i = 0;
+      while (j - i > 1)
+      {
+        int m = (i+j)/2;
+        if (anil(m-1))
+        {
+          j = m;
+        }
+        else
+        {
+          i = m;
+        }
+      }
+      return i;
+    }
+
+    // unbound_search
+
+    int i = 0;
+    j = 1;
+    // Find 'i' and 'j' such that i is present and j is not.
+    while (this.getnum(j) != Lua.NIL)
+    {
+      i = j;
+      j *= 2;
+      if (j < 0)        // overflow
+      {
+        // Pathological case.  Linear search.
+        i = 1;
+        while (this.getnum(i) != Lua.NIL)
+        {
+          ++i;
+        }
+        return i-1;
+      }
+    }
+    // binary search between i and j
+    while (j - i > 1)
+    {
+      int m = (i+j)/2;
+      if (this.getnum(m) == Lua.NIL)
+      {
+        j = m;
+      }
+      else
+      {
+        i = m;
+      }
+    }
+    return i;
+  }
+
+  /**
+   * Scrambles the hash code of a non-numeric key.  The top bits of
+   * the result are used as the slot index.
+   */
+  private static int hash(Object key)
+  {
+    return key.hashCode() * GOLDEN;
+  }
+
+  /**
+   * Scrambles a numeric key.  -0.0 and 0.0 are the same key so they
+   * must hash the same.
+   */
+  private static int numhash(double d)
+  {
+    long bits = Double.doubleToLongBits(d + 0.0);       // -0.0 to 0.0
+    return ((int)bits ^ (int)(bits >>> 32)) * GOLDEN;
+  }
+
+  /**
+   * Finds the slot of <var>key</var>, which is not a number, in the
+   * hash part.
+   * @return the index into {@link #hkey}, or -1 if not present.
+   */
+  private int hfind(Object key)
+  {
+    Object[] k = hkey;
+    if (k.length == 0)
+    {
+      return -1;
+    }
+    int mask = k.length - 1;
+    int i = hash(key) >>> hshift;
+    Object o;
+    while ((o = k[i]) != null)
+    {
+      if (o == key || o.equals(key))
+      {
+        return i;
+      }
+      i = (i+1) & mask;
+    }
+    return -1;
+  }
+
+  /**
+   * Finds the slot of the number <var>d</var> in the numeric hash
+   * part.
+   * @return the index into {@link #nkey}, or -1 if not present.
+   */
+  private int nfind(double d)
+  {
+    double[] k = nkey;
+    if (k.length == 0)
+    {
+      return -1;
+    }
+    int mask = k.length - 1;
+    int i = numhash(d) >>> nshift;
+    double x;
+    while ((x = k[i]) == x)     // not NaN, so not free
+    {
+      if (x == d)
+      {
+        return i;
+      }
+      i = (i+1) & mask;
+    }
+    return -1;
+  }
+
+  /**
+   * Finds the slot of a live entry in the hash part.  Used to fill
+   * {@link InlineCache} entries.
+   * @return the index into {@link #hvalue}, or -1 if <var>key</var>
+   * has no value in the hash part.
+   */
+  int hslot(Object key)
+  {
+    if (source != null)
+    {
+      copysource();
+    }
+    if (key instanceof Double || weakk || weakv)
+    {
+      return -1;
+    }
+    int i = hfind(key);
+    if (i >= 0 && hvalue[i] == Lua.NIL)
+    {
+      return -1;
+    }
+    return i;
+  }
+
+  /**
+   * Sets a (non-nil) value in the hash part, adding the key (which is
+   * not a number) if necessary.  Adding a key may rehash the table.
+   */
+  private void hset(Object key, Object value)
+  {
+    if (weakv)
+    {
+      value = weak(value);
+    }
+    int i = hfind(key);
+    if (i >= 0)
+    {
+      if (hvalue[i] == Lua.NIL)         // reviving a dead key
+      {
+        ++version;
+      }
+      hvalue[i] = value;
+      return;
+    }
+    ++version;
+    if (shrink())
+    {
+      rehash(key);
+      rawset(key, value);
+      return;
+    }
+    if (weakk)
+    {
+      key = weak(key);
+    }
+    // Not present; find a dead or free slot.
+    if (hkey.length != 0)
+    {
+      int mask = hkey.length - 1;
+      i = hash(key) >>> hshift;
+      while (hkey[i] != null)
+      {
+        if (!hlive(i))          // dead, reuse it
+        {
+          hkey[i] = key;
+          hvalue[i] = value;
+          return;
+        }
+        i = (i+1) & mask;
+      }
+    }
+    if (hused >= hlimit)
+    {
+      rehash(key);
+      rawset(key, value);
+      return;
+    }
+    hkey[i] = key;
+    hvalue[i] = value;
+    ++hused;
+  }
+
+  /**
+   * Like {@link #hset} for the numeric hash part.  Adding a key may
+   * rehash the table, in which case the key may end up in the array
+   * part.
+   */
+  private void nset(double d, Object value)
+  {
+    if (weakv)
+    {
+      value = weak(value);
+    }
+    int i = nfind(d);
+    if (i >= 0)
+    {
+      nvalue[i] = value;
+      return;
+    }
+    if (shrink())
+    {
+      rehash(Lua.valueOfNumber(d));
+      rawsetnum(d, value);
+      return;
+    }
+    // Not present; find a dead or free slot.
+    if (nkey.length != 0)
+    {
+      int mask = nkey.length - 1;
+      i = numhash(d) >>> nshift;
+      while (nkey[i] == nkey[i])
+      {
+        if (dead(nvalue[i]))    // dead, reuse it
+        {
+          nkey[i] = d;
+          nvalue[i] = value;
+          return;
+        }
+        i = (i+1) & mask;
+      }
+    }
+    if (nused >= nlimit)
+    {
+      rehash(Lua.valueOfNumber(d));
+      rawsetnum(d, value);
+      return;
+    }
+    nkey[i] = d;
+    nvalue[i] = value;
+    ++nused;
+  }
+
+  /**
+   * Removes <var>key</var> from the hash part, if present, by making
+   * it dead.
+   */
+  private void hremove(Object key)
+  {
+    int i = hfind(key);
+    if (i >= 0)
+    {
+      hvalue[i] = Lua.NIL;
+    }
+  }
+
+  /**
+   * Sets <var>key</var> to <var>value</var> without any checks on the
+   * key.  Used internally once the key is known to be valid.
+   */
+  private void rawset(Object key, Object value)
+  {
+    if (key instanceof Double)
+    {
+      rawsetnum(((Double)key).doubleValue(), value);
+      return;
+    }
+    if (value == Lua.NIL)
+    {
+      hremove(key);
+      return;
+    }
+    hset(key, value);
+  }
+
+  /** Like {@link #rawset} for a number key. */
+  private void rawsetnum(double d, Object value)
+  {
+    int i = (int)d;
+    if (i == d && i >= 1 && i <= sizeArray)
+    {
+      aset(i-1, value);
+      return;
+    }
+    if (value == Lua.NIL)
+    {
+      i = nfind(d);
+      if (i >= 0)
+      {
+        nvalue[i] = Lua.NIL;
+      }
+      return;
+    }
+    nset(d, value);
+  }
+
+  /**
+   * Gets the value for <var>key</var>.  Ensures that indexes
+   * with no value return {@link Lua#NIL}.  In order to get the correct
+   * behaviour for <code>t[nil]</code>, this code assumes that Lua.NIL
+   * is non-<code>null</code>.
+   */
+  Object getlua(Object key)
+  {
+    if (source != null)
+    {
+      copysource();
+    }
+    int i;
+    if (key instanceof Double)
+    {
+      double d = ((Double)key).doubleValue();
+      if (d <= sizeArray && d >=1)
+      {
+        i = (int)d;
+        if (i == d)
+        {
+          return aget(i-1);
+        }
+      }
+      i = nfind(d);
+      if (i < 0)
+      {
+        return Lua.NIL;
+      }
+      return weakv ? strong(nvalue[i]) : nvalue[i];
+    }
+    i = hfind(key);
+    if (i < 0)
+    {
+      return Lua.NIL;
+    }
+    return weakv ? strong(hvalue[i]) : hvalue[i];
+  }
+
+  /**
+   * Like {@link #getlua(Object)} but the result is written into
+   * the <var>value</var> {@link Slot}.
+   */
+  void getlua(Slot key, Slot value)
+  {
+    if (source != null)
+    {
+      copysource();
+    }
+    int i;
+    if (key.r == Lua.NUMBER)
+    {
+      double d = key.d;
+      if (d <= sizeArray && d >= 1)
+      {
+        i = (int)d;
+        if (i == d)
+        {
+          aget(i-1, value);
+          return;
+        }
+      }
+      i = nfind(d);
+      value.setObject(i < 0 ? Lua.NIL :
+          weakv ? strong(nvalue[i]) : nvalue[i]);
+      return;
+    }
+    i = hfind(key.r);
+    if (i < 0)
+    {
+      value.setObject(Lua.NIL);
+      return;
+    }
+    value.setObject(weakv ? strong(hvalue[i]) : hvalue[i]);
+  }
+
+  /** Like get for numeric (integer) keys. */
+  Object getnum(int k)
+  {
+    if (source != null)
+    {
+      copysource();
+    }
+    if (k <= sizeArray && k >= 1)
+    {
+      return aget(k-1);
+    }
+    int i = nfind(k);
+    if (i < 0)
+    {
+      return Lua.NIL;
+    }
+    return weakv ? strong(nvalue[i]) : nvalue[i];
+  }
+
+  /**
+   * Sets a value, with Lua's semantics
+   * for <code>nil</code>;
+   * In particular that <code>x = nil</nil>
+   * deletes <code>x</code>.
+   * And also that <code>t[nil]</code> raises an error.
+   * Generally, users of Jill should be using
+   * {@link Lua#setTable} instead of this.
+   * @param key key.
+   * @param value value.
+   */
+  void putlua(Lua L, Object key, Object value)
+  {
+    if (source != null)
+    {
+      copysource();
+    }
+    if (key == Lua.NIL)
+    {
+      L.gRunerror("table index is nil");
+    }
+    if (frozen)
+    {
+      L.gRunerror(FROZEN);
+    }
+    if (value == Lua.NIL)
+    {
+      ++ndeleted;
+    }
+    if (key instanceof Double)
+    {
+      double d = ((Double)key).doubleValue();
+      int i = (int)d;
+      if (i == d && i >= 1 &&
+          (i <= sizeArray || (value != Lua.NIL && append(i))))
       {
-        i = j;
-        if (i <= sizeArray)
-        {
-          array[i-1] = value;
-          return;
-        }
+        aset(i-1, value);
+        return;
       }
-      if (Double.isNaN(key.d))
+      if (Double.isNaN(d))
       {
         L.gRunerror("table index is NaN");
       }
+      rawsetnum(d, value);
+      return;
     }
-    Object k = key.asObject();
-    // :todo: consider some sort of tail merge with the other putlua
     if (value == Lua.NIL)
     {
-      remove(k);
+      hremove(key);
       return;
     }
-    super.put(k, value);
-    if (i <= sizeArray)
+    hset(key, value);
+  }
+
+  void putlua(Lua L, Slot key, Object value)
+  {
+    if (source != null)
+    {
+      copysource();
+    }
+    if (key.r == Lua.NUMBER)
     {
-      remove(k);
-      array[i-1] = value;
+      if (frozen)
+      {
+        L.gRunerror(FROZEN);
+      }
+      if (value == Lua.NIL)
+      {
+        ++ndeleted;
+      }
+      int i = (int)key.d;
+      if (i == key.d && i >= 1 &&
+          (i <= sizeArray || (value != Lua.NIL && append(i))))
+      {
+        aset(i-1, value);
+        return;
+      }
+      if (Double.isNaN(key.d))
+      {
+        L.gRunerror("table index is NaN");
+      }
+      rawsetnum(key.d, value);
+      return;
     }
+    putlua(L, key.r, value);
   }
 
   /**
@@ -537,42 +1461,403 @@ public final class LuaTable extends java.util.Hashtable
    */
   void putnum(int k, Object v)
   {
-    if (k <= sizeArray && k >= 1)
+    if (source != null)
+    {
+      copysource();
+    }
+    if (v == Lua.NIL)
+    {
+      ++ndeleted;
+    }
+    if (k >= 1 && (k <= sizeArray || (v != Lua.NIL && append(k))))
     {
-      array[k-1] = v;
+      aset(k-1, v);
       return;
     }
-    // The key can never be NIL so putlua will never notice that its L
-    // argument is null.
-    // :todo: optimisation to avoid putlua checking for array part again
-    putlua(null, new Double(k), v);
+    rawsetnum(k, v);
   }
 
   /**
-   * Do not use, implementation exists only to generate deprecated
-   * warning.
-   * @deprecated Use getlua instead.
+   * Like {@link #putnum(int, Object)} but takes the value from a
+   * {@link Slot}.
    */
-  public Object get(Object key)
+  void putnum(int k, Slot v)
   {
-    throw new IllegalArgumentException();
+    if (source != null)
+    {
+      copysource();
+    }
+    if (v.r == Lua.NIL)
+    {
+      ++ndeleted;
+    }
+    if (k >= 1 && (k <= sizeArray || (v.r != Lua.NIL && append(k))))
+    {
+      aset(k-1, v);
+      return;
+    }
+    rawsetnum(k, v.asObject());
   }
 
-  public Enumeration keys()
+  /**
+   * Fast path for OP_SETTABLE.  If <var>key</var> is in the array part
+   * (or appends to it) and the store cannot involve a __newindex
+   * metamethod (there is no metatable, or the key already has a
+   * value) and the table is neither frozen nor a lazy copy, stores
+   * <var>value</var> there, without boxing a number, and returns
+   * true.  Otherwise returns false and does nothing.
+   */
+  boolean putarray(Slot key, Slot value)
+  {
+    if (key.r != Lua.NUMBER || frozen || source != null)
+    {
+      return false;
+    }
+    int i = (int)key.d;
+    if (i != key.d || i < 1)
+    {
+      return false;
+    }
+    if (i > sizeArray)
+    {
+      if (metatable != null || value.r == Lua.NIL || !append(i))
+      {
+        return false;
+      }
+    }
+    else if (metatable != null && anil(i-1))
+    {
+      return false;
+    }
+    if (value.r == Lua.NIL)
+    {
+      ++ndeleted;
+    }
+    aset(i-1, value);
+    return true;
+  }
+
+  /**
+   * Sorts elements 1 to <var>n</var> in place, in the order of Lua's
+   * <code>&lt;</code>, if they are all in the array part and are all
+   * numbers or all strings (so that no comparison can call a
+   * metamethod or raise an error).  Used by table.sort when it is not
+   * given an order function.  A merge sort, so it takes O(n log n)
+   * time whatever the order of the elements, and no time when they
+   * are already sorted.
+   * @return true if sorted; false, having done nothing, otherwise.
+   */
+  boolean sortarray(int n)
+  {
+    if (source != null)
+    {
+      copysource();
+    }
+    if (frozen || weakv || n > sizeArray)
+    {
+      return false;
+    }
+    if (darray != null)
+    {
+      for (int i=0; i<n; ++i)
+      {
+        if (darray[i] != darray[i])     // nil
+        {
+          return false;
+        }
+      }
+      msort(darray, new double[n], 0, n);
+      return true;
+    }
+    boolean num = true;
+    boolean str = true;
+    for (int i=0; i<n && (num || str); ++i)
+    {
+      num = num && array[i] instanceof Double;
+      str = str && array[i] instanceof String;
+    }
+    if (!num && !str)
+    {
+      return false;
+    }
+    msort(array, new Object[n], 0, n, num);
+    return true;
+  }
+
+  /**
+   * Copies elements <var>f</var> to <var>e</var> of this table to
+   * <var>dst</var>, starting at index <var>t</var>, with
+   * System.arraycopy, if both ranges are in (or, for the destination,
+   * extend) the array parts.  The ranges may overlap when
+   * <var>dst</var> is this table.  Used by table.insert, table.remove
+   * and table.move.  No metamethods are used.
+   * @return true if copied; false, having done nothing, otherwise.
+   */
+  boolean arraymove(int f, int e, int t, LuaTable dst)
+  {
+    if (e < f)
+    {
+      return true;
+    }
+    if (source != null)
+    {
+      copysource();
+    }
+    if (dst.source != null)
+    {
+      dst.copysource();
+    }
+    if (dst.frozen || weakv || dst.weakv || f < 1 || t < 1 ||
+        e > sizeArray || t > dst.sizeArray+1 || e-f >= MAXASIZE-t)
+    {
+      return false;
+    }
+    int n = e - f + 1;
+    if (t+n-1 > dst.sizeArray)
+    {
+      dst.resizearray(t+n-1);
+    }
+    if (darray != null && dst.darray != null)
+    {
+      System.arraycopy(darray, f-1, dst.darray, t-1, n);
+      return true;
+    }
+    if (dst.darray != null)
+    {
+      dst.toobject();
+    }
+    if (darray == null)
+    {
+      System.arraycopy(array, f-1, dst.array, t-1, n);
+      return true;
+    }
+    // Numbers into an object array; not the same table.
+    for (int i=0; i<n; ++i)
+    {
+      double x = darray[f-1+i];
+      dst.array[t-1+i] = x != x ? Lua.NIL : Lua.valueOfNumber(x);
+    }
+    return true;
+  }
+
+  /** Ranges at most this long are sorted by insertion sort. */
+  private static final int INSERTIONSORT = 12;
+
+  /**
+   * Sorts <var>a</var>[<var>lo</var>..<var>hi</var>) using
+   * <var>tmp</var>, at least as long, as scratch.
+   */
+  private static void msort(double[] a, double[] tmp, int lo, int hi)
+  {
+    if (hi - lo <= INSERTIONSORT)
+    {
+      for (int i=lo+1; i<hi; ++i)
+      {
+        double x = a[i];
+        int j = i;
+        for (; j > lo && x < a[j-1]; --j)
+        {
+          a[j] = a[j-1];
+        }
+        a[j] = x;
+      }
+      return;
+    }
+    int mid = (lo + hi) >>> 1;
+    msort(a, tmp, lo, mid);
+    msort(a, tmp, mid, hi);
+    if (!(a[mid] < a[mid-1]))   // already in order
+    {
+      return;
+    }
+    System.arraycopy(a, lo, tmp, lo, mid-lo);
+    int i = lo;
+    int j = mid;
+    int k = lo;
+    while (i < mid && j < hi)
+    {
+      a[k++] = a[j] < tmp[i] ? a[j++] : tmp[i++];
+    }
+    while (i < mid)
+    {
+      a[k++] = tmp[i++];
+    }
+  }
+
+  /**
+   * Like {@link #msort(double[], double[], int, int)} for an array of
+   * all Double (<var>num</var> true) or all String.
+   */
+  private static void msort(Object[] a, Object[] tmp, int lo, int hi,
+      boolean num)
+  {
+    if (hi - lo <= INSERTIONSORT)
+    {
+      for (int i=lo+1; i<hi; ++i)
+      {
+        Object x = a[i];
+        int j = i;
+        for (; j > lo && lt(x, a[j-1], num); --j)
+        {
+          a[j] = a[j-1];
+        }
+        a[j] = x;
+      }
+      return;
+    }
+    int mid = (lo + hi) >>> 1;
+    msort(a, tmp, lo, mid, num);
+    msort(a, tmp, mid, hi, num);
+    if (!lt(a[mid], a[mid-1], num))
+    {
+      return;
+    }
+    System.arraycopy(a, lo, tmp, lo, mid-lo);
+    int i = lo;
+    int j = mid;
+    int k = lo;
+    while (i < mid && j < hi)
+    {
+      a[k++] = lt(a[j], tmp[i], num) ? a[j++] : tmp[i++];
+    }
+    while (i < mid)
+    {
+      a[k++] = tmp[i++];
+    }
+  }
+
+  /** Lua's <code>&lt;</code> for two Doubles or two Strings. */
+  private static boolean lt(Object x, Object y, boolean num)
+  {
+    if (num)
+    {
+      return ((Double)x).doubleValue() < ((Double)y).doubleValue();
+    }
+    return ((String)x).compareTo((String)y) < 0;
+  }
+
+  /**
+   * Equivalent to findindex in ltable.c.  Finds the traversal index of
+   * <var>key</var>.  Traversal indexes run through the array part and
+   * then through the slots of the hash part.  Dead keys are still
+   * found, so an entry may be removed during a traversal.
+   * @return  the index, or -1 if <var>key</var> is nil (the start of a
+   * traversal).
+   */
+  private int findindex(Lua L, Slot key)
+  {
+    int j;
+    if (key.r == Lua.NIL)
+    {
+      return -1;
+    }
+    if (key.r == Lua.NUMBER)
+    {
+      double d = key.d;
+      int i = (int)d;
+      if (i == d && i >= 1 && i <= sizeArray)
+      {
+        return i-1;
+      }
+      j = nfind(d);
+      if (j >= 0)
+      {
+        return sizeArray + hkey.length + j;
+      }
+    }
+    else
+    {
+      j = hfind(key.r);
+      if (j >= 0)
+      {
+        return sizeArray + j;
+      }
+    }
+    L.gRunerror("invalid key to 'next'");
+    return 0;   // not reached
+  }
+
+  /**
+   * Equivalent to luaH_next.  Replaces the contents of <var>key</var>
+   * with the key that follows it in the table, and sets
+   * <var>value</var> to the corresponding value.  A nil key starts a
+   * traversal.  Each step is constant time (amortised) and allocates
+   * nothing.
+   * @param L      Lua state, used for reporting invalid keys.
+   * @param key    on entry the previous key, on exit the next key.
+   * @param value  on exit the next value.
+   * @return false when there are no more entries.
+   */
+  boolean next(Lua L, Slot key, Slot value)
   {
-    return new Enum(this, super.keys());
+    if (source != null)
+    {
+      copysource();
+    }
+    int i = findindex(L, key);
+    for (++i; i < sizeArray; ++i)
+    {
+      if (!anil(i))
+      {
+        key.r = Lua.NUMBER;
+        key.d = i+1;
+        aget(i, value);
+        return true;
+      }
+    }
+    for (i -= sizeArray; i < hkey.length; ++i)
+    {
+      Object k = hkey[i];
+      Object v = hvalue[i];
+      if (k == null || v == Lua.NIL)
+      {
+        continue;
+      }
+      if (weakk || weakv)
+      {
+        k = strong(k);
+        v = strong(v);
+        if (k == Lua.NIL || v == Lua.NIL)       // collected
+        {
+          continue;
+        }
+      }
+      key.setObject(k);
+      value.setObject(v);
+      return true;
+    }
+    for (i -= hkey.length; i < nkey.length; ++i)
+    {
+      if (nkey[i] != nkey[i])
+      {
+        continue;
+      }
+      Object v = weakv ? strong(nvalue[i]) : nvalue[i];
+      if (v != Lua.NIL)
+      {
+        key.r = Lua.NUMBER;
+        key.d = nkey[i];
+        value.setObject(v);
+        return true;
+      }
+    }
+    return false;
   }
 
   /**
-   * Do not use, implementation exists only to generate deprecated
-   * warning.
-   * @deprecated Use putlua instead.
+   * Returns an {@link java.util.Enumeration} of the keys in the
+   * table.  Generally, users of Jill should be using
+   * {@link Lua#tableKeys} instead of this.
    */
-  public Object put(Object key, Object value)
+  public Enumeration keys()
   {
-    throw new IllegalArgumentException();
+    if (source != null)
+    {
+      copysource();
+    }
+    return new Enum(this);
   }
-  
+
   /**
    * Used by oLog2.  DO NOT MODIFY.
    */
@@ -612,35 +1897,67 @@ public final class LuaTable extends java.util.Hashtable
 final class Enum implements Enumeration
 {
   private LuaTable t;
+  /** Index into array part. */
   private int i;        // = 0
-  private Enumeration e;
+  /** Index into hash part. */
+  private int j;        // = 0
+  /** Index into numeric hash part. */
+  private int k;        // = 0
+  /**
+   * The key at {@link #j}, held strongly so that a weak key cannot be
+   * collected before {@link #nextElement} returns it.
+   */
+  private Object key;
 
-  Enum(LuaTable t, Enumeration e)
+  Enum(LuaTable t)
   {
     this.t = t;
-    this.e = e;
     inci();
   }
 
   /**
    * Increments {@link #i} until it either exceeds
-   * <code>t.sizeArray</code> or indexes a non-nil element.
+   * <code>t.sizeArray</code> or indexes a non-nil element, then
+   * increments {@link #j} until it either exceeds the size of the hash
+   * part or indexes a live entry (whose key it holds in {@link
+   * #key}), then does the same for {@link #k} and the numeric hash
+   * part.
    */
   void inci()
   {
-    while (i < t.sizeArray && t.array[i] == Lua.NIL)
+    while (i < t.sizeArray && t.anil(i))
     {
       ++i;
     }
+    if (i < t.sizeArray)
+    {
+      return;
+    }
+    key = null;
+    for (; j < t.hkey.length; ++j)
+    {
+      if (t.hlive(j))
+      {
+        key = t.hkey[j];
+        if (key instanceof WeakRef)
+        {
+          key = ((WeakRef)key).get();
+        }
+        if (key != null)        // not collected since hlive
+        {
+          return;
+        }
+      }
+    }
+    while (k < t.nkey.length && !t.nlive(k))
+    {
+      ++k;
+    }
   }
 
   public boolean hasMoreElements()
   {
-    if (i < t.sizeArray)
-    {
-      return true;
-    }
-    return e.hasMoreElements();
+    return i < t.sizeArray || j < t.hkey.length || k < t.nkey.length;
   }
 
   public Object nextElement()
@@ -649,13 +1966,50 @@ final class Enum implements Enumeration
     if (i < t.sizeArray)
     {
       ++i;      // array index i corresponds to key i+1
-      r = new Double(i);
-      inci();
+      r = Lua.valueOfNumber(i);
+    }
+    else if (j < t.hkey.length)
+    {
+      r = key;
+      ++j;
     }
     else
     {
-      r = e.nextElement();
+      r = Lua.valueOfNumber(t.nkey[k]);
+      ++k;
     }
+    inci();
     return r;
   }
 }
+
+/**
+ * Weak reference to a key or value of a weak table, see {@link
+ * LuaTable#setMetatable}.  Hashes and compares like its referent, so
+ * that a weak key is found by looking up the referent itself.
+ */
+final class WeakRef extends WeakReference
+{
+  private final int hash;
+
+  WeakRef(Object o)
+  {
+    super(o);
+    hash = o.hashCode();
+  }
+
+  public int hashCode()
+  {
+    return hash;
+  }
+
+  public boolean equals(Object o)
+  {
+    if (o instanceof WeakRef)
+    {
+      o = ((WeakRef)o).get();
+    }
+    Object r = get();
+    return r != null && (r == o || r.equals(o));
+  }
+}
@@ -24,6 +24,8 @@
 
 package mnj.lua;
 
+import java.lang.ref.WeakReference;
+
 /**
  * Models an arbitrary Java reference as a Lua value.
  * This class provides a facility that is equivalent to the userdata
@@ -41,6 +43,8 @@ public final class LuaUserdata
   private Object userdata;
   private LuaTable metatable;
   private LuaTable env;
+  /** Its entry in the __gc registry, if any; see {@link Finalizer}. */
+  private Finalizer finalizer;
   /**
    * Wraps an arbitrary Java reference.  To retrieve the reference that
    * was wrapped, use {@link Lua#toUserdata}.
@@ -76,6 +80,10 @@ public final class LuaUserdata
   void setMetatable(LuaTable metatable)
   {
     this.metatable = metatable;
+    if (finalizer != null)
+    {
+      finalizer.metatable = metatable;
+    }
   }
 
   /**
@@ -93,5 +101,54 @@ public final class LuaUserdata
   void setEnv(LuaTable env)
   {
     this.env = env;
+    if (finalizer != null)
+    {
+      finalizer.env = env;
+    }
+  }
+
+  /** True if this userdata has been registered for __gc. */
+  boolean finalizable()
+  {
+    return finalizer != null;
+  }
+
+  /** Setter for the __gc registry entry. */
+  void setFinalizer(Finalizer finalizer)
+  {
+    this.finalizer = finalizer;
+  }
+}
+
+/**
+ * Entry in the __gc registry of a Lua state, see {@link
+ * Lua#setMetatable}.  Refers weakly to a {@link LuaUserdata} and
+ * strongly to its contents, so that once the userdata has been
+ * collected a replacement can be made and passed to __gc.  A userdata
+ * whose object refers back to the userdata is therefore never
+ * collected.
+ */
+final class Finalizer extends WeakReference
+{
+  private final Object userdata;
+  LuaTable metatable;
+  LuaTable env;
+
+  Finalizer(LuaUserdata u)
+  {
+    super(u);
+    userdata = u.getUserdata();
+    metatable = u.getMetatable();
+    env = u.getEnv();
+    u.setFinalizer(this);
+  }
+
+  /** A fresh userdata equivalent to the collected one. */
+  LuaUserdata resurrect()
+  {
+    LuaUserdata u = new LuaUserdata(userdata);
+    u.setMetatable(metatable);
+    u.setEnv(env);
+    return u;
   }
 }
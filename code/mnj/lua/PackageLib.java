@@ -43,6 +43,7 @@ public final class PackageLib extends LuaJavaCallback
   private static final int SEEALL = 3;
   private static final int LOADER_PRELOAD = 4;
   private static final int LOADER_LUA = 5;
+  private static final int LOADER_CLASS = 6;
 
   /**
    * Which library function this object represents.  This value should
@@ -91,6 +92,8 @@ public final class PackageLib extends LuaJavaCallback
         return loaderLua(L);
       case LOADER_PRELOAD:
         return loaderPreload(L);
+      case LOADER_CLASS:
+        return loaderClass(L);
     }
     return 0;
   }
@@ -111,8 +114,11 @@ public final class PackageLib extends LuaJavaCallback
 
     L.setField(t, "loaders", L.newTable());
     p(L, t, LOADER_PRELOAD);
+    p(L, t, LOADER_CLASS);
     p(L, t, LOADER_LUA);
     setpath(L, t, "path", PATH_DEFAULT);        // set field 'path'
+    // set field 'classpath'
+    setpath(L, t, "classpath", CLASSPATH_DEFAULT);
 
     // set field 'loaded'
     L.findTable(L.getRegistry(), Lua.LOADED, 1);
@@ -148,6 +154,11 @@ public final class PackageLib extends LuaJavaCallback
   private static final char PATHSEP = ';';
   private static final String PATH_MARK = "?";
   private static final String PATH_DEFAULT = "?.lua;?/init.lua";
+  /**
+   * Default templates for the names of classes generated by the ahead
+   * of time compiler.  See {@link #loaderClass}.
+   */
+  private static final String CLASSPATH_DEFAULT = "mnj.lua.LuaChunk_?";
 
   private static final Object SENTINEL = new Object();
 
@@ -169,8 +180,66 @@ public final class PackageLib extends LuaJavaCallback
   }
 
   /**
-   * Implements the lua loader.  This is conventionally stored second in
-   * the package.loaders table.
+   * Implements the class loader, for chunks compiled to Java classes
+   * ahead of time (see {@link CompiledChunk}).  Each template in
+   * <code>package.classpath</code> is tried in turn, with each '.' in
+   * the module name replaced by '_'.  Stored after the preload loader
+   * and before the lua loader, so that a compiled chunk is preferred to
+   * its source.
+   */
+  private int loaderClass(Lua L)
+  {
+    String name = gsub(L.checkString(1), ".", "_");
+    String path = L.toString(L.getField(me, "classpath"));
+    if (path == null)
+      L.error("'package.classpath' must be a string");
+    L.pushString("");   // error accumulator
+    while (true)
+    {
+      path = pushnexttemplate(L, path);
+      if (path == null)
+        break;
+      String classname = gsub(L.toString(L.value(-1)), PATH_MARK, name);
+      Object f = newInstance(classname);
+      if (f != null)
+      {
+        L.push(f);
+        return 1;
+      }
+      L.pop(1); // remove path template
+      L.pushString("\n\tno class '" + classname + "'");
+      L.concat(2);
+    }
+    return 1;   // not found; error accumulator
+  }
+
+  /**
+   * Creates an instance of a Lua Java function class.  Returns
+   * <code>null</code> if there is no such class or it isn't one.
+   */
+  private static Object newInstance(String classname)
+  {
+    try
+    {
+      Object o = Class.forName(classname).newInstance();
+      if (o instanceof LuaJavaCallback)
+        return o;
+    }
+    catch (ClassNotFoundException e_)
+    {
+    }
+    catch (IllegalAccessException e_)
+    {
+    }
+    catch (InstantiationException e_)
+    {
+    }
+    return null;
+  }
+
+  /**
+   * Implements the lua loader.  This is stored third in the
+   * package.loaders table, after the class loader.
    */
   private int loaderLua(Lua L)
   {
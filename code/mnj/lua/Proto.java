@@ -87,6 +87,32 @@ final class Proto
   String source;
   int linedefined;
   int lastlinedefined;
+  /**
+   * Number of times a function of this prototype has been called plus
+   * the number of loop iterations (backward jumps) it has made.  Once
+   * this reaches {@link Lua#hotcount} the prototype is promoted to
+   * the optimised tier.  Updates are not synchronized: a lost update
+   * merely delays promotion.
+   */
+  int hotness;
+  /**
+   * The resources of the optimised tier, <code>null</code> until the
+   * prototype is hot, see {@link #tierUp}.  Cold code therefore costs
+   * no extra memory.  Prototypes are shared by the states made by
+   * {@link Lua#fork}, which may run on other threads, so the tier is
+   * published, fully built, through this volatile field; readers take
+   * one snapshot of it and use both its parts from that.
+   */
+  volatile Tier tier;
+  /**
+   * Java code for this prototype's function body, generated ahead of
+   * time by <code>Luajc</code>, or <code>null</code> if the body is
+   * interpreted.  See {@link CompiledChunk}.  A compiled prototype is
+   * never promoted to the optimised tier.
+   */
+  CompiledChunk compiled;
+  /** Which of {@link #compiled}'s function bodies is this one's. */
+  int compiledid;
 
   /**
    * Proto synthesized by {@link Loader}.
@@ -220,6 +246,100 @@ final class Proto
     return code;
   }
 
+  /**
+   * Code for the interpreter to execute: {@link Tier#exec} when the
+   * prototype is hot, {@link #code} otherwise.
+   */
+  int[] execCode()
+  {
+    Tier t = tier;
+    return t != null ? t.exec : code;
+  }
+
+  /**
+   * Promotes the prototype to the optimised tier, allocating the
+   * resources used there (the inline cache and the rewritable copy of
+   * the code).  The optimised tier runs in the same interpreter loop,
+   * so hooks, coroutines and the debug library behave exactly as in
+   * the cold tier.  Synchronized so that states promoting the same
+   * shared prototype at once end up with the same tier.
+   * @return the tier.
+   */
+  synchronized Tier tierUp()
+  {
+    if (tier == null)
+    {
+      int[] x = new int[sizecode];
+      System.arraycopy(code, 0, x, 0, sizecode);
+      fuse(x);
+      tier = new Tier(x, new InlineCache[sizecode]);
+    }
+    return tier;
+  }
+
+  /**
+   * Rewrites the first instruction of each common pair of
+   * instructions in <var>x</var> to a superinstruction that executes
+   * both.  The second instruction is left as it is, so it can still be
+   * jumped to and keeps its line info; the pair need not be in a
+   * single basic block.  Pairs overlap: in a run of MOVEs each MOVE
+   * but the last becomes a MOVE_MOVE.
+   */
+  private static void fuse(int[] x)
+  {
+    for (int pc=0; pc<x.length-1; ++pc)
+    {
+      int i = x[pc];
+      int next = Lua.OPCODE(x[pc+1]);
+      int op = -1;
+      switch (Lua.OPCODE(i))
+      {
+        case Lua.OP_MOVE:
+          if (next == Lua.OP_MOVE)
+          {
+            op = Lua.OP_MOVE_MOVE;
+          }
+          else if (next == Lua.OP_CALL)
+          {
+            op = Lua.OP_MOVE_CALL;
+          }
+          break;
+        case Lua.OP_LOADK:
+          if (next == Lua.OP_LOADK)
+          {
+            op = Lua.OP_LOADK_LOADK;
+          }
+          else if (next == Lua.OP_CALL)
+          {
+            op = Lua.OP_LOADK_CALL;
+          }
+          break;
+        case Lua.OP_GETGLOBAL:
+          if (next == Lua.OP_GETTABLE)
+          {
+            op = Lua.OP_GETGLOBAL_GETTABLE;
+          }
+          break;
+        case Lua.OP_GETTABLE:
+          if (next == Lua.OP_CALL)
+          {
+            op = Lua.OP_GETTABLE_CALL;
+          }
+          break;
+        case Lua.OP_SETLIST:
+          if (Lua.ARGC(i) == 0)
+          {
+            ++pc;       // skip the next word, it is not an instruction
+          }
+          break;
+      }
+      if (op >= 0)
+      {
+        x[pc] = Lua.SET_OPCODE(i, op);
+      }
+    }
+  }
+
   /** Append instruction. */
   void codeAppend(Lua L, int pc, int instruction, int line)
   {
@@ -442,3 +562,29 @@ final class Proto
   }
 
 }
+
+/**
+ * The optimised tier of a {@link Proto}, see {@link Proto#tierUp}.
+ * Immutable apart from the contents of its arrays, which hold
+ * instructions and cache entries that are each valid whichever
+ * version of a word a thread sees.
+ */
+final class Tier
+{
+  /**
+   * Code executed by the interpreter.  A copy of {@link Proto#code} in
+   * which instructions may be rewritten to quickened (type
+   * specialised) forms, and rewritten back when a quickened
+   * instruction's guard fails.  The debug library, dump and error
+   * messages use {@link Proto#code}, which is never rewritten.
+   */
+  final int[] exec;
+  /** Inline cache, indexed by PC. */
+  final InlineCache[] ic;
+
+  Tier(int[] exec, InlineCache[] ic)
+  {
+    this.exec = exec;
+    this.ic = ic;
+  }
+}
@@ -41,6 +41,7 @@ public final class TableLib extends LuaJavaCallback
   private static final int MAXN = 3;
   private static final int REMOVE = 4;
   private static final int SORT = 5;
+  private static final int MOVE = 6;
 
   /**
    * Which library function this object represents.  This value should
@@ -74,6 +75,8 @@ public final class TableLib extends LuaJavaCallback
         return remove(L);
       case SORT:
         return sort(L);
+      case MOVE:
+        return move(L);
     }
     return 0;
   }
@@ -91,6 +94,7 @@ public final class TableLib extends LuaJavaCallback
     r(L, "concat", CONCAT);
     r(L, "insert", INSERT);
     r(L, "maxn", MAXN);
+    r(L, "move", MOVE);
     r(L, "remove", REMOVE);
     r(L, "sort", SORT);
   }
@@ -142,6 +146,15 @@ public final class TableLib extends LuaJavaCallback
           pos = L.checkInt(2);  // 2nd argument is the position
           if (pos > e)
             e = pos;    // grow array if necessary
+          else if (pos < e)
+          {
+            // t[e] = t[e-1] first, which grows the array part if need
+            // be, then move the rest up in one go if possible.
+            L.rawSetI(t, e, L.rawGetI(t, e-1));
+            --e;
+            if (((LuaTable)t).arraymove(pos, e-1, pos+1, (LuaTable)t))
+              e = pos;
+          }
           for (i = e; i > pos; --i)     // move up elements
           {
             // t[i] = t[i-1]
@@ -187,6 +200,8 @@ public final class TableLib extends LuaJavaCallback
       return 0;         // table is 'empty'
     Object t = L.value(1);
     Object o = L.rawGetI(t, pos);       // result = t[pos]
+    if (((LuaTable)t).arraymove(pos+1, e, pos, (LuaTable)t))
+      pos = e;  // moved down in one go
     for ( ;pos<e; ++pos)
     {
       L.rawSetI(t, pos, L.rawGetI(t, pos+1));   // t[pos] = t[pos+1]
@@ -196,18 +211,78 @@ public final class TableLib extends LuaJavaCallback
     return 1;
   }
 
+  /**
+   * Implements table.move (from Lua 5.3).  Uses metamethods, like
+   * Lua 5.3; when neither table has a metatable the elements are
+   * copied in one go if they are in the array parts.
+   */
+  private static int move(Lua L)
+  {
+    L.checkType(1, Lua.TTABLE);
+    int f = L.checkInt(2);
+    int e = L.checkInt(3);
+    int t = L.checkInt(4);
+    int tt = L.isNoneOrNil(5) ? 1 : 5;  // destination table
+    L.checkType(tt, Lua.TTABLE);
+    Object a1 = L.value(1);
+    Object a2 = L.value(tt);
+    if (e >= f)
+    {
+      L.argCheck(f > 0 || e < Integer.MAX_VALUE + f, 3,
+          "too many elements to move");
+      L.argCheck(t <= Integer.MAX_VALUE - (e - f), 4,
+          "destination wrap around");
+      LuaTable h1 = (LuaTable)a1;
+      LuaTable h2 = (LuaTable)a2;
+      if (h1.getMetatable() != null || h2.getMetatable() != null ||
+          !h1.arraymove(f, e, t, h2))
+      {
+        if (t > e || t <= f || a1 != a2)
+        {
+          for (int i=0; i<=e-f; ++i)
+          {
+            L.setTable(a2, new Double(t+i), L.getTable(a1, new Double(f+i)));
+          }
+        }
+        else    // overlapping, move from the end
+        {
+          for (int i=e-f; i>=0; --i)
+          {
+            L.setTable(a2, new Double(t+i), L.getTable(a1, new Double(f+i)));
+          }
+        }
+      }
+    }
+    L.push(a2);
+    return 1;
+  }
+
   /** Implements table.sort. */
   private static int sort(Lua L)
   {
     int n = aux_getn(L, 1);
+    Object f = null;
     if (!L.isNoneOrNil(2))      // is there a 2nd argument?
+    {
       L.checkType(2, Lua.TFUNCTION);
+      f = L.value(2);
+    }
+    else if (((LuaTable)L.value(1)).sortarray(n))
+    {
+      return 0;
+    }
     L.setTop(2);        // make sure there is two arguments
-    auxsort(L, 1, n);
+    auxsort(L, f, 1, n);
     return 0;
   }
 
-  static void auxsort(Lua L, int l, int u)
+  /**
+   * Sorts elements <var>l</var> to <var>u</var> of the table at stack
+   * index 1.
+   * @param f  the order function, or <code>null</code> for Lua's
+   *           <code>&lt;</code>.
+   */
+  static void auxsort(Lua L, Object f, int l, int u)
   {
     Object t = L.value(1);
     while (l < u)       // for tail recursion
@@ -217,7 +292,7 @@ public final class TableLib extends LuaJavaCallback
       // sort elements a[l], a[l+u/2], and a[u]
       Object o1 = L.rawGetI(t, l);
       Object o2 = L.rawGetI(t, u);
-      if (sort_comp(L, o2, o1)) // a[u] < a[l]?
+      if (sort_comp(L, f, o2, o1)) // a[u] < a[l]?
       {
         L.rawSetI(t, l, o2);
         L.rawSetI(t, u, o1);
@@ -227,7 +302,7 @@ public final class TableLib extends LuaJavaCallback
       i = (l+u)/2;
       o1 = L.rawGetI(t, i);
       o2 = L.rawGetI(t, l);
-      if (sort_comp(L, o1, o2)) // a[i]<a[l]?
+      if (sort_comp(L, f, o1, o2)) // a[i]<a[l]?
       {
         L.rawSetI(t, i, o2);
         L.rawSetI(t, l, o1);
@@ -235,7 +310,7 @@ public final class TableLib extends LuaJavaCallback
       else
       {
         o2 = L.rawGetI(t, u);
-        if (sort_comp(L, o2, o1))       // a[u]<a[i]?
+        if (sort_comp(L, f, o2, o1))       // a[u]<a[i]?
         {
           L.rawSetI(t, i, o2);
           L.rawSetI(t, u, o1);
@@ -257,7 +332,7 @@ public final class TableLib extends LuaJavaCallback
         while (true)
         {
           o1 = L.rawGetI(t, ++i);
-          if (!sort_comp(L, o1, p))
+          if (!sort_comp(L, f, o1, p))
             break;
           if (i>u)
             L.error("invalid order function for sorting");
@@ -266,7 +341,7 @@ public final class TableLib extends LuaJavaCallback
         while (true)
         {
           o2 = L.rawGetI(t, --j);
-          if (!sort_comp(L, p, o2))
+          if (!sort_comp(L, f, p, o2))
             break;
           if (j<l)
             L.error("invalid order function for sorting");
@@ -294,15 +369,15 @@ public final class TableLib extends LuaJavaCallback
         i=u;
         u=j-2;
       }
-      auxsort(L, j, i); // call recursively the smaller one
+      auxsort(L, f, j, i); // call recursively the smaller one
     } // repeat the routine for the larger one
   }
 
-  private static boolean sort_comp(Lua L, Object a, Object b)
+  private static boolean sort_comp(Lua L, Object f, Object a, Object b)
   {
-    if (!L.isNil(L.value(2)))   // function?
+    if (f != null)      // function?
     {
-      L.pushValue(2);
+      L.push(f);
       L.push(a);
       L.push(b);
       L.call(2, 1);
@@ -45,34 +45,51 @@ final class UpVal
    * The offset field.  Stored here, but not actually used directly by
    * this class.
    * Used (by {@link Lua}) when searching for {@link UpVal} instances.
-   * An open UpVal has a valid offset field.  Its slot is shared
-   * with a slot of the VM stack.
-   * A closed UpVal has offset == -1.  It's slot will be a fresh copy
-   * and not shared with any other.
+   * An open UpVal has a valid offset field.  Its value is the element
+   * at that offset of the VM stack of {@link #L}.
+   * A closed UpVal has offset == -1.  Its value is held in {@link
+   * #value} and not shared with any other.
    */
   private int offset;
   /**
-   * The slot object used to store the Lua value.
+   * The Lua thread whose VM stack holds the value while the UpVal is
+   * open; <code>null</code> once it is closed.  The stack is not
+   * referenced directly as it is reallocated when it grows.
    */
-  private Slot s;
+  private Lua L;
+  /**
+   * The value of a closed UpVal.
+   */
+  private Object value;
+  /**
+   * The next open UpVal, with a lower offset, in the list of {@link
+   * Lua}'s open upvalues.  Maintained by Lua; <code>null</code> once
+   * closed.
+   */
+  UpVal next;
 
   /**
-   * A fresh upvalue from an offset, and a slot.
-   * Conceptually <var>offset</var> and <var>slot</var> convey the same
-   * information, only one is necessary since the offset implies the
-   * slot and vice-versa.  <var>slot</var> is used to directly reference
-   * the value (this avoids an indirection to the VM stack). <var>offset</var>
-   * is used when searching for UpVals in the openupval list; this
-   * happens when closing UpVals (function return) or creating them
-   * (execution of functon declaration).
+   * A fresh open upvalue for a slot of the VM stack.
+   * <var>offset</var> is used when searching for UpVals in the
+   * openupval list; this happens when closing UpVals (function return)
+   * or creating them (execution of functon declaration).
+   * @param L  the Lua thread whose stack is referenced.
    * @param offset  index into Lua thread's VM stack, must be a valid index.
-   * @param s  Slot corresponding to offset.
-   * @throws NullPointerException if L is null.
    */
-  UpVal(int offset, Slot s)
+  UpVal(Lua L, int offset)
   {
+    this.L = L;
     this.offset = offset;
-    this.s = s;
+  }
+
+  /**
+   * A fresh closed upvalue.
+   * @param value  its initial value.
+   */
+  UpVal(Object value)
+  {
+    this.offset = -1;
+    this.value = value;
   }
 
   /**
@@ -80,7 +97,11 @@ final class UpVal
    */
   Object getValue()
   {
-    return s.asObject();
+    if (offset >= 0)
+    {
+      return L.objectAt(offset);
+    }
+    return value;
   }
 
   /**
@@ -88,7 +109,12 @@ final class UpVal
    */
   void setValue(Object o)
   {
-    s.setObject(o);
+    if (offset >= 0)
+    {
+      L.setObjectAt(o, offset);
+      return;
+    }
+    value = o;
   }
 
   /**
@@ -109,7 +135,8 @@ final class UpVal
    */
   void close()
   {
-    s = new Slot(s);
+    value = L.objectAt(offset);
+    L = null;
     offset = -1;
   }
 }
@@ -142,7 +142,7 @@ public class BaseLibTest extends JiliTestCase
 
   public void testTonumber()
   {
-    nTrue("testtonumber", 5);
+    nTrue("testtonumber", 14);
   }
 
   public void testType()
@@ -257,6 +257,7 @@ public class BaseLibTest extends JiliTestCase
     suite.addTest(new BaseLibTest("testPairs")
         {
         public void runTest() { testPairs(); } });
+    suite.addTest(new BaseLibTest("testpairsclear"));
     suite.addTest(new BaseLibTest("testIpairs")
         {
         public void runTest() { testIpairs(); } });
@@ -288,6 +289,7 @@ public class BaseLibTest extends JiliTestCase
         public void runTest() { test__metatable(); } });
     suite.addTest(new BaseLibTest("test__tostring"));
     suite.addTest(new BaseLibTest("testcollectgarbage"));
+    suite.addTest(new BaseLibTest("testcollectgarbagerestart"));
     suite.addTest(new BaseLibTest("testassert"));
     suite.addTest(new BaseLibTest("testloadstring"));
     suite.addTest(new BaseLibTest("testloadfile"));
@@ -51,7 +51,16 @@ function testtonumber()
       nil == tonumber'',
       nil == tonumber{},
       nil == tonumber(false),
-      -2.5 == tonumber'-2.5'
+      -2.5 == tonumber'-2.5',
+      10 == tonumber' 1e1\n',
+      0.5 == tonumber'.5',
+      31 == tonumber'0x1F',
+      -16 == tonumber' -0x10 ',
+      nil == tonumber'1e',
+      nil == tonumber'0x',
+      nil == tonumber'1 2',
+      nil == tonumber'1f',
+      nil == tonumber'-'
 end
 function testtype()
   return type(nil) == 'nil',
@@ -89,6 +98,21 @@ function testnext()
   end
   return x==6, u.alderan, u.deneb, u.vega
 end
+function testpairsclear()
+  -- Fields may be cleared during a traversal; every key is still
+  -- visited exactly once.
+  local t = {'a', 'b', 'c'}
+  for i = 1, 100 do
+    t['k' .. i] = i
+  end
+  local n = 0
+  for k,v in pairs(t) do
+    t[k] = nil
+    n = n + 1
+  end
+  return n == 103 and next(t) == nil and
+      not pcall(next, {}, 'absent')
+end
 function testipairs()
   local t = {'a', 'b', 'c', foo = 'bar' }
   local u = {}
@@ -161,6 +185,19 @@ function testcollectgarbage() -- very weak test
   collectgarbage'collect'
   return type(collectgarbage'count') == 'number'
 end
+function testcollectgarbagerestart()
+  -- Unlike 'compact', 'restart' must not resize tables, so it is
+  -- safe during a traversal.
+  local t = {}
+  for i = 1, 200 do t['k' .. i] = i end
+  local n = 0
+  for k in pairs(t) do
+    t[k] = nil
+    n = n + 1
+    collectgarbage'restart'
+  end
+  return n == 200
+end
 function testassert()
   local a,b = pcall(function()assert(false)end)
   local c,d = pcall(function()return assert(1)end)
@@ -227,6 +227,44 @@ public class CoroTest extends JiliTestCase
     }
   }
 
+  /**
+   * The stacks of a thread that has made a deep recursion, and of a
+   * coroutine parked after one, are shrunk.
+   */
+  public void test12()
+  {
+    System.out.println("test12");
+    Lua L = new Lua();
+    BaseLib.open(L);
+    L.loadString(
+        "function deep(n) if n == 0 then return 0 end " +
+        "return 1 + deep(n-1) end " +
+        "function parked(n) deep(n) coroutine.yield() end " +
+        "function shallow() return 1 end", "@test12");
+    L.call(0, 0);
+    L.push(L.getGlobal("deep"));
+    L.pushNumber(5000);
+    L.call(1, 1);
+    assertTrue("result", L.toNumber(L.value(-1)) == 5000);
+    L.pop(1);
+    assertTrue("peak", L.stackPeak() > 5000);
+    // A thread keeps the space it has needed recently ...
+    assertTrue("kept", L.stackCapacity() >= L.stackPeak());
+    // ... until a call that does not need it.
+    L.push(L.getGlobal("shallow"));
+    L.call(0, 0);
+    assertTrue("shrunk", L.stackCapacity() < 256);
+    assertTrue("peak kept", L.stackPeak() > 5000);
+
+    Lua co = L.newThread();
+    co.push(L.getGlobal("parked"));
+    co.pushNumber(5000);
+    assertTrue("yielded", co.resume(1) == Lua.YIELD);
+    assertTrue("coroutine peak", co.stackPeak() > 5000);
+    assertTrue("coroutine shrunk", co.stackCapacity() < 256);
+    assertTrue("finished", co.resume(0) == 0);
+  }
+
   public Test suite()
   {
     TestSuite suite = new TestSuite();
@@ -260,6 +298,10 @@ public class CoroTest extends JiliTestCase
       {
         public void runTest() { test11(); }
       });
+    suite.addTest(new CoroTest("test12")
+      {
+        public void runTest() { test12(); }
+      });
 
     return suite;
   }
@@ -0,0 +1,1114 @@
+// Generated by Luajc from aot/aotmod.lua.  Do not edit.
+
+package mnj.lua;
+
+/** Compiled Lua chunk aot/aotmod.lua. */
+public final class LuaChunk_aotmod extends CompiledChunk
+{
+  Proto build()
+  {
+    return p0();
+  }
+
+  private static int f1(Lua L, LuaFunction f, int base)
+  {
+    Object[] ref = L.aotRef();
+    double[] num = L.aotNum();
+    Slot[] k = f.proto().constant();
+    int pc = 0;
+    while (true)
+    {
+      switch (pc)
+      {
+        case 0:
+        // 0: ADD, line 29
+        {
+          if (ref[base] == Lua.NUMBER && ref[base+1] == Lua.NUMBER)
+          {
+            num[base+2] = num[base] + num[base+1];
+            ref[base+2] = Lua.NUMBER;
+          }
+          else
+          {
+            L.aotStep(1, 0x408c);
+            ref = L.aotRef();
+            num = L.aotNum();
+          }
+        }
+        // 1: RETURN, line 29
+        {
+          return L.aotReturn(2, 0x100009e);
+        }
+        case 2:
+        // 2: RETURN, line 29
+        {
+          return L.aotReturn(3, 0x80001e);
+        }
+      }
+    }
+  }
+
+  private Proto p1()
+  {
+    Proto f = proto(
+        new Object[] { },
+        new String[] {
+          "\u0000\u408c\u0100\u009e\u0080\u001e", },
+        new Proto[] { },
+        0, 2, false, 3);
+    debug(f, "@aot/aotmod.lua", 29, 29,
+        new String[] {
+          "\u0000\u001d\u0000\u001d\u0000\u001d", },
+        new String[] { "a", "b", },
+        new String[] {
+          "\u0000\u0000\u0000\u0002\u0000\u0000\u0000\u0002", },
+        new String[] { });
+    f.compiled = this;
+    f.compiledid = 1;
+    return f;
+  }
+
+  private static int f2(Lua L, LuaFunction f, int base)
+  {
+    Object[] ref = L.aotRef();
+    double[] num = L.aotNum();
+    Slot[] k = f.proto().constant();
+    int pc = 0;
+    while (true)
+    {
+      switch (pc)
+      {
+        case 0:
+        // 0: GETUPVAL, line 31
+        {
+          L.setObjectAt(f.upVal(0).getValue(), base);
+        }
+        // 1: ADD, line 31
+        {
+          if (ref[base] == Lua.NUMBER)
+          {
+            num[base] = num[base] + (1.0);
+            ref[base] = Lua.NUMBER;
+          }
+          else
+          {
+            L.aotStep(2, 0x40000c);
+            ref = L.aotRef();
+            num = L.aotNum();
+          }
+        }
+        // 2: SETUPVAL, line 31
+        {
+          f.upVal(0).setValue(L.objectAt(base));
+        }
+        // 3: GETUPVAL, line 31
+        {
+          L.setObjectAt(f.upVal(0).getValue(), base);
+        }
+        // 4: RETURN, line 31
+        {
+          return L.aotReturn(5, 0x100001e);
+        }
+        case 5:
+        // 5: RETURN, line 31
+        {
+          return L.aotReturn(6, 0x80001e);
+        }
+      }
+    }
+  }
+
+  private Proto p2()
+  {
+    Proto f = proto(
+        new Object[] {
+          num(0x3ff0000000000000L) /* 1.0 */, },
+        new String[] {
+          "\u0000\u0004@\u000c\u0000\u0008\u0000\u0004\u0100\u001e\u0080\u001e", },
+        new Proto[] { },
+        1, 0, false, 2);
+    debug(f, "@aot/aotmod.lua", 31, 31,
+        new String[] {
+          "\u0000\u001f\u0000\u001f\u0000\u001f\u0000\u001f\u0000\u001f\u0000\u001f", },
+        new String[] { },
+        new String[] { },
+        new String[] { "up", });
+    f.compiled = this;
+    f.compiledid = 2;
+    return f;
+  }
+
+  private static int f3(Lua L, LuaFunction f, int base)
+  {
+    Object[] ref = L.aotRef();
+    double[] num = L.aotNum();
+    Slot[] k = f.proto().constant();
+    int pc = 0;
+    while (true)
+    {
+      switch (pc)
+      {
+        case 0:
+        // 0: LOADK, line 36
+        {
+          num[base+1] = (0.0);
+          ref[base+1] = Lua.NUMBER;
+        }
+        // 1: LOADK, line 37
+        {
+          num[base+2] = (1.0);
+          ref[base+2] = Lua.NUMBER;
+        }
+        // 2: MOVE, line 37
+        {
+          ref[base+3] = ref[base];
+          num[base+3] = num[base];
+        }
+        // 3: LOADK, line 37
+        {
+          num[base+4] = (1.0);
+          ref[base+4] = Lua.NUMBER;
+        }
+        // 4: FORPREP, line 37
+        {
+          if (ref[base+2] == Lua.NUMBER && ref[base+3] == Lua.NUMBER
+              && ref[base+4] == Lua.NUMBER)
+          {
+            num[base+2] -= num[base+4];
+          }
+          else
+          {
+            L.aotStep(5, 0x800040a0);
+            ref = L.aotRef();
+            num = L.aotNum();
+          }
+          pc = 7;
+          continue;
+        }
+        case 5:
+        // 5: MUL, line 38
+        {
+          if (ref[base+5] == Lua.NUMBER)
+          {
+            num[base+6] = num[base+5] * num[base+5];
+            ref[base+6] = Lua.NUMBER;
+          }
+          else
+          {
+            L.aotStep(6, 0x281418e);
+            ref = L.aotRef();
+            num = L.aotNum();
+          }
+        }
+        // 6: ADD, line 38
+        {
+          if (ref[base+1] == Lua.NUMBER && ref[base+6] == Lua.NUMBER)
+          {
+            num[base+1] = num[base+1] + num[base+6];
+            ref[base+1] = Lua.NUMBER;
+          }
+          else
+          {
+            L.aotStep(7, 0x81804c);
+            ref = L.aotRef();
+            num = L.aotNum();
+          }
+        }
+        case 7:
+        // 7: FORLOOP, line 37
+        {
+          double step = num[base+4];
+          double idx = num[base+2] + step;
+          double limit = num[base+3];
+          if (0 < step ? idx <= limit : limit <= idx)
+          {
+            num[base+2] = idx;
+            num[base+5] = idx;
+            ref[base+5] = Lua.NUMBER;
+            pc = 5;
+            continue;
+          }
+        }
+        // 8: RETURN, line 40
+        {
+          return L.aotReturn(9, 0x100005e);
+        }
+        case 9:
+        // 9: RETURN, line 41
+        {
+          return L.aotReturn(10, 0x80001e);
+        }
+      }
+    }
+  }
+
+  private Proto p3()
+  {
+    Proto f = proto(
+        new Object[] {
+          num(0x0L) /* 0.0 */, num(0x3ff0000000000000L) /* 1.0 */, },
+        new String[] {
+          "\u0000A\u0000\u4081\u0000\u00c0\u0000\u4101\u8000\u40a0\u0281\u418e\u0081\u804c\u7fff\u009f\u0100^\u0080\u001e", },
+        new Proto[] { },
+        0, 1, false, 7);
+    debug(f, "@aot/aotmod.lua", 35, 41,
+        new String[] {
+          "\u0000$\u0000%\u0000%\u0000%\u0000%\u0000&\u0000&\u0000%\u0000(\u0000)", },
+        new String[] { "n", "s", "(for index)", "(for limit)", "(for step)", "i", },
+        new String[] {
+          "\u0000\u0000\u0000\u0009\u0000\u0001\u0000\u0009\u0000\u0004\u0000\u0008\u0000\u0004\u0000\u0008\u0000\u0004\u0000\u0008\u0000\u0005\u0000\u0007", },
+        new String[] { });
+    f.compiled = this;
+    f.compiledid = 3;
+    return f;
+  }
+
+  private static int f4(Lua L, LuaFunction f, int base)
+  {
+    Object[] ref = L.aotRef();
+    double[] num = L.aotNum();
+    Slot[] k = f.proto().constant();
+    int pc = 0;
+    while (true)
+    {
+      switch (pc)
+      {
+        case 0:
+        // 0: LOADK, line 43
+        {
+          num[base+1] = (0.0);
+          ref[base+1] = Lua.NUMBER;
+        }
+        // 1: LOADK, line 43
+        {
+          num[base+2] = (1.0);
+          ref[base+2] = Lua.NUMBER;
+        }
+        // 2: MOVE, line 44
+        {
+          ref[base+3] = ref[base];
+          num[base+3] = num[base];
+        }
+        // 3: LOADK, line 44
+        {
+          num[base+4] = (1.0);
+          ref[base+4] = Lua.NUMBER;
+        }
+        // 4: LOADK, line 44
+        {
+          num[base+5] = (-1.0);
+          ref[base+5] = Lua.NUMBER;
+        }
+        // 5: FORPREP, line 44
+        {
+          if (ref[base+3] == Lua.NUMBER && ref[base+4] == Lua.NUMBER
+              && ref[base+5] == Lua.NUMBER)
+          {
+            num[base+3] -= num[base+5];
+          }
+          else
+          {
+            L.aotStep(6, 0x800080e0);
+            ref = L.aotRef();
+            num = L.aotNum();
+          }
+          pc = 9;
+          continue;
+        }
+        case 6:
+        // 6: MOVE, line 45
+        {
+          ref[base+7] = ref[base+2];
+          num[base+7] = num[base+2];
+        }
+        // 7: ADD, line 45
+        {
+          if (ref[base+1] == Lua.NUMBER && ref[base+2] == Lua.NUMBER)
+          {
+            num[base+2] = num[base+1] + num[base+2];
+            ref[base+2] = Lua.NUMBER;
+          }
+          else
+          {
+            L.aotStep(8, 0x80808c);
+            ref = L.aotRef();
+            num = L.aotNum();
+          }
+        }
+        // 8: MOVE, line 45
+        {
+          ref[base+1] = ref[base+7];
+          num[base+1] = num[base+7];
+        }
+        case 9:
+        // 9: FORLOOP, line 44
+        {
+          double step = num[base+5];
+          double idx = num[base+3] + step;
+          double limit = num[base+4];
+          if (0 < step ? idx <= limit : limit <= idx)
+          {
+            num[base+3] = idx;
+            num[base+6] = idx;
+            ref[base+6] = Lua.NUMBER;
+            pc = 6;
+            continue;
+          }
+        }
+        // 10: RETURN, line 47
+        {
+          return L.aotReturn(11, 0x100005e);
+        }
+        case 11:
+        // 11: RETURN, line 48
+        {
+          return L.aotReturn(12, 0x80001e);
+        }
+      }
+    }
+  }
+
+  private Proto p4()
+  {
+    Proto f = proto(
+        new Object[] {
+          num(0x0L) /* 0.0 */, num(0x3ff0000000000000L) /* 1.0 */, num(0xbff0000000000000L) /* -1.0 */, },
+        new String[] {
+          "\u0000A\u0000\u4081\u0000\u00c0\u0000\u4101\u0000\u8141\u8000\u80e0\u0100\u01c0\u0080\u808c\u0380@\u7ffe\uc0df\u0100^\u0080\u001e", },
+        new Proto[] { },
+        0, 1, false, 8);
+    debug(f, "@aot/aotmod.lua", 42, 48,
+        new String[] {
+          "\u0000+\u0000+\u0000,\u0000,\u0000,\u0000,\u0000-\u0000-\u0000-\u0000,\u0000/\u00000", },
+        new String[] { "n", "a", "b", "(for index)", "(for limit)", "(for step)", "i", },
+        new String[] {
+          "\u0000\u0000\u0000\u000b\u0000\u0002\u0000\u000b\u0000\u0002\u0000\u000b\u0000\u0005\u0000\n\u0000\u0005\u0000\n\u0000\u0005\u0000\n\u0000\u0006\u0000\u0009", },
+        new String[] { });
+    f.compiled = this;
+    f.compiledid = 4;
+    return f;
+  }
+
+  private static int f5(Lua L, LuaFunction f, int base)
+  {
+    Object[] ref = L.aotRef();
+    double[] num = L.aotNum();
+    Slot[] k = f.proto().constant();
+    int pc = 0;
+    while (true)
+    {
+      switch (pc)
+      {
+        case 0:
+        // 0: SUB, line 50
+        {
+          if (ref[base] == Lua.NUMBER && ref[base+1] == Lua.NUMBER)
+          {
+            num[base+2] = num[base] - num[base+1];
+            ref[base+2] = Lua.NUMBER;
+          }
+          else
+          {
+            L.aotStep(1, 0x408d);
+            ref = L.aotRef();
+            num = L.aotNum();
+          }
+        }
+        // 1: DIV, line 50
+        {
+          if (ref[base] == Lua.NUMBER && ref[base+1] == Lua.NUMBER)
+          {
+            num[base+3] = num[base] / num[base+1];
+            ref[base+3] = Lua.NUMBER;
+          }
+          else
+          {
+            L.aotStep(2, 0x40cf);
+            ref = L.aotRef();
+            num = L.aotNum();
+          }
+        }
+        // 2: MOD, line 50
+        {
+          if (ref[base] == Lua.NUMBER && ref[base+1] == Lua.NUMBER)
+          {
+            num[base+4] = Lua.modulus(num[base], num[base+1]);
+            ref[base+4] = Lua.NUMBER;
+          }
+          else
+          {
+            L.aotStep(3, 0x4110);
+            ref = L.aotRef();
+            num = L.aotNum();
+          }
+        }
+        // 3: POW, line 50
+        {
+          if (ref[base] == Lua.NUMBER)
+          {
+            num[base+5] = Lua.iNumpow(num[base], (2.0));
+            ref[base+5] = Lua.NUMBER;
+          }
+          else
+          {
+            L.aotStep(4, 0x400151);
+            ref = L.aotRef();
+            num = L.aotNum();
+          }
+        }
+        // 4: UNM, line 50
+        {
+          if (ref[base] == Lua.NUMBER)
+          {
+            num[base+6] = -num[base];
+            ref[base+6] = Lua.NUMBER;
+          }
+          else
+          {
+            L.aotStep(5, 0x192);
+            ref = L.aotRef();
+            num = L.aotNum();
+          }
+        }
+        // 5: RETURN, line 50
+        {
+          return L.aotReturn(6, 0x300009e);
+        }
+        case 6:
+        // 6: RETURN, line 51
+        {
+          return L.aotReturn(7, 0x80001e);
+        }
+      }
+    }
+  }
+
+  private Proto p5()
+  {
+    Proto f = proto(
+        new Object[] {
+          num(0x4000000000000000L) /* 2.0 */, },
+        new String[] {
+          "\u0000\u408d\u0000\u40cf\u0000\u4110@\u0151\u0000\u0192\u0300\u009e\u0080\u001e", },
+        new Proto[] { },
+        0, 2, false, 7);
+    debug(f, "@aot/aotmod.lua", 49, 51,
+        new String[] {
+          "\u00002\u00002\u00002\u00002\u00002\u00002\u00003", },
+        new String[] { "x", "y", },
+        new String[] {
+          "\u0000\u0000\u0000\u0006\u0000\u0000\u0000\u0006", },
+        new String[] { });
+    f.compiled = this;
+    f.compiledid = 5;
+    return f;
+  }
+
+  private static int f6(Lua L, LuaFunction f, int base)
+  {
+    Object[] ref = L.aotRef();
+    double[] num = L.aotNum();
+    Slot[] k = f.proto().constant();
+    int pc = 0;
+    while (true)
+    {
+      switch (pc)
+      {
+        case 0:
+        // 0: LT, line 53
+        {
+          boolean t;
+          if (ref[base] == Lua.NUMBER)
+          {
+            t = num[base] < (0.0);
+          }
+          else
+          {
+            t = L.aotTest(1, 0x400018);
+            ref = L.aotRef();
+            num = L.aotNum();
+          }
+          if (!t)
+          {
+            pc = 5;
+            continue;
+          }
+        }
+        case 2:
+        // 2: LOADK, line 53
+        {
+          ref[base+1] = k[1].r;
+        }
+        // 3: RETURN, line 53
+        {
+          return L.aotReturn(4, 0x100005e);
+        }
+        case 4:
+        // 4: JMP, line 53
+        {
+          pc = 9;
+          continue;
+        }
+        case 5:
+        // 5: EQ, line 53
+        {
+          boolean t;
+          if (ref[base] == Lua.NUMBER)
+          {
+            t = num[base] == (0.0);
+          }
+          else
+          {
+            t = L.aotTest(6, 0x400017);
+            ref = L.aotRef();
+            num = L.aotNum();
+          }
+          if (!t)
+          {
+            pc = 9;
+            continue;
+          }
+        }
+        case 7:
+        // 7: LOADK, line 53
+        {
+          ref[base+1] = k[2].r;
+        }
+        // 8: RETURN, line 53
+        {
+          return L.aotReturn(9, 0x100005e);
+        }
+        case 9:
+        // 9: LE, line 54
+        {
+          boolean t;
+          if (ref[base] == Lua.NUMBER)
+          {
+            t = num[base] <= (1.0);
+          }
+          else
+          {
+            t = L.aotTest(10, 0x40c019);
+            ref = L.aotRef();
+            num = L.aotNum();
+          }
+          if (!t)
+          {
+            pc = 14;
+            continue;
+          }
+        }
+        case 11:
+        // 11: LOADK, line 54
+        {
+          ref[base+1] = k[4].r;
+        }
+        // 12: TEST, line 54
+        {
+          if (!(ref[base+1] == Lua.NIL || ref[base+1] == Boolean.FALSE))
+          {
+            pc = 15;
+            continue;
+          }
+        }
+        case 14:
+        // 14: LOADK, line 54
+        {
+          ref[base+1] = k[5].r;
+        }
+        case 15:
+        // 15: RETURN, line 54
+        {
+          return L.aotReturn(16, 0x100005e);
+        }
+        case 16:
+        // 16: RETURN, line 55
+        {
+          return L.aotReturn(17, 0x80001e);
+        }
+      }
+    }
+  }
+
+  private Proto p6()
+  {
+    Proto f = proto(
+        new Object[] {
+          num(0x0L) /* 0.0 */, "negative", "zero", num(0x3ff0000000000000L) /* 1.0 */,
+          "small", "positive", },
+        new String[] {
+          "@\u0018\u8000\u8016\u0000\u4041\u0100^\u8000\uc016@\u0017\u8000\u4016\u0000\u8041\u0100^@\uc019\u8000\u8016\u0001A\u0000\u405a\u8000\u0016\u0001\u4041\u0100^\u0080\u001e", },
+        new Proto[] { },
+        0, 1, false, 2);
+    debug(f, "@aot/aotmod.lua", 52, 55,
+        new String[] {
+          "\u00005\u00005\u00005\u00005\u00005\u00005\u00005\u00005\u00005\u00006\u00006\u00006\u00006\u00006\u00006\u00006\u00007", },
+        new String[] { "x", },
+        new String[] {
+          "\u0000\u0000\u0000\u0010", },
+        new String[] { });
+    f.compiled = this;
+    f.compiledid = 6;
+    return f;
+  }
+
+  private static int f7(Lua L, LuaFunction f, int base)
+  {
+    Object[] ref = L.aotRef();
+    double[] num = L.aotNum();
+    Slot[] k = f.proto().constant();
+    int pc = 0;
+    while (true)
+    {
+      switch (pc)
+      {
+        case 0:
+        // 0: GETTABLE, line 57
+        {
+          L.aotStep(1, 0x400046);
+          ref = L.aotRef();
+          num = L.aotNum();
+        }
+        // 1: LOADK, line 58
+        {
+          num[base+2] = (2.0);
+          ref[base+2] = Lua.NUMBER;
+        }
+        // 2: LEN, line 58
+        {
+          L.aotStep(3, 0xd4);
+          ref = L.aotRef();
+          num = L.aotNum();
+        }
+        // 3: LOADK, line 58
+        {
+          num[base+4] = (1.0);
+          ref[base+4] = Lua.NUMBER;
+        }
+        // 4: FORPREP, line 58
+        {
+          if (ref[base+2] == Lua.NUMBER && ref[base+3] == Lua.NUMBER
+              && ref[base+4] == Lua.NUMBER)
+          {
+            num[base+2] -= num[base+4];
+          }
+          else
+          {
+            L.aotStep(5, 0x8000c0a0);
+            ref = L.aotRef();
+            num = L.aotNum();
+          }
+          pc = 9;
+          continue;
+        }
+        case 5:
+        // 5: GETTABLE, line 59
+        {
+          L.aotStep(6, 0x14186);
+          ref = L.aotRef();
+          num = L.aotNum();
+        }
+        // 6: LT, line 59
+        {
+          boolean t;
+          if (ref[base+1] == Lua.NUMBER && ref[base+6] == Lua.NUMBER)
+          {
+            t = num[base+1] < num[base+6];
+          }
+          else
+          {
+            t = L.aotTest(7, 0x818018);
+            ref = L.aotRef();
+            num = L.aotNum();
+          }
+          if (!t)
+          {
+            pc = 9;
+            continue;
+          }
+        }
+        case 8:
+        // 8: GETTABLE, line 59
+        {
+          L.aotStep(9, 0x14046);
+          ref = L.aotRef();
+          num = L.aotNum();
+        }
+        case 9:
+        // 9: FORLOOP, line 58
+        {
+          double step = num[base+4];
+          double idx = num[base+2] + step;
+          double limit = num[base+3];
+          if (0 < step ? idx <= limit : limit <= idx)
+          {
+            num[base+2] = idx;
+            num[base+5] = idx;
+            ref[base+5] = Lua.NUMBER;
+            pc = 5;
+            continue;
+          }
+        }
+        // 10: RETURN, line 61
+        {
+          return L.aotReturn(11, 0x100005e);
+        }
+        case 11:
+        // 11: RETURN, line 62
+        {
+          return L.aotReturn(12, 0x80001e);
+        }
+      }
+    }
+  }
+
+  private Proto p7()
+  {
+    Proto f = proto(
+        new Object[] {
+          num(0x3ff0000000000000L) /* 1.0 */, num(0x4000000000000000L) /* 2.0 */, },
+        new String[] {
+          "@F\u0000\u4081\u0000\u00d4\u0000\u0101\u8000\uc0a0\u0001\u4186\u0081\u8018\u8000\u0016\u0001\u4046\u7ffe\u809f\u0100^\u0080\u001e", },
+        new Proto[] { },
+        0, 1, false, 7);
+    debug(f, "@aot/aotmod.lua", 56, 62,
+        new String[] {
+          "\u00009\u0000:\u0000:\u0000:\u0000:\u0000;\u0000;\u0000;\u0000;\u0000:\u0000=\u0000>", },
+        new String[] { "t", "m", "(for index)", "(for limit)", "(for step)", "i", },
+        new String[] {
+          "\u0000\u0000\u0000\u000b\u0000\u0001\u0000\u000b\u0000\u0004\u0000\n\u0000\u0004\u0000\n\u0000\u0004\u0000\n\u0000\u0005\u0000\u0009", },
+        new String[] { });
+    f.compiled = this;
+    f.compiledid = 7;
+    return f;
+  }
+
+  private static int f8(Lua L, LuaFunction f, int base)
+  {
+    Object[] ref = L.aotRef();
+    double[] num = L.aotNum();
+    Slot[] k = f.proto().constant();
+    int pc = 0;
+    while (true)
+    {
+      switch (pc)
+      {
+        case 0:
+        // 0: MOVE, line 63
+        {
+          ref[base+2] = ref[base];
+          num[base+2] = num[base];
+        }
+        // 1: LOADK, line 63
+        {
+          ref[base+3] = k[0].r;
+        }
+        // 2: MOVE, line 63
+        {
+          ref[base+4] = ref[base+1];
+          num[base+4] = num[base+1];
+        }
+        // 3: CONCAT, line 63
+        {
+          L.aotStep(4, 0x1010095);
+          ref = L.aotRef();
+          num = L.aotNum();
+        }
+        // 4: RETURN, line 63
+        {
+          return L.aotReturn(5, 0x100009e);
+        }
+        case 5:
+        // 5: RETURN, line 63
+        {
+          return L.aotReturn(6, 0x80001e);
+        }
+      }
+    }
+  }
+
+  private Proto p8()
+  {
+    Proto f = proto(
+        new Object[] {
+          ",", },
+        new String[] {
+          "\u0000\u0080\u0000\u00c1\u0080\u0100\u0101\u0095\u0100\u009e\u0080\u001e", },
+        new Proto[] { },
+        0, 2, false, 5);
+    debug(f, "@aot/aotmod.lua", 63, 63,
+        new String[] {
+          "\u0000?\u0000?\u0000?\u0000?\u0000?\u0000?", },
+        new String[] { "a", "b", },
+        new String[] {
+          "\u0000\u0000\u0000\u0005\u0000\u0000\u0000\u0005", },
+        new String[] { });
+    f.compiled = this;
+    f.compiledid = 8;
+    return f;
+  }
+
+  private static int f9(Lua L, LuaFunction f, int base)
+  {
+    Object[] ref = L.aotRef();
+    double[] num = L.aotNum();
+    Slot[] k = f.proto().constant();
+    int pc = 0;
+    while (true)
+    {
+      switch (pc)
+      {
+        case 0:
+        // 0: NOT, line 64
+        {
+          ref[base+1] = (ref[base] == Lua.NIL || ref[base] == Boolean.FALSE)
+              ? Boolean.TRUE : Boolean.FALSE;
+        }
+        // 1: EQ, line 64
+        {
+          boolean t;
+          t = L.aotTest(2, 0x400057);
+          ref = L.aotRef();
+          num = L.aotNum();
+          if (t)
+          {
+            pc = 4;
+            continue;
+          }
+        }
+        case 3:
+        // 3: LOADBOOL, line 64
+        {
+          ref[base+2] = Boolean.FALSE;
+          pc = 5;
+          continue;
+        }
+        case 4:
+        // 4: LOADBOOL, line 64
+        {
+          ref[base+2] = Boolean.TRUE;
+        }
+        case 5:
+        // 5: RETURN, line 64
+        {
+          return L.aotReturn(6, 0x180005e);
+        }
+        case 6:
+        // 6: RETURN, line 64
+        {
+          return L.aotReturn(7, 0x80001e);
+        }
+      }
+    }
+  }
+
+  private Proto p9()
+  {
+    Proto f = proto(
+        new Object[] {
+          Lua.NIL, },
+        new String[] {
+          "\u0000S@W\u8000\u0016\u0000\u4082\u0080\u0082\u0180^\u0080\u001e", },
+        new Proto[] { },
+        0, 1, false, 3);
+    debug(f, "@aot/aotmod.lua", 64, 64,
+        new String[] {
+          "\u0000@\u0000@\u0000@\u0000@\u0000@\u0000@\u0000@", },
+        new String[] { "x", },
+        new String[] {
+          "\u0000\u0000\u0000\u0006", },
+        new String[] { });
+    f.compiled = this;
+    f.compiledid = 9;
+    return f;
+  }
+
+  private static int f10(Lua L, LuaFunction f, int base)
+  {
+    Object[] ref = L.aotRef();
+    double[] num = L.aotNum();
+    Slot[] k = f.proto().constant();
+    int pc = 0;
+    while (true)
+    {
+      switch (pc)
+      {
+        case 0:
+        // 0: NEWTABLE, line 65
+        {
+          L.aotStep(1, 0x100408a);
+          ref = L.aotRef();
+          num = L.aotNum();
+        }
+        // 1: MOVE, line 65
+        {
+          ref[base+3] = ref[base];
+          num[base+3] = num[base];
+        }
+        // 2: MOVE, line 65
+        {
+          ref[base+4] = ref[base+1];
+          num[base+4] = num[base+1];
+        }
+        // 3: SETTABLE, line 65
+        {
+          L.aotStep(4, 0x80404089);
+          ref = L.aotRef();
+          num = L.aotNum();
+        }
+        // 4: SETLIST, line 65
+        {
+          L.aotStep(5, 0x10040a2);
+          ref = L.aotRef();
+          num = L.aotNum();
+        }
+        // 5: RETURN, line 65
+        {
+          return L.aotReturn(6, 0x100009e);
+        }
+        case 6:
+        // 6: RETURN, line 65
+        {
+          return L.aotReturn(7, 0x80001e);
+        }
+      }
+    }
+  }
+
+  private Proto p10()
+  {
+    Proto f = proto(
+        new Object[] {
+          "n", num(0x4000000000000000L) /* 2.0 */, },
+        new String[] {
+          "\u0100\u408a\u0000\u00c0\u0080\u0100\u8040\u4089\u0100\u40a2\u0100\u009e\u0080\u001e", },
+        new Proto[] { },
+        0, 2, false, 5);
+    debug(f, "@aot/aotmod.lua", 65, 65,
+        new String[] {
+          "\u0000A\u0000A\u0000A\u0000A\u0000A\u0000A\u0000A", },
+        new String[] { "a", "b", },
+        new String[] {
+          "\u0000\u0000\u0000\u0006\u0000\u0000\u0000\u0006", },
+        new String[] { });
+    f.compiled = this;
+    f.compiledid = 10;
+    return f;
+  }
+
+  private static int f11(Lua L, LuaFunction f, int base)
+  {
+    Object[] ref = L.aotRef();
+    double[] num = L.aotNum();
+    Slot[] k = f.proto().constant();
+    int pc = 0;
+    while (true)
+    {
+      switch (pc)
+      {
+        case 0:
+        // 0: SETGLOBAL, line 66
+        {
+          L.aotStep(1, 0x7);
+          ref = L.aotRef();
+          num = L.aotNum();
+        }
+        // 1: GETGLOBAL, line 66
+        {
+          L.aotStep(2, 0x45);
+          ref = L.aotRef();
+          num = L.aotNum();
+        }
+        // 2: RETURN, line 66
+        {
+          return L.aotReturn(3, 0x100005e);
+        }
+        case 3:
+        // 3: RETURN, line 66
+        {
+          return L.aotReturn(4, 0x80001e);
+        }
+      }
+    }
+  }
+
+  private Proto p11()
+  {
+    Proto f = proto(
+        new Object[] {
+          "aotglobal", },
+        new String[] {
+          "\u0000\u0007\u0000E\u0100^\u0080\u001e", },
+        new Proto[] { },
+        0, 1, false, 2);
+    debug(f, "@aot/aotmod.lua", 66, 66,
+        new String[] {
+          "\u0000B\u0000B\u0000B\u0000B", },
+        new String[] { "x", },
+        new String[] {
+          "\u0000\u0000\u0000\u0003", },
+        new String[] { });
+    f.compiled = this;
+    f.compiledid = 11;
+    return f;
+  }
+
+  private Proto p12()
+  {
+    Proto f = proto(
+        new Object[] { },
+        new String[] {
+          "\u0000\u0080\u0000\u00c0\u0080\u0100\u0100\u00dc\u0000\u009d\u0000\u009e\u0080\u001e", },
+        new Proto[] { },
+        0, 2, false, 5);
+    debug(f, "@aot/aotmod.lua", 69, 69,
+        new String[] {
+          "\u0000E\u0000E\u0000E\u0000E\u0000E\u0000E\u0000E", },
+        new String[] { "f", "x", },
+        new String[] {
+          "\u0000\u0000\u0000\u0006\u0000\u0000\u0000\u0006", },
+        new String[] { });
+    return f;
+  }
+
+  private Proto p0()
+  {
+    Proto f = proto(
+        new Object[] {
+          "name", "answer", num(0x4045000000000000L) /* 42.0 */, "add",
+          num(0x0L) /* 0.0 */, "count", "sumsq", "fib",
+          "arith", "sign", "max", "concat",
+          "isnil", "pack", "global", "twice", },
+        new String[] {
+          "\u0100%\u0000\u804a\u8000I\u80c0\u8049\u0000\u00a4\u8180\u8049\u0001\u0081\u0000\u40e4\u0100\u0000\u8280\uc049\u0000\u80e4\u8300\uc049\u0000\uc0e4\u8380\uc049\u0001\u00e4\u8400\uc049\u0001\u40e4\u8480\uc049\u0001\u80e4\u8500\uc049\u0001\uc0e4\u8580\uc049\u0002\u00e4\u8600\uc049\u0002\u40e4\u8680\uc049\u0002\u80e4\u8700\uc049\u0002\uc0e4\u8780\uc049\u0100^\u0080\u001e", },
+        new Proto[] { p1(), p2(), p3(), p4(), p5(), p6(), p7(), p8(), p9(), p10(), p11(), p12(), },
+        0, 0, true, 4);
+    debug(f, "@aot/aotmod.lua", 0, 0,
+        new String[] {
+          "\u0000\u001b\u0000\u001c\u0000\u001c\u0000\u001c\u0000\u001d\u0000\u001d\u0000\u001e\u0000\u001f\u0000\u001f\u0000\u001f\u0000)\u0000#\u00000\u0000*\u00003\u00001\u00007\u00004\u0000>\u00008\u0000?\u0000?\u0000@\u0000@\u0000A\u0000A\u0000B\u0000B\u0000E\u0000E\u0000F\u0000F", },
+        new String[] { "name", "M", "up", },
+        new String[] {
+          "\u0000\u0001\u0000\u001f\u0000\u0004\u0000\u001f\u0000\u0007\u0000\u001f", },
+        new String[] { });
+    return f;
+  }
+
+  int execute(int which, Lua L, LuaFunction f, int base)
+  {
+    switch (which)
+    {
+      case 1: return f1(L, f, base);
+      case 2: return f2(L, f, base);
+      case 3: return f3(L, f, base);
+      case 4: return f4(L, f, base);
+      case 5: return f5(L, f, base);
+      case 6: return f6(L, f, base);
+      case 7: return f7(L, f, base);
+      case 8: return f8(L, f, base);
+      case 9: return f9(L, f, base);
+      case 10: return f10(L, f, base);
+      case 11: return f11(L, f, base);
+    }
+    throw new IllegalArgumentException();
+  }
+}
@@ -200,6 +200,147 @@ public class LuaTest extends JiliTestCase implements Hook
     assertTrue("hook ran many times", hook.n > 99);
   }
 
+  /**
+   * Tests the primitive number stack operations: pushNumber,
+   * pushValue, toNumber(int), checkNumber, and the interning done by
+   * valueOfNumber.
+   */
+  public void testLua7()
+  {
+    System.out.println(getName());
+    Lua L = new Lua();
+    L.pushNumber(1.5);
+    L.pushValue(1);
+    L.pushString("42");
+    L.push(Lua.NIL);
+    assertTrue("number", L.toNumber(1) == 1.5);
+    assertTrue("copied number", L.toNumber(2) == 1.5);
+    assertTrue("string", L.toNumber(3) == 42.0);
+    assertTrue("nil", L.toNumber(4) == 0.0);
+    assertTrue("none", L.toNumber(5) == 0.0);
+    assertTrue("checkNumber", L.checkNumber(3) == 42.0);
+    assertEquals("boxed", new Double(1.5), L.value(2));
+
+    assertSame("interned", Lua.valueOfNumber(7), Lua.valueOfNumber(7));
+    Object nz = Lua.valueOfNumber(-0.0);
+    assertTrue("-0.0 preserved",
+        1/((Double)nz).doubleValue() < 0);
+    assertEquals("large", new Double(1e6), Lua.valueOfNumber(1e6));
+    assertTrue("NaN", ((Double)Lua.valueOfNumber(0.0/0.0)).isNaN());
+  }
+
+  /**
+   * Tests that the count hook sees every instruction when the code is
+   * quickened and fused (every function hot from the start) just as
+   * when it is not (every function cold).
+   */
+  public void testLua8()
+  {
+    System.out.println(getName());
+    int[] hotcount = { 0, Integer.MAX_VALUE };
+    int[] n = new int[hotcount.length];
+    for (int i=0; i<hotcount.length; ++i)
+    {
+      Lua L = new Lua();
+      L.hotcount = hotcount[i];
+      BaseLib.open(L);
+      MathLib.open(L);
+      TableLib.open(L);
+      LuaTest hook = new LuaTest(false);
+      L.loadFile("speed/fannkuch.lua");
+      L.setHook(hook, Lua.MASKCOUNT, 1);
+      int status = L.pcall(0, 0, null);
+      assertTrue("status is 0", status == 0);
+      n[i] = hook.n;
+    }
+    assertEquals("same count", n[0], n[1]);
+  }
+
+  /**
+   * Tests that fused instruction pairs give the same results as the
+   * unfused instructions.  No hook is set, since superinstructions
+   * only execute their second half when there is no hook.
+   */
+  public void testLua9()
+  {
+    System.out.println(getName());
+    String chunk =
+        "local t = {a = {b = 1}, s = 'xyz'} " +
+        "function t.g(x) return x * 3 end " +
+        "local acc = {} " +
+        "for i = 1, 50 do " +
+        "  local x, y = i, i * 2 " +
+        "  local u = x " +        // MOVE, MOVE
+        "  local v = y " +
+        "  acc[#acc+1] = t.g(u) " +       // GETTABLE, MOVE, CALL
+        "  acc[#acc+1] = tostring(7) " +  // GETGLOBAL, LOADK, CALL
+        "  acc[#acc+1] = math.floor(i / 3) + v " + // GETGLOBAL, GETTABLE
+        "  acc[#acc+1] = t.a.b + string.len(t.s) " +
+        "end " +
+        "return table.concat(acc, ',')";
+    int[] hotcount = { 0, Integer.MAX_VALUE };
+    Object[] r = new Object[hotcount.length];
+    for (int i=0; i<hotcount.length; ++i)
+    {
+      Lua L = new Lua();
+      L.hotcount = hotcount[i];
+      BaseLib.open(L);
+      MathLib.open(L);
+      StringLib.open(L);
+      TableLib.open(L);
+      assertEquals("load", 0, L.loadString(chunk, "testLua9"));
+      Proto p = ((LuaFunction)L.value(-1)).proto();
+      int status = L.pcall(0, 1, null);
+      assertTrue("status is 0", status == 0);
+      r[i] = L.value(-1);
+      if (hotcount[i] == 0)
+      {
+        int[] x = p.execCode();
+        boolean[] seen = new boolean[64];
+        for (int pc=0; pc<x.length; ++pc)
+        {
+          seen[Lua.OPCODE(x[pc])] = true;
+        }
+        assertTrue("MOVE_MOVE", seen[Lua.OP_MOVE_MOVE]);
+        assertTrue("LOADK_CALL", seen[Lua.OP_LOADK_CALL]);
+        assertTrue("GETGLOBAL_GETTABLE", seen[Lua.OP_GETGLOBAL_GETTABLE]);
+        assertTrue("GETTABLE_CALL", seen[Lua.OP_GETTABLE_CALL]);
+      }
+    }
+    assertTrue("string result", r[1] instanceof String);
+    assertEquals("same result", r[1], r[0]);
+  }
+
+  /**
+   * Tests that the functions of a chunk compiled by Luajc that it can
+   * compile are run as Java code, and the others interpreted.
+   */
+  public void testLua10()
+  {
+    System.out.println(getName());
+    Lua L = new Lua();
+    L.hotcount = 0;     // so that interpreted functions tier up
+    BaseLib.open(L);
+    assertEquals("load", 0, L.loadFile("aotmod.lua"));
+    Proto p = ((LuaFunction)L.value(-1)).proto();
+    assertTrue("main interpreted", p.compiled == null);
+    L.pushString("aotmod");
+    assertEquals("status", 0, L.pcall(1, 1, null));
+    Object m = L.value(-1);
+    assertTrue("main ran", p.tier != null);
+
+    LuaFunction f = (LuaFunction)L.getField(m, "sumsq");
+    assertTrue("sumsq compiled", f.proto().compiled != null);
+    L.push(f);
+    L.pushNumber(10);
+    L.call(1, 1);
+    assertTrue("sumsq", L.toNumber(L.value(-1)) == 385);
+    assertTrue("sumsq not interpreted", f.proto().tier == null);
+
+    f = (LuaFunction)L.getField(m, "twice");
+    assertTrue("twice interpreted", f.proto().compiled == null);
+  }
+
   public Test suite()
   {
     TestSuite suite = new TestSuite();
@@ -232,6 +373,22 @@ public class LuaTest extends JiliTestCase implements Hook
       {
         public void runTest() { testlua6(); }
       });
+    suite.addTest(new LuaTest("testLua7")
+      {
+        public void runTest() { testLua7(); }
+      });
+    suite.addTest(new LuaTest("testLua8")
+      {
+        public void runTest() { testLua8(); }
+      });
+    suite.addTest(new LuaTest("testLua9")
+      {
+        public void runTest() { testLua9(); }
+      });
+    suite.addTest(new LuaTest("testLua10")
+      {
+        public void runTest() { testLua10(); }
+      });
     return suite;
   }
 }
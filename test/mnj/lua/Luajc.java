@@ -0,0 +1,777 @@
+// $Header$
+// Copyright (c) 2006 Nokia Corporation and/or its subsidiary(-ies).
+// All rights reserved.
+// 
+// Permission is hereby granted, free of charge, to any person obtaining
+// a copy of this software and associated documentation files (the
+// "Software"), to deal in the Software without restriction, including
+// without limitation the rights to use, copy, modify, merge, publish,
+// distribute, sublicense, and/or sell copies of the Software, and to
+// permit persons to whom the Software is furnished to do so, subject
+// to the following conditions:
+// 
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+// IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+// ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF
+// CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+// WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+// Ahead of time compiler, Lua source to Java source, for JSE
+// environments.  The generated class is compiled and packaged with
+// the application; see CompiledChunk.  Usage:
+//   java mnj.lua.Luajc [-s] file.lua [modname]
+// writes LuaChunk_modname.java, where modname defaults to the name of
+// the file without ".lua" and any '.' in it becomes '_'.  This is the
+// name that PackageLib's class loader looks for, and that
+// Lua.loadFile looks for given modname's file name (with '/' for
+// '.').  -s strips debug information (line numbers, local and
+// upvalue names).
+//
+// Each function that neither calls nor creates functions, and is not
+// too big, gets a Java method for its body.  The method executes the
+// VM instructions in order on the function's stack frame, with a
+// switch on the pc at jump targets only.  Moves, constants, numeric
+// arithmetic and comparisons, tests and numeric for loops are inline;
+// everything else, and any operand that is not a number, is handed to
+// Lua.aotStep and friends.
+
+package mnj.lua;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+
+public final class Luajc
+{
+  private final StringBuffer b = new StringBuffer();
+  private final boolean strip;
+  /** Number of prototypes emitted so far; used to name methods. */
+  private int n;
+  /** Numbers of the prototypes whose bodies are compiled. */
+  private final StringBuffer compiled = new StringBuffer();
+  /** Code of the body being compiled. */
+  private int[] code;
+  /** Which instructions of {@link #code} have a case label. */
+  private boolean[] label;
+
+  /**
+   * Largest function, in VM instructions, that is compiled; keeps
+   * within the class file's limit on the size of a method.
+   */
+  private static final int MAXCODE = 400;
+
+  private Luajc(boolean strip)
+  {
+    this.strip = strip;
+  }
+
+  public static void main(String[] arg)
+  {
+    try
+    {
+      int i = 0;
+      boolean strip = false;
+      if (arg[i].equals("-s"))
+      {
+        strip = true;
+        ++i;
+      }
+      String name = arg[i++];
+      String modname = i < arg.length ? arg[i] :
+          new java.io.File(name).getName().replaceAll("\\.lua$", "");
+      String classname = "LuaChunk_" + modname.replace('.', '_');
+
+      InputStream in = new BufferedInputStream(new FileInputStream(name));
+      Lua L = new Lua();
+      int status = L.load(in, "@" + name);
+      in.close();
+      if (status != 0)
+      {
+        throw new Exception("Error compiling " + name + ": " +
+            L.value(1));
+      }
+      Proto p = ((LuaFunction)L.value(1)).proto();
+
+      Luajc c = new Luajc(strip);
+      String s = c.compile(p, classname, name);
+      PrintWriter out = new PrintWriter(new OutputStreamWriter(
+          new FileOutputStream(classname + ".java"), "US-ASCII"));
+      out.print(s);
+      out.close();
+    }
+    catch (Exception e)
+    {
+      e.printStackTrace();
+    }
+  }
+
+  private String compile(Proto p, String classname, String name)
+  {
+    b.append("// Generated by Luajc from " + name + ".  Do not edit.\n");
+    b.append("\n");
+    b.append("package mnj.lua;\n");
+    b.append("\n");
+    b.append("/** Compiled Lua chunk " + name + ". */\n");
+    b.append("public final class " + classname +
+        " extends CompiledChunk\n");
+    b.append("{\n");
+    b.append("  Proto build()\n");
+    b.append("  {\n");
+    b.append("    return p0();\n");
+    b.append("  }\n");
+    proto(p);
+    b.append("\n");
+    b.append("  int execute(int which, Lua L, LuaFunction f, int base)\n");
+    b.append("  {\n");
+    b.append("    switch (which)\n");
+    b.append("    {\n");
+    b.append(compiled);
+    b.append("    }\n");
+    b.append("    throw new IllegalArgumentException();\n");
+    b.append("  }\n");
+    b.append("}\n");
+    return b.toString();
+  }
+
+  /**
+   * Emits a method that builds <var>p</var>, and (first) the methods
+   * for its inner prototypes.  Returns the method's name.
+   */
+  private String proto(Proto p)
+  {
+    String method = "p" + n++;
+    String[] inner = new String[p.sizep];
+    for (int i=0; i<p.sizep; ++i)
+    {
+      inner[i] = proto(p.p[i]);
+    }
+
+    String body = null;
+    if (compilable(p))
+    {
+      body = "f" + method.substring(1);
+      compiled.append("      case " + body.substring(1) + ": return " +
+          body + "(L, f, base);\n");
+      body(p, body);
+    }
+
+    b.append("\n");
+    b.append("  private Proto " + method + "()\n");
+    b.append("  {\n");
+    b.append("    Proto f = proto(\n");
+    b.append("        new Object[] {");
+    for (int i=0; i<p.sizek; ++i)
+    {
+      b.append(i % 4 == 0 ? "\n          " : " ");
+      constant(p.k[i].asObject());
+      b.append(",");
+    }
+    b.append(" },\n");
+    b.append("        ");
+    ints(p.code, p.sizecode);
+    b.append(",\n");
+    b.append("        new Proto[] {");
+    for (int i=0; i<inner.length; ++i)
+    {
+      b.append(" " + inner[i] + "(),");
+    }
+    b.append(" },\n");
+    b.append("        " + p.nups + ", " + p.numparams + ", " + p.isVararg +
+        ", " + p.maxstacksize + ");\n");
+    b.append("    debug(f, ");
+    string(p.source);
+    b.append(", " + p.linedefined + ", " + p.lastlinedefined + ",\n");
+    b.append("        ");
+    if (strip)
+    {
+      b.append("new String[0], new String[0], new String[0], " +
+          "new String[0]);\n");
+    }
+    else
+    {
+      ints(p.lineinfo, p.sizelineinfo);
+      b.append(",\n");
+      b.append("        new String[] {");
+      int[] pc = new int[2*p.sizelocvars];
+      for (int i=0; i<p.sizelocvars; ++i)
+      {
+        b.append(" ");
+        string(p.locvars[i].varname);
+        b.append(",");
+        pc[2*i] = p.locvars[i].startpc;
+        pc[2*i+1] = p.locvars[i].endpc;
+      }
+      b.append(" },\n");
+      b.append("        ");
+      ints(pc, pc.length);
+      b.append(",\n");
+      b.append("        new String[] {");
+      for (int i=0; i<p.sizeupvalues; ++i)
+      {
+        b.append(" ");
+        string(p.upvalues[i]);
+        b.append(",");
+      }
+      b.append(" });\n");
+    }
+    if (body != null)
+    {
+      b.append("    f.compiled = this;\n");
+      b.append("    f.compiledid = " + body.substring(1) + ";\n");
+    }
+    b.append("    return f;\n");
+    b.append("  }\n");
+    return method;
+  }
+
+  /** Whether the body of <var>p</var> can be compiled. */
+  private static boolean compilable(Proto p)
+  {
+    if (p.sizecode > MAXCODE)
+    {
+      return false;
+    }
+    for (int pc=0; pc<p.sizecode; ++pc)
+    {
+      int i = p.code[pc];
+      switch (Lua.OPCODE(i))
+      {
+        case Lua.OP_CALL:
+        case Lua.OP_TAILCALL:
+        case Lua.OP_TFORLOOP:
+        case Lua.OP_CLOSURE:
+        case Lua.OP_VARARG:
+          return false;
+        case Lua.OP_SETLIST:
+          if (Lua.ARGB(i) == 0 || Lua.ARGC(i) == 0)
+          {
+            return false;
+          }
+          break;
+        case Lua.OP_RETURN:
+          if (Lua.ARGB(i) == 0)
+          {
+            return false;
+          }
+          break;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Emits method <var>method</var> that executes the body of
+   * <var>p</var>, which must be {@link #compilable}.
+   */
+  private void body(Proto p, String method)
+  {
+    code = p.code;
+    int size = p.sizecode;
+    // Jump targets, and instructions after an unconditional jump
+    // (which javac would otherwise reject as unreachable), get a case
+    // label.
+    label = new boolean[size+2];
+    label[0] = true;
+    for (int pc=0; pc<size; ++pc)
+    {
+      int i = code[pc];
+      switch (Lua.OPCODE(i))
+      {
+        case Lua.OP_JMP:
+        case Lua.OP_FORPREP:
+          label[pc+1+Lua.ARGsBx(i)] = true;
+          label[pc+1] = true;
+          break;
+        case Lua.OP_FORLOOP:
+          label[pc+1+Lua.ARGsBx(i)] = true;
+          break;
+        case Lua.OP_LOADBOOL:
+          if (Lua.ARGC(i) != 0)
+          {
+            label[pc+2] = true;
+            label[pc+1] = true;
+          }
+          break;
+        case Lua.OP_RETURN:
+          label[pc+1] = true;
+          break;
+      }
+    }
+
+    b.append("\n");
+    b.append("  private static int " + method +
+        "(Lua L, LuaFunction f, int base)\n");
+    b.append("  {\n");
+    b.append("    Object[] ref = L.aotRef();\n");
+    b.append("    double[] num = L.aotNum();\n");
+    b.append("    Slot[] k = f.proto().constant();\n");
+    b.append("    int pc = 0;\n");
+    b.append("    while (true)\n");
+    b.append("    {\n");
+    b.append("      switch (pc)\n");
+    b.append("      {\n");
+    for (int pc=0; pc<size; ++pc)
+    {
+      int i = code[pc];
+      if (label[pc])
+      {
+        b.append("        case " + pc + ":\n");
+      }
+      int op = Lua.OPCODE(i);
+      if (op == Lua.OP_JMP && pc > 0 && isTest(code[pc-1]) && !label[pc])
+      {
+        continue;       // done by the test
+      }
+      b.append("        // " + pc + ": " + OPNAME[op]);
+      if (p.sizelineinfo > 0)
+      {
+        b.append(", line " + p.lineinfo[pc]);
+      }
+      b.append("\n");
+      b.append("        {\n");
+      instruction(p, pc, i);
+      b.append("        }\n");
+    }
+    b.append("      }\n");
+    b.append("    }\n");
+    b.append("  }\n");
+  }
+
+  /** Whether <var>i</var> is a test, followed by a jump. */
+  private static boolean isTest(int i)
+  {
+    switch (Lua.OPCODE(i))
+    {
+      case Lua.OP_EQ:
+      case Lua.OP_LT:
+      case Lua.OP_LE:
+      case Lua.OP_TEST:
+      case Lua.OP_TESTSET:
+        return true;
+    }
+    return false;
+  }
+
+  /** Emits the code for instruction <var>i</var>, at <var>pc</var>. */
+  private void instruction(Proto p, int pc, int i)
+  {
+    int a = Lua.ARGA(i);
+    int b = Lua.ARGB(i);
+    int c = Lua.ARGC(i);
+    String ra = r(a);
+    switch (Lua.OPCODE(i))
+    {
+      case Lua.OP_MOVE:
+        line("ref[" + ra + "] = ref[" + r(b) + "];");
+        line("num[" + ra + "] = num[" + r(b) + "];");
+        return;
+      case Lua.OP_LOADK:
+      {
+        String d = number(p, Lua.ARGBx(i) | Lua.BITRK);
+        if (d != null)
+        {
+          line("num[" + ra + "] = " + d + ";");
+          line("ref[" + ra + "] = Lua.NUMBER;");
+        }
+        else
+        {
+          line("ref[" + ra + "] = k[" + Lua.ARGBx(i) + "].r;");
+        }
+        return;
+      }
+      case Lua.OP_LOADBOOL:
+        line("ref[" + ra + "] = " +
+            (b != 0 ? "Boolean.TRUE;" : "Boolean.FALSE;"));
+        if (c != 0)
+        {
+          jump(pc+2);
+        }
+        return;
+      case Lua.OP_LOADNIL:
+        for (int x=a; x<=b; ++x)
+        {
+          line("ref[" + r(x) + "] = Lua.NIL;");
+        }
+        return;
+      case Lua.OP_GETUPVAL:
+        line("L.setObjectAt(f.upVal(" + b + ").getValue(), " + ra + ");");
+        return;
+      case Lua.OP_SETUPVAL:
+        line("f.upVal(" + b + ").setValue(L.objectAt(" + ra + "));");
+        return;
+      case Lua.OP_ADD:
+      case Lua.OP_SUB:
+      case Lua.OP_MUL:
+      case Lua.OP_DIV:
+      case Lua.OP_MOD:
+      case Lua.OP_POW:
+      {
+        String x = operand(p, b);
+        String y = operand(p, c);
+        String guard = guard(b, c);
+        if (x == null || y == null)
+        {
+          step(pc, i);
+          return;
+        }
+        String e;
+        switch (Lua.OPCODE(i))
+        {
+          case Lua.OP_ADD: e = x + " + " + y; break;
+          case Lua.OP_SUB: e = x + " - " + y; break;
+          case Lua.OP_MUL: e = x + " * " + y; break;
+          case Lua.OP_DIV: e = x + " / " + y; break;
+          case Lua.OP_MOD: e = "Lua.modulus(" + x + ", " + y + ")"; break;
+          default: e = "Lua.iNumpow(" + x + ", " + y + ")"; break;
+        }
+        fast(guard, new String[] {
+            "num[" + ra + "] = " + e + ";",
+            "ref[" + ra + "] = Lua.NUMBER;" }, pc, i);
+        return;
+      }
+      case Lua.OP_UNM:
+        fast(guard(b), new String[] {
+            "num[" + ra + "] = -num[" + r(b) + "];",
+            "ref[" + ra + "] = Lua.NUMBER;" }, pc, i);
+        return;
+      case Lua.OP_NOT:
+        line("ref[" + ra + "] = " + isFalse("ref[" + r(b) + "]"));
+        line("    ? Boolean.TRUE : Boolean.FALSE;");
+        return;
+      case Lua.OP_JMP:
+        jump(pc+1+Lua.ARGsBx(i));
+        return;
+      case Lua.OP_EQ:
+      case Lua.OP_LT:
+      case Lua.OP_LE:
+      {
+        String x = operand(p, b);
+        String y = operand(p, c);
+        String guard = guard(b, c);
+        line("boolean t;");
+        if (x == null || y == null)
+        {
+          line("t = L.aotTest(" + (pc+1) + ", " + hex(i) + ");");
+          reload();
+        }
+        else
+        {
+          String o = Lua.OPCODE(i) == Lua.OP_EQ ? " == " :
+              Lua.OPCODE(i) == Lua.OP_LT ? " < " : " <= ";
+          String[] slow = new String[] {
+              "t = L.aotTest(" + (pc+1) + ", " + hex(i) + ");",
+              "ref = L.aotRef();",
+              "num = L.aotNum();" };
+          branch(guard, new String[] { "t = " + x + o + y + ";" }, slow);
+        }
+        test(pc, a != 0 ? "t" : "!t", null);
+        return;
+      }
+      case Lua.OP_TEST:
+        test(pc, (c != 0 ? "!" : "") + isFalse("ref[" + ra + "]"), null);
+        return;
+      case Lua.OP_TESTSET:
+        test(pc, (c != 0 ? "!" : "") + isFalse("ref[" + r(b) + "]"),
+            new String[] {
+              "ref[" + ra + "] = ref[" + r(b) + "];",
+              "num[" + ra + "] = num[" + r(b) + "];" });
+        return;
+      case Lua.OP_RETURN:
+        line("return L.aotReturn(" + (pc+1) + ", " + hex(i) + ");");
+        return;
+      case Lua.OP_FORLOOP:
+        line("double step = num[" + r(a+2) + "];");
+        line("double idx = num[" + ra + "] + step;");
+        line("double limit = num[" + r(a+1) + "];");
+        line("if (0 < step ? idx <= limit : limit <= idx)");
+        line("{");
+        line("  num[" + ra + "] = idx;");
+        line("  num[" + r(a+3) + "] = idx;");
+        line("  ref[" + r(a+3) + "] = Lua.NUMBER;");
+        line("  pc = " + (pc+1+Lua.ARGsBx(i)) + ";");
+        line("  continue;");
+        line("}");
+        return;
+      case Lua.OP_FORPREP:
+        fast(guard(guard(guard(a), guard(a+1)), guard(a+2)),
+            new String[] { "num[" + ra + "] -= num[" + r(a+2) + "];" },
+            pc, i);
+        jump(pc+1+Lua.ARGsBx(i));
+        return;
+    }
+    // GETGLOBAL, GETTABLE, SETGLOBAL, SETTABLE, NEWTABLE, SELF, LEN,
+    // CONCAT, SETLIST, CLOSE
+    step(pc, i);
+  }
+
+  private static final String[] OPNAME =
+  {
+    "MOVE", "LOADK", "LOADBOOL", "LOADNIL", "GETUPVAL", "GETGLOBAL",
+    "GETTABLE", "SETGLOBAL", "SETUPVAL", "SETTABLE", "NEWTABLE", "SELF",
+    "ADD", "SUB", "MUL", "DIV", "MOD", "POW", "UNM", "NOT", "LEN",
+    "CONCAT", "JMP", "EQ", "LT", "LE", "TEST", "TESTSET", "CALL",
+    "TAILCALL", "RETURN", "FORLOOP", "FORPREP", "TFORLOOP", "SETLIST",
+    "CLOSE", "CLOSURE", "VARARG",
+  };
+
+  /** Emits a line of code in an instruction's block. */
+  private void line(String s)
+  {
+    b.append("          " + s + "\n");
+  }
+
+  /** Java expression for register <var>x</var>'s index. */
+  private static String r(int x)
+  {
+    return x == 0 ? "base" : "base+" + x;
+  }
+
+  private static String hex(int i)
+  {
+    return "0x" + Integer.toHexString(i);
+  }
+
+  /**
+   * Java expression for a numeric RK operand, or <code>null</code> if
+   * it is a constant that is not a number.
+   */
+  private static String operand(Proto p, int x)
+  {
+    if (Lua.ISK(x))
+    {
+      return number(p, x);
+    }
+    return "num[" + r(x) + "]";
+  }
+
+  /**
+   * Java literal for constant RK field <var>x</var>, or
+   * <code>null</code> if it is not a number.  Infinities and NaN,
+   * which have no literal, are taken from the constant array.
+   */
+  private static String number(Proto p, int x)
+  {
+    Slot s = p.k[x & ~Lua.BITRK];
+    if (s.r != Lua.NUMBER)
+    {
+      return null;
+    }
+    if (Double.isInfinite(s.d) || Double.isNaN(s.d))
+    {
+      return "k[" + (x & ~Lua.BITRK) + "].d";
+    }
+    return "(" + s.d + ")";
+  }
+
+  /**
+   * Condition that RK operand <var>x</var> is a number, or
+   * <code>null</code> if it is a (numeric) constant.
+   */
+  private static String guard(int x)
+  {
+    return Lua.ISK(x) ? null : "ref[" + r(x) + "] == Lua.NUMBER";
+  }
+
+  /** Condition that both RK operands are numbers. */
+  private static String guard(int x, int y)
+  {
+    return x == y ? guard(x) : guard(guard(x), guard(y));
+  }
+
+  private static String guard(String x, String y)
+  {
+    if (x == null)
+    {
+      return y;
+    }
+    if (y == null)
+    {
+      return x;
+    }
+    return x + " && " + y;
+  }
+
+  private static String isFalse(String x)
+  {
+    return "(" + x + " == Lua.NIL || " + x + " == Boolean.FALSE)";
+  }
+
+  /** Emits a jump to <var>target</var>. */
+  private void jump(int target)
+  {
+    line("pc = " + target + ";");
+    line("continue;");
+  }
+
+  /** Emits the general case of instruction <var>i</var>. */
+  private void step(int pc, int i)
+  {
+    line("L.aotStep(" + (pc+1) + ", " + hex(i) + ");");
+    reload();
+  }
+
+  private void reload()
+  {
+    line("ref = L.aotRef();");
+    line("num = L.aotNum();");
+  }
+
+  /**
+   * Emits <var>code</var>, if <var>guard</var> holds, otherwise the
+   * general case of instruction <var>i</var>.
+   */
+  private void fast(String guard, String[] code, int pc, int i)
+  {
+    branch(guard, code, new String[] {
+        "L.aotStep(" + (pc+1) + ", " + hex(i) + ");",
+        "ref = L.aotRef();",
+        "num = L.aotNum();" });
+  }
+
+  private void branch(String guard, String[] code, String[] otherwise)
+  {
+    if (guard == null)
+    {
+      for (int j=0; j<code.length; ++j)
+      {
+        line(code[j]);
+      }
+      return;
+    }
+    // Keep within 80 columns.
+    int j = guard.indexOf(" && ", 50);
+    if (j < 0)
+    {
+      line("if (" + guard + ")");
+    }
+    else
+    {
+      line("if (" + guard.substring(0, j));
+      line("    " + guard.substring(j+1) + ")");
+    }
+    line("{");
+    for (j=0; j<code.length; ++j)
+    {
+      line("  " + code[j]);
+    }
+    line("}");
+    line("else");
+    line("{");
+    for (j=0; j<otherwise.length; ++j)
+    {
+      line("  " + otherwise[j]);
+    }
+    line("}");
+  }
+
+  /**
+   * Emits the test at <var>pc</var>: if <var>cond</var> holds,
+   * <var>code</var> (which may be <code>null</code>) and the jump that
+   * follows the test.  Otherwise execution continues after the jump;
+   * if the jump is itself a jump target that means jumping over it.
+   */
+  private void test(int pc, String cond, String[] code)
+  {
+    line("if (" + cond + ")");
+    line("{");
+    for (int j=0; code != null && j<code.length; ++j)
+    {
+      line("  " + code[j]);
+    }
+    line("  pc = " + (pc+2+Lua.ARGsBx(this.code[pc+1])) + ";");
+    line("  continue;");
+    line("}");
+    if (label[pc+1])
+    {
+      jump(pc+2);
+    }
+  }
+
+  private void constant(Object o)
+  {
+    if (o == Lua.NIL)
+    {
+      b.append("Lua.NIL");
+    }
+    else if (o instanceof Boolean)
+    {
+      b.append(((Boolean)o).booleanValue() ?
+          "Boolean.TRUE" : "Boolean.FALSE");
+    }
+    else if (o instanceof Double)
+    {
+      double d = ((Double)o).doubleValue();
+      b.append("num(0x" +
+          Long.toHexString(Double.doubleToLongBits(d)) + "L)");
+      b.append(" /* " + d + " */");
+    }
+    else
+    {
+      string((String)o);
+    }
+  }
+
+  /** Emits a Java string literal. */
+  private void string(String s)
+  {
+    b.append('"');
+    for (int i=0; i<s.length(); ++i)
+    {
+      hex(s.charAt(i));
+    }
+    b.append('"');
+  }
+
+  /** Emits an int array encoded as for CompiledChunk.ints. */
+  private void ints(int[] a, int len)
+  {
+    b.append("new String[] {");
+    for (int i=0; i<len; i+=CompiledChunk.CHUNK)
+    {
+      b.append("\n          \"");
+      for (int j=i; j<len && j<i+CompiledChunk.CHUNK; ++j)
+      {
+        hex((char)(a[j] >>> 16));
+        hex((char)a[j]);
+      }
+      b.append("\",");
+    }
+    b.append(" }");
+  }
+
+  /**
+   * Emits a character for a Java string literal.  Line terminators,
+   * quote and backslash cannot be written as unicode escapes because
+   * those are translated before the literal is scanned.
+   */
+  private void hex(char c)
+  {
+    switch (c)
+    {
+      case '\n': b.append("\\n"); return;
+      case '\r': b.append("\\r"); return;
+      case '"': b.append("\\\""); return;
+      case '\\': b.append("\\\\"); return;
+    }
+    if (c >= ' ' && c < 0x7f)
+    {
+      b.append(c);
+      return;
+    }
+    String h = Integer.toHexString(c);
+    b.append("\\u");
+    for (int i=h.length(); i<4; ++i)
+    {
+      b.append('0');
+    }
+    b.append(h);
+  }
+}
@@ -63,6 +63,8 @@ public class METest extends TestCase
     suite.addTest(t.suite());
     t = new MathLibTest();
     suite.addTest(t.suite());
+    t = new MultiStateTest();
+    suite.addTest(t.suite());
 
     return suite;
   }
@@ -192,6 +192,82 @@ public class MetaTest extends JiliTestCase
     nTrue("testmetaeq", 3);
   }
 
+  /**
+   * Tests that cached table lookups see changes to the tables.  Run
+   * with every function hot from the start (so that the inline caches
+   * are used) and with every function cold.
+   */
+  public void testmetaindexcache()
+  {
+    int[] hotcount = { 0, Integer.MAX_VALUE };
+    for (int i=0; i<hotcount.length; ++i)
+    {
+      Lua L = new Lua();
+      L.hotcount = hotcount[i];
+      BaseLib.open(L);
+      luaGlobal(L, "testmetaindexcache", 10);
+      nTrue(L, 10);
+    }
+  }
+
+  /**
+   * Tests the quickened arithmetic and comparison opcodes, and their
+   * deoptimisation, with every function hot from the start and with
+   * every function cold.
+   */
+  public void testquicken()
+  {
+    int[] hotcount = { 0, Integer.MAX_VALUE };
+    for (int i=0; i<hotcount.length; ++i)
+    {
+      Lua L = new Lua();
+      L.hotcount = hotcount[i];
+      BaseLib.open(L);
+      luaGlobal(L, "testquicken", 10);
+      nTrue(L, 10);
+    }
+  }
+
+  /**
+   * Tests weak tables: entries whose weak keys or values are collected
+   * disappear, and the others remain; the values of a dropped weak
+   * keyed table are collected even though the key lives.
+   */
+  public void testweak()
+  {
+    Lua L = new Lua();
+    BaseLib.open(L);
+    luaGlobal(L, "testweak", 14);
+    nTrue(L, 14);
+  }
+
+  /**
+   * Tests that __gc is called for a collected userdata, with a userdata
+   * wrapping the same object.
+   */
+  public void testgc()
+  {
+    System.out.println("testgc");
+    Lua L = new Lua();
+    final Object payload = new Object();
+    final Object[] got = new Object[1];
+    LuaTable mt = new LuaTable();
+    L.setField(mt, "__gc", new LuaJavaCallback()
+      {
+        int luaFunction(Lua L)
+        {
+          got[0] = L.toUserdata(L.value(1)).getUserdata();
+          return 0;
+        }
+      });
+    L.setMetatable(new LuaUserdata(payload), mt);
+    for (int i=0; i<10 && got[0] == null; ++i)
+    {
+      L.gc(Lua.GCCOLLECT, 0);
+    }
+    assertTrue(got[0] == payload);
+  }
+
   public void testmetalen()
   {
     System.out.println("testmetalen");
@@ -287,6 +363,22 @@ public class MetaTest extends JiliTestCase
       {
         public void runTest() { testmetaeq(); }
       });
+    suite.addTest(new MetaTest("testmetaindexcache")
+      {
+        public void runTest() { testmetaindexcache(); }
+      });
+    suite.addTest(new MetaTest("testquicken")
+      {
+        public void runTest() { testquicken(); }
+      });
+    suite.addTest(new MetaTest("testweak")
+      {
+        public void runTest() { testweak(); }
+      });
+    suite.addTest(new MetaTest("testgc")
+      {
+        public void runTest() { testgc(); }
+      });
     return suite;
   }
 }
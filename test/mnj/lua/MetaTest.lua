@@ -289,3 +289,123 @@ function testmetaeq()
   setmetatable(v, mt)
   return t == t, t ~= u, u == v
 end
+-- test that repeated lookups (which are cached by the VM) see changes
+function testmetaindexcache()
+  local C = {}
+  C.__index = C
+  function C.get(self) return 'C' end
+  local D = {}
+  D.__index = D
+  function D.get(self) return 'D' end
+  local o = setmetatable({}, C)
+  local r = {}
+  for i = 1, 7 do
+    if i == 2 then o.get = function() return 'own' end end
+    if i == 3 then o.get = nil end
+    if i == 4 then C.get = function() return 'C2' end end
+    if i == 5 then setmetatable(o, D) end
+    if i == 6 then getmetatable(o).__index = C end
+    if i == 7 then C.get = nil ; D.__index = function() return
+        function() return 'fn' end end end
+    r[i] = o:get()
+  end
+  local g = {}
+  for i = 1, 3 do
+    if i == 2 then metaindexcacheglobal = 'b' end
+    if i == 3 then metaindexcacheglobal = nil end
+    g[i] = metaindexcacheglobal
+  end
+  return r[1] == 'C', r[2] == 'own', r[3] == 'C', r[4] == 'C2',
+      r[5] == 'D', r[6] == 'C2', r[7] == 'fn',
+      g[1] == nil, g[2] == 'b', g[3] == nil
+end
+
+function testquicken()
+  local function arith(a, b) return a + b, a - 1, a * b, b / 2 end
+  local function cmp(a, b) return a < b, a <= b end
+  local function cmpk(a, b) return a < 3, 2 <= b end
+  local mt = {}
+  function mt.__add() return 'add' end
+  function mt.__sub() return 'sub' end
+  function mt.__mul() return 'mul' end
+  function mt.__div() return 'div' end
+  function mt.__lt() return true end
+  function mt.__le() return false end
+  local t = setmetatable({}, mt)
+  local s = 0
+  for i = 1, 3 do
+    local w, x, y, z = arith(i, 2)
+    s = s + w + x + y + z
+  end
+  -- Each of these fails the guards of the quickened instructions.
+  local a = {arith('1', '2')}
+  local b = {arith(t, t)}
+  local c = {arith(4, 2)}
+  local d = {cmp(1, 2)}
+  local e = {cmp('a', 'b')}
+  local f = {cmp(t, t)}
+  local g = {cmp(2, 1)}
+  local ok = pcall(cmpk, 'a', 'b')
+  local h = {cmpk(1, 3)}
+  return s == 30,
+      a[1] == 3 and a[2] == 0 and a[3] == 2 and a[4] == 1,
+      b[1] == 'add' and b[2] == 'sub' and b[3] == 'mul' and b[4] == 'div',
+      c[1] == 6 and c[2] == 3 and c[3] == 8 and c[4] == 1,
+      d[1] == true and d[2] == true,
+      e[1] == true and e[2] == true,
+      f[1] == true and f[2] == false,
+      g[1] == false and g[2] == false,
+      not ok,
+      h[1] == true and h[2] == true
+end
+
+function testweak()
+  local function count(t)
+    local n = 0
+    for _ in pairs(t) do
+      n = n + 1
+    end
+    return n
+  end
+  local k = setmetatable({}, {__mode='k'})
+  local v = setmetatable({}, {__mode='v'})
+  local kv = setmetatable({}, {__mode='kv'})
+  local memokv = setmetatable({}, {__mode='kv'})
+  local memo = setmetatable({}, {__mode='k'})
+  -- Values of weak keyed tables that have been dropped.
+  local dropped = setmetatable({}, {__mode='v'})
+  local later = {a={}, b='b'}
+  local keep = {}
+  for i = 1, 100 do
+    k[{}] = i
+    v[i] = {}
+    v['s'..i] = {}
+    kv[{}] = {}
+    local key = {}
+    memokv[key] = {key}
+  end
+  for i = 1, 100 do
+    local w = setmetatable({}, {__mode='k'})
+    w[keep] = {}
+    dropped[i] = w[keep]
+  end
+  memo[keep] = {keep}
+  memo[keep] = 'replaced'
+  local gone = {}
+  memo[gone] = 'x'
+  memo[gone] = nil
+  k[keep] = 'keep'
+  k.name = {}
+  v.keep = keep
+  v.str = 'str'
+  kv[keep] = keep
+  setmetatable(later, {__mode='v'})
+  collectgarbage()
+  -- A few temporaries may still be referenced from the stack.
+  return count(k) < 10, count(v) < 10, count(kv) < 10,
+      k[keep] == 'keep', k.name ~= nil,
+      v.keep == keep, v.str == 'str', kv[keep] == keep,
+      later.a == nil, later.b == 'b',
+      count(memokv) < 10, count(dropped) < 10,
+      memo[keep] == 'replaced', memo[gone] == nil
+end
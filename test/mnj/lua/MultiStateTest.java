@@ -0,0 +1,339 @@
+// $Header$
+// Copyright (c) 2006 Nokia Corporation and/or its subsidiary(-ies).
+// All rights reserved.
+// 
+// Permission is hereby granted, free of charge, to any person obtaining
+// a copy of this software and associated documentation files (the
+// "Software"), to deal in the Software without restriction, including
+// without limitation the rights to use, copy, modify, merge, publish,
+// distribute, sublicense, and/or sell copies of the Software, and to
+// permit persons to whom the Software is furnished to do so, subject
+// to the following conditions:
+// 
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+// IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+// ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF
+// CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+// WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+package mnj.lua;
+
+import java.lang.ref.WeakReference;
+import java.util.Vector;
+
+// For j2meunit see http://j2meunit.sourceforge.net/
+import j2meunit.framework.Test;
+import j2meunit.framework.TestSuite;
+
+// Auxiliary files
+// MultiStateTest.lua - test functions.
+
+/**
+ * J2MEUnit tests for running several independent Lua states at the
+ * same time, each on its own Java thread.  DO NOT SUBCLASS.  public
+ * access granted only because j2meunit makes it necessary.
+ */
+public class MultiStateTest extends JiliTestCase
+{
+  /** Number of threads (and states) used by the parallel test. */
+  private static final int THREADS = 4;
+
+  /** Number of outer iterations of the Lua work function. */
+  private static final int N = 2000;
+
+  /** void constructor, necessary for running using
+   * <code>java j2meunit.textui.TestRunner MultiStateTest</code>
+   */
+  public MultiStateTest() { }
+
+  /** Clones constructor from superclass.  */
+  private MultiStateTest(String name)
+  {
+    super(name);
+  }
+
+  /**
+   * Runs the Lua work function in a fresh state of its own.  Each
+   * instance records the result, or the first exception, so that the
+   * main thread can check it after joining.
+   */
+  private final class Worker implements Runnable
+  {
+    Object result;
+    Throwable error;
+    /**
+     * Snapshot to fork the state from; <code>null</code> for a fresh
+     * state.
+     */
+    Lua snapshot;
+
+    public void run()
+    {
+      try
+      {
+        Lua L;
+        if (snapshot != null)
+        {
+          L = snapshot.fork();
+        }
+        else
+        {
+          L = newState();
+        }
+        L.push(L.getGlobal("work"));
+        L.pushNumber(N);
+        L.call(1, 1);
+        result = L.value(-1);
+      }
+      catch (Throwable e)
+      {
+        error = e;
+      }
+    }
+  }
+
+  /**
+   * A fresh state with the base and string libraries, and the
+   * functions from MultiStateTest.lua, loaded.
+   */
+  private Lua newState()
+  {
+    Lua L = new Lua();
+    BaseLib.open(L);
+    StringLib.open(L);
+    loadFile(L, "MultiStateTest");
+    L.call(0, 0);
+    return L;
+  }
+
+  /**
+   * Runs <var>n</var> workers in parallel and checks that every state
+   * computed the right answer.
+   * @param snapshot  snapshot for each worker to fork its state from,
+   *                  or <code>null</code>.
+   */
+  private void runWorkers(int n, Lua snapshot)
+  {
+    Worker[] w = new Worker[n];
+    Thread[] t = new Thread[n];
+    for (int i=0; i<n; ++i)
+    {
+      w[i] = new Worker();
+      w[i].snapshot = snapshot;
+      t[i] = new Thread(w[i]);
+    }
+    for (int i=0; i<n; ++i)
+    {
+      t[i].start();
+    }
+    for (int i=0; i<n; ++i)
+    {
+      try
+      {
+        t[i].join();
+      }
+      catch (InterruptedException e)
+      {
+        fail("Interrupted");
+      }
+    }
+    for (int i=0; i<n; ++i)
+    {
+      assertNull("Worker " + i + " raised " + w[i].error, w[i].error);
+      assertEquals("Worker " + i + " result",
+          new Double(5050.0 * N), w[i].result);
+    }
+  }
+
+  /**
+   * Tests that states on separate threads do not disturb each other.
+   * The timing of this is left to {@link ThreadSpeed}.
+   */
+  public void testParallel()
+  {
+    System.out.println("MultiStateTest.testParallel()");
+    runWorkers(1, null);
+    runWorkers(THREADS, null);
+  }
+
+  /**
+   * Tests that states forked from a snapshot are independent of each
+   * other, of the snapshot, and of the state the snapshot was taken
+   * of; and that they can be forked and run on separate threads.
+   */
+  public void testFork()
+  {
+    System.out.println("MultiStateTest.testFork()");
+    Lua L = newState();
+    assertEquals("init", 0, L.doString(
+        "counter = {n = 0} " +
+        "function bump() counter.n = counter.n + 1 return counter.n end " +
+        "local hidden = {x = 1} " +
+        "function get() return hidden.x end " +
+        "function set(v) hidden.x = v end"));
+    Lua snapshot = L.snapshot();
+    assertEquals("parent", 0, L.doString("counter.n = 100 set(100)"));
+
+    Lua a = snapshot.fork();
+    Lua b = snapshot.fork();
+    assertEquals("a", 0, a.doString(
+        "bump() bump() set(5) n, x = counter.n, get() " +
+        "s = ('a'):rep(3) .. string.rep('b', 2)"));
+    assertEquals("b", 0, b.doString("bump() n, x = counter.n, get()"));
+    assertEquals("a.n", new Double(2), a.getGlobal("n"));
+    assertEquals("a.x", new Double(5), a.getGlobal("x"));
+    assertEquals("a.s", "aaabb", a.getGlobal("s"));
+    assertEquals("b.n", new Double(1), b.getGlobal("n"));
+    assertEquals("b.x", new Double(1), b.getGlobal("x"));
+    assertEquals("L", 0, L.doString("n, x = counter.n, get()"));
+    assertEquals("L.n", new Double(100), L.getGlobal("n"));
+    assertEquals("L.x", new Double(100), L.getGlobal("x"));
+
+    runWorkers(THREADS, newState().snapshot());
+  }
+
+  /**
+   * Tests that the inline caches of the Protos that forked states
+   * share give each state its own values, and do not keep a dropped
+   * state's tables alive.
+   */
+  public void testForkCache()
+  {
+    System.out.println("MultiStateTest.testForkCache()");
+    Lua L = newState();
+    assertEquals("init", 0, L.doString(
+        "function get(t) return t.x end " +
+        "function loop(t) local s = 0 " +
+        "  for i = 1, 1000 do s = s + get(t) end return s end"));
+    Lua snapshot = L.snapshot();
+
+    Lua a = snapshot.fork();
+    assertEquals("a", 0, a.doString("mine = {x = 1} s = loop(mine)"));
+    assertEquals("a.s", new Double(1000), a.getGlobal("s"));
+    WeakReference ref = new WeakReference(a.getGlobal("mine"));
+
+    // An entry for one table is not replaced by a hit in another, so
+    // the entries a filled are still there after b runs.
+    Lua b = snapshot.fork();
+    assertEquals("b", 0, b.doString("mine = {x = 2} s = loop(mine)"));
+    assertEquals("b.s", new Double(2000), b.getGlobal("s"));
+
+    a = null;
+    for (int i=0; i<10 && ref.get() != null; ++i)
+    {
+      System.gc();
+    }
+    assertNull("dropped state's table", ref.get());
+
+    assertEquals("b again", 0, b.doString("s = loop(mine)"));
+    assertEquals("b.s again", new Double(2000), b.getGlobal("s"));
+  }
+
+  /**
+   * Tests that states from a {@link LuaStatePool} are reset when they
+   * are checked in, that changed globals are reported, and the
+   * metrics.
+   */
+  public void testPool()
+  {
+    System.out.println("MultiStateTest.testPool()");
+    LuaStatePool pool = new LuaStatePool(newState(), 2);
+    Lua L = pool.checkout();
+    assertEquals("leak", 0, L.doString("leak = 1 work = nil"));
+    Vector changed = pool.checkin(L);
+    assertEquals("changed", 2, changed.size());
+    assertTrue("leak", changed.contains("leak"));
+    assertTrue("work", changed.contains("work"));
+
+    L = pool.checkout();
+    assertEquals("reset", Lua.NIL, L.getGlobal("leak"));
+    assertEquals("error", 0, L.loadString("local w = work error('x')", "=t"));
+    assertTrue("error", L.pcall(0, 0, null) != 0);
+    assertEquals("unchanged", 0, pool.checkin(L).size());
+
+    L = pool.checkout();
+    assertEquals("top", 0, L.getTop());
+    L.push(L.getGlobal("work"));
+    L.pushNumber(1);
+    L.call(1, 1);
+    assertEquals("work", new Double(5050), L.value(-1));
+    Lua M = pool.checkout();
+    Lua N = pool.checkout();    // pool now empty, so made afresh
+    pool.checkin(L);
+    pool.checkin(M);
+    pool.checkin(N);            // not kept
+
+    assertEquals("created", 3, pool.created());
+    assertEquals("checkouts", 5, pool.checkouts());
+    assertEquals("leaks", 1, pool.leaks());
+    assertEquals("inUse", 0, pool.inUse());
+    assertEquals("peak", 3, pool.peak());
+    assertEquals("idle", 2, pool.idle());
+  }
+
+  /**
+   * Tests that a {@link LuaStatePool} refuses a state that is not
+   * checked out from it: one checked in twice, or one from elsewhere.
+   */
+  public void testPoolCheckin()
+  {
+    System.out.println("MultiStateTest.testPoolCheckin()");
+    LuaStatePool pool = new LuaStatePool(newState(), 2);
+    Lua L = pool.checkout();
+    pool.checkin(L);
+    try
+    {
+      pool.checkin(L);
+      fail("repeated checkin");
+    }
+    catch (IllegalArgumentException e_)
+    {
+    }
+    try
+    {
+      pool.checkin(newState());
+      fail("foreign checkin");
+    }
+    catch (IllegalArgumentException e_)
+    {
+    }
+    assertEquals("inUse", 0, pool.inUse());
+    assertEquals("idle", 2, pool.idle());
+    Lua a = pool.checkout();
+    Lua b = pool.checkout();
+    assertTrue("distinct", a != b);
+  }
+
+  public Test suite()
+  {
+    TestSuite suite = new TestSuite();
+
+    suite.addTest(new MultiStateTest("testParallel")
+      {
+        public void runTest() { testParallel(); }
+      });
+    suite.addTest(new MultiStateTest("testFork")
+      {
+        public void runTest() { testFork(); }
+      });
+    suite.addTest(new MultiStateTest("testForkCache")
+      {
+        public void runTest() { testForkCache(); }
+      });
+    suite.addTest(new MultiStateTest("testPool")
+      {
+        public void runTest() { testPool(); }
+      });
+    suite.addTest(new MultiStateTest("testPoolCheckin")
+      {
+        public void runTest() { testPoolCheckin(); }
+      });
+
+    return suite;
+  }
+}
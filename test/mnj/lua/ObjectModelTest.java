@@ -88,6 +88,362 @@ public class ObjectModelTest extends TestCase
         table.getMetatable() != another.getMetatable());
   }
 
+  /**
+   * Tests the hash part of LuaTable: growth, removal, reinsertion, and
+   * numeric keys.
+   */
+  public void testTableHash()
+  {
+    System.out.println("ObjectModelTest.testTableHash()");
+
+    LuaTable table = new LuaTable();
+    final int n = 1000;
+    for (int i=0; i<n; ++i)
+    {
+      table.putlua(null, "k" + i, new Double(i));
+    }
+    for (int i=0; i<n; ++i)
+    {
+      assertEquals("k" + i, new Double(i), table.getlua("k" + i));
+    }
+    // Remove every other key.
+    for (int i=0; i<n; i+=2)
+    {
+      table.putlua(null, "k" + i, Lua.NIL);
+    }
+    int count = 0;
+    java.util.Enumeration e = table.keys();
+    while (e.hasMoreElements())
+    {
+      Object k = e.nextElement();
+      assertTrue("live key " + k, table.getlua(k) != Lua.NIL);
+      ++count;
+    }
+    assertEquals("keys after removal", n/2, count);
+    for (int i=0; i<n; ++i)
+    {
+      Object v = table.getlua("k" + i);
+      assertEquals("k" + i, i%2 == 0 ? Lua.NIL : new Double(i), v);
+    }
+    // Reinsert removed keys.
+    for (int i=0; i<n; i+=2)
+    {
+      table.putlua(null, "k" + i, Lua.valueOfBoolean(true));
+    }
+    assertEquals("reinserted", Lua.valueOfBoolean(true),
+        table.getlua("k0"));
+    assertTrue("absent key", table.getlua("absent") == Lua.NIL);
+
+    // -0.0 and 0.0 are the same key; 0.5 is never in the array part.
+    table.putlua(null, new Double(-0.0), "zero");
+    assertEquals("0.0", "zero", table.getlua(new Double(0.0)));
+    table.putlua(null, new Double(0.5), "half");
+    assertEquals("0.5", "half", table.getlua(new Double(0.5)));
+    table.putnum(-7, "minus seven");
+    assertEquals("-7", "minus seven", table.getnum(-7));
+  }
+
+  /**
+   * Tests the numeric array part of LuaTable: numbers, holes, NaN,
+   * -0.0, and conversion on storing a non-number.
+   */
+  public void testTableArray()
+  {
+    System.out.println("ObjectModelTest.testTableArray()");
+
+    LuaTable table = new LuaTable(8, 0);
+    final int n = 100;
+    for (int i=1; i<=n; ++i)
+    {
+      table.putnum(i, new Double(i*0.5));
+    }
+    assertEquals("getn", n, table.getn());
+    table.putnum(n, Lua.NIL);
+    assertEquals("getn after hole", n-1, table.getn());
+    Slot key = new Slot(new Double(3));
+    Slot value = new Slot(Lua.NIL);
+    table.getlua(key, value);
+    assertTrue("slot", value.r == Lua.NUMBER && value.d == 1.5);
+    table.putnum(4, new Double(-0.0));
+    assertTrue("-0.0",
+        1/((Double)table.getnum(4)).doubleValue() < 0);
+    table.putnum(5, new Double(0.0/0.0));
+    assertTrue("NaN", ((Double)table.getnum(5)).isNaN());
+    table.putnum(6, "six");
+    assertEquals("string", "six", table.getnum(6));
+    for (int i=1; i<n; ++i)
+    {
+      if (i < 4 || i > 6)
+      {
+        assertEquals("after conversion " + i, new Double(i*0.5),
+            table.getnum(i));
+      }
+    }
+    assertEquals("nil after conversion", Lua.NIL, table.getnum(n));
+  }
+
+  /**
+   * Tests that appending grows the array part, picking up keys that
+   * were already in the hash part, so that each key is seen once.
+   */
+  public void testTableAppend()
+  {
+    System.out.println("ObjectModelTest.testTableAppend()");
+
+    LuaTable table = new LuaTable();
+    table.putnum(3, "c");
+    table.putnum(7, "g");
+    table.putnum(1, "a");
+    table.putnum(2, "b");
+    assertTrue("array part grown", table.sizeArray >= 3);
+    final int n = 1000;
+    for (int i=4; i<=n; ++i)
+    {
+      if (i != 7)
+      {
+        table.putnum(i, new Double(i));
+      }
+    }
+    assertEquals("getn", n, table.getn());
+    assertEquals("3", "c", table.getnum(3));
+    assertEquals("7", "g", table.getnum(7));
+    int count = 0;
+    java.util.Enumeration e = table.keys();
+    while (e.hasMoreElements())
+    {
+      e.nextElement();
+      ++count;
+    }
+    assertEquals("keys", n, count);
+  }
+
+  /**
+   * Tests that when appending grows the array part over a key that is
+   * in the hash part the old entry goes, rather than surviving beside
+   * the new one.
+   */
+  public void testTableAppendHashed()
+  {
+    System.out.println("ObjectModelTest.testTableAppendHashed()");
+
+    Lua L = new Lua();
+    BaseLib.open(L);
+    assertEquals("status", 0, L.doString(
+        "t = {} t[5] = 'old' t[1] = 1 t[5] = 'new' " +
+        "n = 0 " +
+        "for k, v in pairs(t) do " +
+        "  n = n + 1 " +
+        "  if n > 10 then break end " +
+        "end " +
+        "for i = 1, 100 do t['s' .. i] = i end " +
+        "v = t[5]"));
+    assertEquals("pairs", new Double(2), L.getGlobal("n"));
+    assertEquals("after rehash", "new", L.getGlobal("v"));
+  }
+
+  /**
+   * Like {@link #testTableAppendHashed} but through each of the store
+   * methods that can append: putlua (boxed and Slot keys), putnum
+   * (Object and Slot values) and putarray.
+   */
+  public void testTableAppendHashedPut()
+  {
+    System.out.println("ObjectModelTest.testTableAppendHashedPut()");
+
+    Lua L = new Lua();
+    for (int m=0; m<5; ++m)
+    {
+      LuaTable table = new LuaTable();
+      table.putnum(5, "old");   // numeric hash part
+      table.putnum(1, "a");     // array part of 4
+      Slot key = new Slot(new Double(5));
+      Slot value = new Slot("new");
+      switch (m)
+      {
+        case 0:
+          table.putlua(L, new Double(5), "new");
+          break;
+        case 1:
+          table.putlua(L, key, "new");
+          break;
+        case 2:
+          table.putnum(5, "new");
+          break;
+        case 3:
+          table.putnum(5, value);
+          break;
+        case 4:
+          assertTrue("putarray", table.putarray(key, value));
+          break;
+      }
+      int count = 0;
+      key = new Slot(Lua.NIL);
+      value = new Slot(Lua.NIL);
+      while (count <= 10 && table.next(L, key, value))
+      {
+        ++count;
+      }
+      assertEquals("next " + m, 2, count);
+      for (int i=1; i<=100; ++i)
+      {
+        table.putlua(L, "s" + i, "x");
+      }
+      assertEquals("after rehash " + m, "new", table.getnum(5));
+    }
+  }
+
+  /**
+   * Tests the numeric hash part of LuaTable, for sparse and
+   * non-integer number keys, and traversal of it with next.
+   */
+  public void testTableNumHash()
+  {
+    System.out.println("ObjectModelTest.testTableNumHash()");
+
+    Lua L = new Lua();
+    LuaTable table = new LuaTable();
+    final int n = 1000;
+    for (int i=0; i<n; ++i)
+    {
+      table.putnum(-i, "m" + i);
+      table.putlua(L, new Double(i*1000.5), new Double(i));
+    }
+    table.putlua(L, "s", "string key");
+    for (int i=0; i<n; ++i)
+    {
+      if (i > 0)        // key 0 was overwritten by 0*1000.5
+      {
+        assertEquals("-" + i, "m" + i, table.getnum(-i));
+      }
+      assertEquals("" + i*1000.5, new Double(i),
+          table.getlua(new Double(i*1000.5)));
+    }
+    // Remove the negative keys, other than 0.
+    for (int i=1; i<n; ++i)
+    {
+      table.putnum(-i, Lua.NIL);
+    }
+    assertEquals("removed", Lua.NIL, table.getnum(-1));
+    int count = 0;
+    Slot key = new Slot(Lua.NIL);
+    Slot value = new Slot(Lua.NIL);
+    while (table.next(L, key, value))
+    {
+      assertTrue("next value", value.r != Lua.NIL);
+      ++count;
+    }
+    // 0, n-1 other keys i*1000.5, and "s".
+    assertEquals("next", n+1, count);
+    assertEquals("0", new Double(0), table.getnum(0));
+  }
+
+  /**
+   * Tests that a table shrinks when keys are added after most of its
+   * entries have been deleted, and when it is compacted.
+   */
+  public void testTableShrink()
+  {
+    System.out.println("ObjectModelTest.testTableShrink()");
+
+    Lua L = new Lua();
+    LuaTable table = new LuaTable();
+    final int n = 1000;
+    for (int i=1; i<=n; ++i)
+    {
+      table.putnum(i, "a" + i);
+      table.putlua(L, "k" + i, "v" + i);
+    }
+    int peak = table.capacity();
+    assertTrue("peak", peak >= 2*n);
+    // Deleting during a traversal never resizes.
+    Slot key = new Slot(Lua.NIL);
+    Slot value = new Slot(Lua.NIL);
+    while (table.next(L, key, value))
+    {
+      table.putlua(L, key, Lua.NIL);
+    }
+    assertEquals("deleted", peak, table.capacity());
+    table.putlua(L, "x", "new");
+    assertTrue("shrunk", table.capacity() < 16);
+    assertEquals("x", "new", table.getlua("x"));
+    assertEquals("gone", Lua.NIL, table.getlua("k1"));
+
+    // Compacting
+    L.setGlobal("t", table);
+    for (int i=1; i<=n; ++i)
+    {
+      table.putlua(L, "k" + i, "v" + i);
+    }
+    for (int i=1; i<n; ++i)
+    {
+      table.putlua(L, "k" + i, Lua.NIL);
+    }
+    assertTrue("grown", table.capacity() >= n);
+    L.gc(Lua.GCCOMPACT, 0);
+    assertTrue("compacted", table.capacity() < 16);
+    assertEquals("kept", "v" + n, table.getlua("k" + n));
+    assertEquals("x kept", "new", table.getlua("x"));
+  }
+
+  /**
+   * Tests that a frozen table, and the tables reachable from it, can
+   * be read, but not written, from another Lua state; and that a table
+   * referring to a function cannot be frozen.
+   */
+  public void testTableFreeze()
+  {
+    System.out.println("ObjectModelTest.testTableFreeze()");
+
+    Lua L = new Lua();
+    LuaTable inner = new LuaTable();
+    LuaTable table = new LuaTable();
+    L.rawSet(inner, "b", "inner");
+    L.rawSet(table, "a", inner);
+    L.rawSetI(table, 1, new Double(1));
+    L.setMetatable(table, new LuaTable());
+    L.freeze(table);
+    assertTrue("frozen", Lua.isFrozen(table));
+    assertTrue("inner", Lua.isFrozen(inner));
+    assertTrue("metatable", Lua.isFrozen(L.getMetatable(table)));
+
+    Lua L2 = new Lua();
+    BaseLib.open(L2);
+    L2.setGlobal("t", table);
+    assertEquals("status", 0, L2.doString(
+        "ok1, e1 = pcall(function() t.a.b = 2 end) " +
+        "ok2 = pcall(rawset, t, 1, 2) " +
+        "ok3 = pcall(setmetatable, t, nil) " +
+        "ok4 = pcall(function() t[1] = 5 end) " +
+        "v = t.a.b .. t[1]"));
+    for (int i=1; i<=4; ++i)
+    {
+      assertEquals("ok" + i, Boolean.FALSE, L2.getGlobal("ok" + i));
+    }
+    assertTrue("e1",
+        ((String)L2.getGlobal("e1")).indexOf(LuaTable.FROZEN) >= 0);
+    assertEquals("v", "inner1", L2.getGlobal("v"));
+
+    LuaTable bad = new LuaTable();
+    LuaTable sub = new LuaTable();
+    L.rawSet(bad, "sub", sub);
+    L.rawSet(sub, "f", new LuaJavaCallback()
+      {
+        int luaFunction(Lua L)
+        {
+          return 0;
+        }
+      });
+    try
+    {
+      L.freeze(bad);
+      fail("froze a function");
+    }
+    catch (LuaError e_)
+    {
+    }
+    assertTrue("not frozen", !Lua.isFrozen(bad) && !Lua.isFrozen(sub));
+  }
+
   /**
    * Tests basic facts about LuaFunction.
    */
@@ -184,6 +540,30 @@ public class ObjectModelTest extends TestCase
     suite.addTest(new ObjectModelTest("testTableMeta")
         {
         public void runTest() { testTableMeta(); } });
+    suite.addTest(new ObjectModelTest("testTableHash")
+        {
+        public void runTest() { testTableHash(); } });
+    suite.addTest(new ObjectModelTest("testTableArray")
+        {
+        public void runTest() { testTableArray(); } });
+    suite.addTest(new ObjectModelTest("testTableAppend")
+        {
+        public void runTest() { testTableAppend(); } });
+    suite.addTest(new ObjectModelTest("testTableAppendHashed")
+        {
+        public void runTest() { testTableAppendHashed(); } });
+    suite.addTest(new ObjectModelTest("testTableAppendHashedPut")
+        {
+        public void runTest() { testTableAppendHashedPut(); } });
+    suite.addTest(new ObjectModelTest("testTableNumHash")
+        {
+        public void runTest() { testTableNumHash(); } });
+    suite.addTest(new ObjectModelTest("testTableShrink")
+        {
+        public void runTest() { testTableShrink(); } });
+    suite.addTest(new ObjectModelTest("testTableFreeze")
+        {
+        public void runTest() { testTableFreeze(); } });
     suite.addTest(new ObjectModelTest("testFunction")
         {
         public void runTest() { testFunction(); } });
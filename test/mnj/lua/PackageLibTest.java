@@ -77,6 +77,8 @@ public class PackageLibTest extends JiliTestCase
     suite.addTest(new PackageLibTest("test9"));
     suite.addTest(new PackageLibTest("test10"));
     suite.addTest(new PackageLibTest("test11"));
+    suite.addTest(new PackageLibTest("test12"));
+    suite.addTest(new PackageLibTest("test13"));
 
     return suite;
   }
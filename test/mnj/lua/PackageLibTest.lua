@@ -197,4 +197,78 @@ function test11()
   assert(require"coroutine" == coroutine)
 end
 
+function test12()
+  local oldpath = package.path
+  package.path = ""      -- so that only the class loader can find it
+  local m = require"aotmod"
+  package.path = oldpath
+  assert(type(package.classpath) == "string")
+  assert(m.answer == 42)
+  assert(m.add(2, 3) == 5)
+  assert(m.name == "aotmod")
+  assert(m.count() == 1 and m.count() == 2)
+  assert(package.loaded.aotmod == m)
+  local ok, err = pcall(require, "no.such.module")
+  assert(not ok and string.find(err, "no class 'mnj.lua.LuaChunk_no_such_module'", 1, true))
+end
+
+function test13()
+  -- loadfile finds the class compiled from aotmod.lua; the source
+  -- itself is elsewhere, and loading it from there gives the
+  -- interpreted chunk to compare with.
+  local c = assert(loadfile"aotmod.lua")("aotmod")
+  local i = assert(loadfile"aot/aotmod.lua")("aotmod")
+  assert(c ~= i and c.answer == 42 and c.count() == 1)
+  local function same(f, ...)
+    local x = {pcall(c[f], ...)}
+    local y = {pcall(i[f], ...)}
+    assert(#x == #y, f)
+    for j = 1, #x do
+      if type(x[j]) == "table" then
+        x[j] = x[j][1] .. "," .. x[j][2] .. "," .. x[j].n
+        y[j] = y[j][1] .. "," .. y[j][2] .. "," .. y[j].n
+      end
+      -- NaN is not equal to itself
+      assert(x[j] == y[j] or x[j] ~= x[j] and y[j] ~= y[j], f)
+    end
+    return unpack(x)
+  end
+  assert(same("sumsq", 10) == true)
+  assert(select(2, same("sumsq", 10)) == 385)
+  same("sumsq", "10")
+  same("sumsq", 0)
+  assert(not same("sumsq", {}))
+  assert(select(2, same("fib", 30)) == 832040)
+  same("arith", 7, 2)
+  same("arith", "7", 2)
+  same("arith", 7, 0)
+  same("arith", -7.5, 2)
+  assert(not same("arith", {}, 1))
+  local v = setmetatable({}, {
+    __sub = function() return "sub" end,
+    __div = function() return "div" end,
+    __mod = function() return "mod" end,
+    __pow = function() return "pow" end,
+    __unm = function() return "unm" end,
+  })
+  assert(select(6, same("arith", v, 1)) == "unm")
+  for _, x in ipairs{-1, 0, 0.5, 5} do
+    same("sign", x)
+  end
+  local ok, err = same("sign", "x")
+  assert(not ok and string.find(err, "attempt to compare string with number"))
+  assert(select(2, same("max", {3, 9, 2})) == 9)
+  same("max", {"b", "c", "a"})
+  assert(not same("max", {1, "a"}))
+  same("concat", 1, "x")
+  assert(not same("concat", {}, 1))
+  same("isnil", nil)
+  same("isnil", false)
+  same("isnil", 0)
+  same("pack", 1, 2)
+  same("global", 5)
+  same("add", 1, 2)
+  same("twice", function(x) return x * 2 end, 3)
+end
+
 return 7
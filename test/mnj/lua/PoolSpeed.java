@@ -0,0 +1,118 @@
+// $Header$
+// Copyright (c) 2006 Nokia Corporation and/or its subsidiary(-ies).
+// All rights reserved.
+// 
+// Permission is hereby granted, free of charge, to any person obtaining
+// a copy of this software and associated documentation files (the
+// "Software"), to deal in the Software without restriction, including
+// without limitation the rights to use, copy, modify, merge, publish,
+// distribute, sublicense, and/or sell copies of the Software, and to
+// permit persons to whom the Software is furnished to do so, subject
+// to the following conditions:
+// 
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+// IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+// ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF
+// CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+// WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+package mnj.lua;
+
+/**
+ * Compares the cost of running a short script in a fresh Lua state,
+ * which must have its libraries opened and modules loaded first, with
+ * running it in a state from a {@link LuaStatePool}.  Run the main
+ * method, optionally with the number of requests (default 500).
+ */
+public final class PoolSpeed
+{
+  /** The script run for each request. */
+  private static final String SCRIPT =
+      "local s = 0 " +
+      "for i = 1, 100 do s = s + mod7.f3(i) end " +
+      "return string.format('%d', s)";
+
+  public static void main(String[] arg)
+  {
+    int n = arg.length > 0 ? Integer.parseInt(arg[0]) : 500;
+
+    long t0 = System.currentTimeMillis();
+    for (int i=0; i<n; ++i)
+    {
+      run(init());
+    }
+    long fresh = System.currentTimeMillis() - t0;
+
+    t0 = System.currentTimeMillis();
+    LuaStatePool pool = new LuaStatePool(init(), 4);
+    long setup = System.currentTimeMillis() - t0;
+    t0 = System.currentTimeMillis();
+    for (int i=0; i<n; ++i)
+    {
+      Lua L = pool.checkout();
+      try
+      {
+        run(L);
+      }
+      finally
+      {
+        pool.checkin(L);
+      }
+    }
+    long pooled = System.currentTimeMillis() - t0;
+
+    System.out.println(n + " requests");
+    System.out.println("new Lua(): " + fresh + "ms, " +
+        (fresh*1000/n) + "us per request");
+    System.out.println("pool: " + pooled + "ms, " +
+        (pooled*1000/n) + "us per request, plus " + setup +
+        "ms to make the pool");
+    System.out.println("states made: " + pool.created() +
+        ", leaks: " + pool.leaks());
+  }
+
+  /**
+   * A fresh state with all the libraries open, and some modules
+   * loaded: 20 modules of 20 small functions each.
+   */
+  private static Lua init()
+  {
+    Lua L = new Lua();
+    BaseLib.open(L);
+    PackageLib.open(L);
+    MathLib.open(L);
+    OSLib.open(L);
+    StringLib.open(L);
+    TableLib.open(L);
+    StringBuffer b = new StringBuffer();
+    for (int m=0; m<20; ++m)
+    {
+      b.append("mod" + m + " = {}\n");
+      for (int f=0; f<20; ++f)
+      {
+        b.append("function mod" + m + ".f" + f + "(x) " +
+            "return x * " + f + " + #tostring(x) end\n");
+      }
+    }
+    if (L.doString(b.toString()) != 0)
+    {
+      throw new RuntimeException(L.toString(L.value(-1)));
+    }
+    return L;
+  }
+
+  /** Runs {@link #SCRIPT} in <var>L</var>. */
+  private static void run(Lua L)
+  {
+    L.loadString(SCRIPT, "=request");
+    if (L.pcall(0, 1, null) != 0)
+    {
+      throw new RuntimeException(L.toString(L.value(-1)));
+    }
+  }
+}
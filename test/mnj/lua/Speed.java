@@ -36,9 +36,11 @@ final class Speed
   }
 
   static final String[] script = {
+        "errors",
         "fannkuch",
         "nbody",
         "nsieve",
+        "oop",
         "partialsums",
         "recursive",
         "spectralnorm",
@@ -67,6 +67,7 @@ public class TableLibTest extends JiliTestCase
       "concat",
       "insert",
       "maxn",
+      "move",
       "remove",
       "sort"
     };
@@ -128,6 +129,8 @@ public class TableLibTest extends JiliTestCase
     suite.addTest(new TableLibTest("testinsertremove"));
     suite.addTest(new TableLibTest("testmaxn"));
     suite.addTest(new TableLibTest("testsort"));
+    suite.addTest(new TableLibTest("testsort2"));
+    suite.addTest(new TableLibTest("testmove"));
 
     return suite;
   }
@@ -115,3 +115,92 @@ function testmaxn()
   -- assert(table.maxn{[10] = true, [100*math.pi] = print} == 100*math.pi)
   return true
 end
+
+-- Sorting in the array part, with and without an order function.
+function testsort2()
+  local seed = 1
+  local function random(n)
+    seed = (seed * 16807) % 2147483647
+    return seed % n
+  end
+  local function sorted(a, n, f)
+    assert(#a == n)
+    check(a, f)
+    return true
+  end
+  local a = {}
+  for i = 1, 1000 do a[i] = random(500) - 250 + 0.5 end
+  table.sort(a)
+  sorted(a, 1000)
+  -- numbers, but not in a numeric array part
+  local b = {'x'}
+  for i = 1, 100 do b[i] = random(50) end
+  table.sort(b)
+  sorted(b, 100)
+  local c = {}
+  for i = 1, 300 do c[i] = tostring(random(1000)) end
+  table.sort(c)
+  sorted(c, 300)
+  local gt = function (x, y) return x > y end
+  table.sort(a, gt)
+  sorted(a, 1000, gt)
+  table.sort(c, gt)
+  sorted(c, 300, gt)
+  local d = {}
+  for i = 1, 100 do d[i] = i end
+  table.sort(d)
+  sorted(d, 100)
+  for i = 1, 100 do d[i] = 101 - i end
+  table.sort(d)
+  sorted(d, 100)
+  assert(not pcall(table.sort, {1, 'a', 2}))
+  assert(not pcall(table.sort, {'a', {}}))
+  return true
+end
+
+function testmove()
+  local function same(a, b, n)
+    for i = 1, n do assert(a[i] == b[i]) end
+    return true
+  end
+  -- insert and remove in the array part, numeric and not
+  local a, b = {}, {}
+  for i = 1, 100 do a[i] = i ; b[i] = tostring(i) end
+  table.insert(a, 1, 0)
+  table.insert(b, 1, '0')
+  assert(#a == 101 and a[1] == 0 and a[2] == 1 and a[101] == 100)
+  assert(#b == 101 and b[1] == '0' and b[2] == '1' and b[101] == '100')
+  table.insert(a, 50, 'x')
+  assert(#a == 102 and a[50] == 'x' and a[49] == 48 and a[51] == 49)
+  assert(table.remove(a, 1) == 0 and table.remove(a, 49) == 'x')
+  for i = 1, 100 do assert(a[i] == i) end
+  assert(a[101] == nil and #a == 100)
+  assert(table.remove(b, 1) == '0' and #b == 100 and b[100] == '100')
+  -- table.move
+  a = {1, 2, 3, 4, 5}
+  assert(table.move(a, 2, 4, 1) == a)
+  same(a, {2, 3, 4, 4, 5}, 5)
+  a = {1, 2, 3, 4, 5}
+  table.move(a, 1, 3, 3)
+  same(a, {1, 2, 1, 2, 3}, 5)
+  table.move(a, 1, 5, 6)
+  same(a, {1, 2, 1, 2, 3, 1, 2, 1, 2, 3}, 10)
+  b = {}
+  assert(table.move(a, 1, 10, 1, b) == b)
+  same(b, a, 10)
+  b = {'x'}
+  table.move(a, 3, 4, 2, b)
+  same(b, {'x', 1, 2}, 3)
+  b = {}
+  table.move({1, 2}, 1, 2, 10, b)
+  assert(b[10] == 1 and b[11] == 2 and #b == 0)
+  table.move({}, 1, 0, 1, b)
+  -- metamethods are used
+  local log = {}
+  local p = setmetatable({}, {__index = function (t, k) return k * 10 end,
+      __newindex = function (t, k, v) log[k] = v end})
+  table.move(p, 1, 3, 5)
+  same(log, {nil, nil, nil, nil, 10, 20, 30}, 7)
+  assert(not pcall(table.move, {}, 1, 2))
+  return true
+end
@@ -0,0 +1,98 @@
+// $Header$
+// Copyright (c) 2006 Nokia Corporation and/or its subsidiary(-ies).
+// All rights reserved.
+// 
+// Permission is hereby granted, free of charge, to any person obtaining
+// a copy of this software and associated documentation files (the
+// "Software"), to deal in the Software without restriction, including
+// without limitation the rights to use, copy, modify, merge, publish,
+// distribute, sublicense, and/or sell copies of the Software, and to
+// permit persons to whom the Software is furnished to do so, subject
+// to the following conditions:
+// 
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+// IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+// ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF
+// CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+// WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+package mnj.lua;
+
+/**
+ * Times the same work run in one Lua state, and then in several
+ * states at once, each on its own thread.  With as many cores as
+ * threads the parallel run should take about as long as the single
+ * one.  Run the main method, optionally with the number of threads
+ * (default 4).  MultiStateTest checks the results; this only times
+ * them.
+ */
+public final class ThreadSpeed
+{
+  /** Work function, as in MultiStateTest.lua. */
+  private static final String SCRIPT =
+      "function work(n) " +
+      "local t = {} " +
+      "for i = 1, 100 do t[i] = tostring(i) t['k' .. i] = i end " +
+      "local s = 0 " +
+      "for j = 1, n do for i = 1, 100 do " +
+      "s = s + t[i] * 2 - t['k' .. i] " +
+      "end end " +
+      "return s " +
+      "end";
+
+  /** Number of outer iterations of the work function. */
+  private static final int N = 2000;
+
+  public static void main(String[] arg) throws InterruptedException
+  {
+    int n = arg.length > 0 ? Integer.parseInt(arg[0]) : 4;
+
+    long one = run(1);
+    long many = run(n);
+    System.out.println("1 state: " + one + "ms, " +
+        n + " states: " + many + "ms");
+  }
+
+  /**
+   * Runs the work function in <var>n</var> fresh states in parallel
+   * and returns the elapsed time in milliseconds.
+   */
+  private static long run(int n) throws InterruptedException
+  {
+    Thread[] t = new Thread[n];
+    for (int i=0; i<n; ++i)
+    {
+      t[i] = new Thread(new Runnable()
+        {
+          public void run()
+          {
+            Lua L = new Lua();
+            BaseLib.open(L);
+            StringLib.open(L);
+            if (L.doString(SCRIPT) != 0)
+            {
+              throw new RuntimeException(L.toString(L.value(-1)));
+            }
+            L.push(L.getGlobal("work"));
+            L.pushNumber(N);
+            L.call(1, 1);
+          }
+        });
+    }
+    long t0 = System.currentTimeMillis();
+    for (int i=0; i<n; ++i)
+    {
+      t[i].start();
+    }
+    for (int i=0; i<n; ++i)
+    {
+      t[i].join();
+    }
+    return System.currentTimeMillis() - t0;
+  }
+}
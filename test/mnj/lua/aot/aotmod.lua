@@ -0,0 +1,70 @@
+-- $Header$
+-- Copyright (c) 2006 Nokia Corporation and/or its subsidiary(-ies).
+-- All rights reserved.
+-- 
+-- Permission is hereby granted, free of charge, to any person obtaining
+-- a copy of this software and associated documentation files (the
+-- "Software"), to deal in the Software without restriction, including
+-- without limitation the rights to use, copy, modify, merge, publish,
+-- distribute, sublicense, and/or sell copies of the Software, and to
+-- permit persons to whom the Software is furnished to do so, subject
+-- to the following conditions:
+-- 
+-- The above copyright notice and this permission notice shall be
+-- included in all copies or substantial portions of the Software.
+-- 
+-- THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+-- EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+-- MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+-- IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+-- ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF
+-- CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+-- WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+-- Module compiled by Luajc into ../LuaChunk_aotmod.java, for
+-- PackageLibTest.  Kept out of package.path.
+
+local name = ...
+local M = {name = name, answer = 6 * 7}
+function M.add(a, b) return a + b end
+local up = 0
+function M.count() up = up + 1 return up end
+
+-- Compiled to Java bodies (they do not call), with the interpreter's
+-- results for any operands.
+function M.sumsq(n)
+  local s = 0
+  for i = 1, n do
+    s = s + i * i
+  end
+  return s
+end
+function M.fib(n)
+  local a, b = 0, 1
+  for i = n, 1, -1 do
+    a, b = b, a + b
+  end
+  return a
+end
+function M.arith(x, y)
+  return x - y, x / y, x % y, x ^ 2, -x
+end
+function M.sign(x)
+  if x < 0 then return "negative" elseif x == 0 then return "zero" end
+  return x <= 1 and "small" or "positive"
+end
+function M.max(t)
+  local m = t[1]
+  for i = 2, #t do
+    if t[i] > m then m = t[i] end
+  end
+  return m
+end
+function M.concat(a, b) return a .. "," .. b end
+function M.isnil(x) return not x, x == nil end
+function M.pack(a, b) return {a, b, n = 2} end
+function M.global(x) aotglobal = x return aotglobal end
+
+-- Interpreted: calls a function.
+function M.twice(f, x) return f(f(x)) end
+return M
@@ -0,0 +1,76 @@
+-- Error handling benchmark.  Exercises error and pcall as used for
+-- input validation: most calls fail, with a string or a table as the
+-- error object, plus runtime errors raised by the VM, xpcall with a
+-- handler, and tonumber on strings that are not numbers.
+
+local function check(rec)
+  if type(rec.name) ~= "string" then
+    error("name must be a string")
+  end
+  local n = tonumber(rec.qty)
+  if not n then
+    error({field = "qty", value = rec.qty})
+  end
+  if n < 0 then
+    error("qty must not be negative", 2)
+  end
+  return n
+end
+
+local records = {
+  {name = "a", qty = "12"},
+  {name = 7, qty = "1"},
+  {name = "b", qty = "twelve"},
+  {name = "c", qty = "-3"},
+  {name = "d", qty = "0x1F"},
+  {name = "e", qty = "1e"},
+}
+
+local function validate(n)
+  local ok, bad = 0, 0
+  for i = 1, n do
+    local s, v = pcall(check, records[i % #records + 1])
+    if s then ok = ok + v else bad = bad + 1 end
+  end
+  return ok, bad
+end
+
+local function runtime(n)
+  local t = {}
+  local bad = 0
+  for i = 1, n do
+    if not pcall(function() return t.x.y end) then bad = bad + 1 end
+    if not pcall(function() return t + 1 end) then bad = bad + 1 end
+  end
+  return bad
+end
+
+local function handler(e)
+  return "handled: " .. tostring(e)
+end
+
+local function handled(n)
+  local bad = 0
+  for i = 1, n do
+    local s = xpcall(function() error("x") end, handler)
+    if not s then bad = bad + 1 end
+  end
+  return bad
+end
+
+local function nested(d)
+  if d == 0 then error("deep") end
+  return nested(d - 1)
+end
+
+local function deep(n)
+  local bad = 0
+  for i = 1, n do
+    if not pcall(nested, 20) then bad = bad + 1 end
+  end
+  return bad
+end
+
+local N = 20000
+print(validate(6 * N))
+print(runtime(N), handled(N), deep(N / 4))
@@ -0,0 +1,66 @@
+-- Object oriented style benchmark.  Exercises method calls through
+-- a metatable's __index (OP_SELF), field access with constant keys
+-- (OP_GETTABLE) and global lookups (OP_GETGLOBAL) in hot loops.
+
+Point = {}
+Point.__index = Point
+
+function Point.new(x, y)
+  return setmetatable({x = x, y = y}, Point)
+end
+
+function Point:add(other)
+  return Point.new(self.x + other.x, self.y + other.y)
+end
+
+function Point:scale(k)
+  self.x = self.x * k
+  self.y = self.y * k
+  return self
+end
+
+function Point:norm2()
+  return self.x * self.x + self.y * self.y
+end
+
+Account = {}
+Account.__index = Account
+
+function Account.new(balance)
+  return setmetatable({balance = balance, count = 0}, Account)
+end
+
+function Account:deposit(v)
+  self.balance = self.balance + v
+  self.count = self.count + 1
+end
+
+function Account:withdraw(v)
+  if v > self.balance then
+    return false
+  end
+  self.balance = self.balance - v
+  self.count = self.count + 1
+  return true
+end
+
+local n = tonumber((...)) or 50000
+
+local p = Point.new(0, 0)
+local d = Point.new(1, 2)
+local s = 0
+for i = 1, n do
+  p = p:add(d)
+  s = s + p:norm2() % 7
+  if i % 100 == 0 then
+    p:scale(0.5)
+  end
+end
+
+local a = Account.new(100)
+for i = 1, n do
+  a:deposit(i % 10)
+  a:withdraw(i % 13)
+end
+
+print(string.format("oop: %.1f %d %d", s, a.balance, a.count))